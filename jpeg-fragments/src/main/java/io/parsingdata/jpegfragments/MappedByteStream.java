@@ -0,0 +1,192 @@
+package io.parsingdata.jpegfragments;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.parsingdata.metal.data.ByteStream;
+
+/**
+ * {@link ByteStream} over a file mapped with {@link FileChannel#map}. A single buffer
+ * is limited to 2 GB, so the file is mapped as a list of windows that start every
+ * {@link #WINDOW_STRIDE} bytes. Consecutive windows overlap by {@link #WINDOW_OVERLAP}
+ * bytes, so a slice of at most that length is always a view into one window and
+ * never a copy.
+ *
+ * The windows stay mapped until the stream is closed, or otherwise until the buffers are
+ * collected. Views made with {@link #from} share the windows of the stream they were made
+ * from: closing a view does nothing, and reading a view after its stream is closed throws
+ * {@link IllegalStateException}. Buffers returned by {@link #slice} are not checked, so do
+ * not read them after the stream is closed.
+ */
+public class MappedByteStream implements ByteStream, AutoCloseable {
+
+    static final long WINDOW_STRIDE = 1L << 30;
+    public static final int WINDOW_OVERLAP = 1 << 20;
+
+    private static final Object UNSAFE; // Unmaps a buffer with invokeCleaner, null if that is not available.
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector.
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final List<ByteBuffer> windows;
+    private final long stride;
+    private final long start; // Offset of this view in the windows.
+    private final long size;
+    private final AtomicBoolean closed; // Shared by all views of a mapping, null if the stream wraps an array.
+    private final boolean view;
+
+    private MappedByteStream(final List<ByteBuffer> windows, final long stride, final long start, final long size, final AtomicBoolean closed,
+            final boolean view) {
+        this.windows = windows;
+        this.stride = stride;
+        this.start = start;
+        this.size = size;
+        this.closed = closed;
+        this.view = view;
+    }
+
+    public static MappedByteStream map(final Path path) throws IOException {
+        return map(path, WINDOW_STRIDE);
+    }
+
+    static MappedByteStream map(final Path path, final long stride) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final List<ByteBuffer> windows = new ArrayList<>();
+            for (long windowStart = 0; windowStart < size; windowStart += stride) {
+                final long windowSize = Math.min(stride + WINDOW_OVERLAP, size - windowStart);
+                windows.add(channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize));
+            }
+            return new MappedByteStream(windows, stride, 0, size, new AtomicBoolean(), false);
+        }
+    }
+
+    public static MappedByteStream wrap(final byte[] data) {
+        return new MappedByteStream(List.of(ByteBuffer.wrap(data)), Long.MAX_VALUE, 0, data.length, null, false);
+    }
+
+    /**
+     * @return a view of this stream in which offset 0 is at the given offset
+     */
+    public MappedByteStream from(final long offset) {
+        if (offset < 0 || offset > size) {
+            throw new IllegalArgumentException("Offset " + offset + " outside of stream of size " + size + ".");
+        }
+        return new MappedByteStream(windows, stride, start + offset, size - offset, closed, true);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the unsigned value of the byte at offset
+     */
+    public int get(final long offset) {
+        checkOpen();
+        final long position = start + offset;
+        final int windowIndex = (int) (position / stride);
+        return windows.get(windowIndex).get((int) (position - windowIndex * stride)) & 0xFF;
+    }
+
+    /**
+     * @return a read-only buffer with the bytes at [offset, offset + length), which shares
+     *         the mapped memory if length is at most {@link #WINDOW_OVERLAP} or the bytes are
+     *         within one window, and is a copy otherwise
+     */
+    public ByteBuffer slice(final long offset, final int length) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException("Slice [" + offset + ", " + (offset + length) + ") outside of stream of size " + size + ".");
+        }
+        checkOpen();
+        final long position = start + offset;
+        final int windowIndex = (int) (position / stride);
+        final ByteBuffer window = windows.get(windowIndex);
+        final int windowOffset = (int) (position - windowIndex * stride);
+        if (windowOffset + length <= window.limit()) {
+            return window.duplicate().position(windowOffset).limit(windowOffset + length).slice().asReadOnlyBuffer();
+        }
+        final byte[] copy = new byte[length];
+        int copied = 0;
+        while (copied < length) { // Bulk copy from each window in turn.
+            final long copyPosition = position + copied;
+            final int copyWindowIndex = (int) (copyPosition / stride);
+            final int copyWindowOffset = (int) (copyPosition - copyWindowIndex * stride);
+            final ByteBuffer copyWindow = windows.get(copyWindowIndex).duplicate();
+            final int chunk = Math.min(length - copied, copyWindow.limit() - copyWindowOffset);
+            copyWindow.position(copyWindowOffset);
+            copyWindow.get(copy, copied, chunk);
+            copied += chunk;
+        }
+        return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+    }
+
+    public boolean isClosed() {
+        return closed != null && closed.get();
+    }
+
+    private void checkOpen() {
+        if (isClosed()) {
+            throw new IllegalStateException("Mapped stream is closed.");
+        }
+    }
+
+    /**
+     * Unmaps the file, for this stream and every view of it. Does nothing for a view or a wrapped array.
+     */
+    @Override
+    public void close() {
+        if (view || closed == null || !closed.compareAndSet(false, true) || UNSAFE == null) {
+            return;
+        }
+        for (final ByteBuffer window : windows) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, window);
+            } catch (final ReflectiveOperationException e) {
+                return; // Left to the garbage collector.
+            }
+        }
+    }
+
+    @Override
+    public byte[] read(final BigInteger offset, final int length) throws IOException {
+        if (isClosed()) {
+            throw new IOException("Mapped stream is closed");
+        }
+        if (!isAvailable(offset, BigInteger.valueOf(length))) {
+            throw new IOException("Read beyond available data");
+        }
+        final byte[] result = new byte[length];
+        slice(offset.longValueExact(), length).get(result);
+        return result;
+    }
+
+    @Override
+    public boolean isAvailable(final BigInteger offset, final BigInteger length) {
+        return offset.signum() >= 0 && length.signum() >= 0 && offset.add(length).compareTo(BigInteger.valueOf(size)) <= 0;
+    }
+
+}
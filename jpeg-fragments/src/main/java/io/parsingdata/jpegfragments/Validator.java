@@ -2,6 +2,7 @@ package io.parsingdata.jpegfragments;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.file.Path;
 
 import io.parsingdata.metal.data.ByteStream;
 
@@ -9,4 +10,10 @@ public interface Validator {
 
     ValidationResult validate(ByteStream input) throws IOException;
 
+    default ValidationResult validate(Path input) throws IOException {
+        try (MappedByteStream mapped = MappedByteStream.map(input)) {
+            return validate(mapped);
+        }
+    }
+
 }
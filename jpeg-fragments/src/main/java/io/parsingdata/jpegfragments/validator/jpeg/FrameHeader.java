@@ -0,0 +1,47 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SOF0_IDENTIFIER;
+
+import java.util.Arrays;
+
+/**
+ * The SOF segment of a JPEG: the size of the image and its components.
+ */
+final class FrameHeader {
+
+    final int identifier; // SOF0 or SOF2
+    final int height; // Y
+    final int width; // X
+    private final int[] componentIdentifiers; // Ci
+    private final int[] samplingFactors; // Hi & Vi
+
+    FrameHeader(final int identifier, final int height, final int width, final int[] componentIdentifiers, final int[] samplingFactors) {
+        this.identifier = identifier;
+        this.height = height;
+        this.width = width;
+        this.componentIdentifiers = componentIdentifiers;
+        this.samplingFactors = samplingFactors;
+    }
+
+    boolean isBaseline() {
+        return identifier == SOF0_IDENTIFIER;
+    }
+
+    int componentCount() {
+        return componentIdentifiers.length;
+    }
+
+    int[] componentIdentifiers() {
+        return componentIdentifiers.clone();
+    }
+
+    int samplingFactors(final int component) {
+        return samplingFactors[component];
+    }
+
+    @Override
+    public String toString() {
+        return "SOF " + Integer.toHexString(identifier) + " " + width + "x" + height + " " + Arrays.toString(componentIdentifiers) + " " + Arrays.toString(samplingFactors);
+    }
+
+}
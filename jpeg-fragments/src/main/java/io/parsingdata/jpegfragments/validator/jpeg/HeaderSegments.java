@@ -0,0 +1,54 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.util.List;
+import java.util.Map;
+
+import io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType;
+
+/**
+ * The marker segments of the header of a JPEG, or of those before the entropy-coded data
+ * of a scan, as parsed by {@link JpegHeaderParser} or {@link JpegMetalHeaderParser}.
+ */
+final class HeaderSegments {
+
+    static final int NO_RESTART_INTERVAL = -1;
+
+    final long offset; // Of the first byte after the segments: the marker the header stops at, or the data of a scan.
+    final long reportedOffset; // Just after the identifier of the last marker that was recognized.
+    final FrameHeader frame; // The last SOF, null if there is none (or for a scan).
+    final ScanHeader scan; // Null for the header.
+    final List<HuffmanSpec> huffmanSpecs; // In the order they are defined.
+    private final int restartInterval; // Of the last DRI, NO_RESTART_INTERVAL if there is none.
+
+    HeaderSegments(final long offset, final long reportedOffset, final FrameHeader frame, final ScanHeader scan, final List<HuffmanSpec> huffmanSpecs, final int restartInterval) {
+        this.offset = offset;
+        this.reportedOffset = reportedOffset;
+        this.frame = frame;
+        this.scan = scan;
+        this.huffmanSpecs = List.copyOf(huffmanSpecs);
+        this.restartInterval = restartInterval;
+    }
+
+    /**
+     * @return the restart interval of the last DRI, or the given one if there is none
+     */
+    int restartInterval(final int otherwise) {
+        return restartInterval == NO_RESTART_INTERVAL ? otherwise : restartInterval;
+    }
+
+    /**
+     * Adds the Huffman tables defined in the segments, replacing those with the same class and identifier.
+     */
+    void defineTables(final Map<CoefficientType, Map<Integer, HuffmanTable>> huffmanTables) {
+        for (final HuffmanSpec spec : huffmanSpecs) {
+            final HuffmanTable table = spec.toTable();
+            huffmanTables.get(table.type).put(table.id, table);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "offset " + offset + ", " + frame + ", " + scan + ", DRI " + restartInterval + ", " + huffmanSpecs;
+    }
+
+}
@@ -0,0 +1,41 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.util.Arrays;
+
+/**
+ * A single table of a DHT segment as it is defined: the number of codes of each length and
+ * the symbols in code order.
+ */
+final class HuffmanSpec {
+
+    final int tableClassAndIdentifier; // Tc & Th
+    private final int[] lengths; // Li
+    private final int[] symbols; // Vij
+
+    HuffmanSpec(final int tableClassAndIdentifier, final int[] lengths, final int[] symbols) {
+        this.tableClassAndIdentifier = tableClassAndIdentifier;
+        this.lengths = lengths;
+        this.symbols = symbols;
+    }
+
+    /**
+     * @return the decode table, shared with every other file that defines the same table
+     */
+    HuffmanTable toTable() {
+        final byte[] definition = new byte[1 + lengths.length + symbols.length];
+        definition[0] = (byte) tableClassAndIdentifier;
+        for (int i = 0; i < lengths.length; i++) {
+            definition[1 + i] = (byte) lengths[i];
+        }
+        for (int i = 0; i < symbols.length; i++) {
+            definition[1 + lengths.length + i] = (byte) symbols[i];
+        }
+        return JpegTableCache.huffmanTable(definition, () -> new HuffmanTable(tableClassAndIdentifier, lengths, symbols));
+    }
+
+    @Override
+    public String toString() {
+        return "DHT " + Integer.toHexString(tableClassAndIdentifier) + " " + Arrays.toString(lengths) + " " + Arrays.toString(symbols);
+    }
+
+}
@@ -2,75 +2,145 @@ package io.parsingdata.jpegfragments.validator.jpeg;
 
 import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.AC;
 import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.DC;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.TABLE_CLASS_TABLE_HUFFMAN_IDENTIFIER;
-import static io.parsingdata.metal.Shorthand.con;
-import static io.parsingdata.metal.Shorthand.last;
-import static io.parsingdata.metal.Shorthand.ref;
-import static io.parsingdata.metal.Shorthand.scope;
-import static io.parsingdata.metal.data.Selection.reverse;
 
-import java.math.BigInteger;
-import java.util.BitSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Optional;
-
-import io.parsingdata.metal.data.ImmutableList;
-import io.parsingdata.metal.data.ParseState;
-import io.parsingdata.metal.encoding.Encoding;
-import io.parsingdata.metal.expression.value.Value;
+import java.util.Arrays;
 
+/**
+ * Canonical Huffman decoder for a single DHT table.
+ *
+ * Codes of up to {@link #LOOKUP_BITS} bits are resolved with one array access into a
+ * table indexed by the next {@link #LOOKUP_BITS} bits of input. Longer codes fall back
+ * to the maxcode/valptr scheme of ITU T.81 Annex F.2.2.3. Results are returned as a
+ * packed int (code length and symbol) so decoding a symbol does not allocate.
+ */
 public class HuffmanTable {
 
     public enum CoefficientType {
         AC, DC
     }
 
+    public static final int NO_MATCH = -1;
+    static final int MAX_CODE_LENGTH = 16;
+    static final int LOOKUP_BITS = 9;
+
     public final CoefficientType type;
     public final int id;
-    public final LinkedHashMap<SizedBitSet, Integer> codeSymbolMap;
     public final int maxCodeLength;
 
-    public HuffmanTable(final ParseState parseState) {
-        final ImmutableList<Value> listOfLengths = scope(ref("li"), con(0)).eval(parseState, Encoding.DEFAULT_ENCODING);
-        final ImmutableList<Value> listOfSymbols = scope(ref("vij"), con(0)).eval(parseState, Encoding.DEFAULT_ENCODING);
-        final Value tcth = last(ref(TABLE_CLASS_TABLE_HUFFMAN_IDENTIFIER)).evalSingle(parseState, Encoding.DEFAULT_ENCODING).get();
-        this.type = tcth.asNumeric().compareTo(BigInteger.valueOf(15)) > 0 ? AC : DC;
-        this.id = tcth.asNumeric().intValueExact() & 0x0F;
-        ImmutableList<Value> lengths = reverse(listOfLengths);
-        ImmutableList<Value> symbols = reverse(listOfSymbols);
-        codeSymbolMap = new LinkedHashMap<>();
-        int codeLength = 1;
+    private final int[] lookup = new int[1 << LOOKUP_BITS]; // Packed match per LOOKUP_BITS prefix, NO_MATCH if longer or absent.
+    private final int[] maxCode = new int[MAX_CODE_LENGTH + 1]; // Largest code of each length, -1 if there are none.
+    private final int[] valPtr = new int[MAX_CODE_LENGTH + 1]; // Index into symbols of the first code of each length, minus its code.
+    private final int[] symbols;
+    private final boolean canonical;
+    private final int[] codes; // Only used when the table is not canonical: every code in definition order.
+    private final int[] codeLengths;
+    private final boolean[] differenceStarts; // Only for DC tables: per maxCodeLength prefix, whether it starts a difference.
+
+    HuffmanTable(final int tableClassAndIdentifier, final int[] lengths, final int[] symbols) {
+        this.type = tableClassAndIdentifier > 15 ? AC : DC;
+        this.id = tableClassAndIdentifier & 0x0F;
+        this.symbols = symbols;
+        int symbolCount = 0;
+        for (final int length : lengths) {
+            symbolCount += length;
+        }
+        codes = new int[symbolCount];
+        codeLengths = new int[symbolCount];
+        Arrays.fill(lookup, NO_MATCH);
+        Arrays.fill(maxCode, -1);
         int codeCandidate = 0;
+        int symbolIndex = 0;
         int lastNonZeroCodeLength = 0;
-        while (lengths.size > 0) {
-            if (lengths.head.asNumeric().compareTo(BigInteger.ZERO) != 0) {
+        boolean overflow = false;
+        for (int codeLength = 1; codeLength <= lengths.length; codeLength++) {
+            final int count = lengths[codeLength - 1];
+            if (count != 0) {
                 lastNonZeroCodeLength = codeLength;
-                for (int i = 0; i < lengths.head.asNumeric().intValueExact(); i++) {
-                    final int symbolValue = symbols.head.asNumeric().intValueExact();
-                    final BitSet code = new BitSet(codeLength);
-                    for(int j = 0; j < codeLength; j++) {
-                        code.set(codeLength - j - 1, ((codeCandidate >> j) & 1) == 1);
-                    }
-                    codeSymbolMap.put(new SizedBitSet(codeLength, code), symbolValue);
-                    symbols = symbols.tail;
-                    codeCandidate++;
+                valPtr[codeLength] = symbolIndex - codeCandidate;
+                for (int i = 0; i < count; i++, symbolIndex++, codeCandidate++) {
+                    // A DHT that defines more codes than fit in codeLength bits is not a valid prefix code. The
+                    // truncated code is kept so the linear fallback matches the same bits as it always has.
+                    overflow |= codeCandidate >= (1 << codeLength);
+                    codes[symbolIndex] = codeCandidate & ((1 << codeLength) - 1);
+                    codeLengths[symbolIndex] = codeLength;
                 }
+                maxCode[codeLength] = codeCandidate - 1;
             }
-            codeCandidate<<=1;
-            codeLength++;
-            lengths = lengths.tail;
+            codeCandidate <<= 1;
         }
         maxCodeLength = lastNonZeroCodeLength;
+        canonical = !overflow && maxCodeLength <= MAX_CODE_LENGTH;
+        if (canonical) {
+            for (int i = 0; i < symbolCount && codeLengths[i] <= LOOKUP_BITS; i++) {
+                final int shift = LOOKUP_BITS - codeLengths[i];
+                final int packed = pack(codeLengths[i], symbols[i]);
+                for (int fill = 0; fill < (1 << shift); fill++) {
+                    lookup[(codes[i] << shift) | fill] = packed;
+                }
+            }
+        }
+        differenceStarts = type == DC ? new boolean[1 << maxCodeLength] : null;
+        if (differenceStarts != null) {
+            for (int bits = 0; bits < differenceStarts.length; bits++) {
+                final int packed = decode(bits);
+                differenceStarts[bits] = packed != NO_MATCH && matchSymbol(packed) <= 15;
+            }
+        }
     }
 
-    public Optional<MatchResult> findShortestMatch(final BitSet maxCodeLengthData) {
-        for (Map.Entry<SizedBitSet, Integer> entry : codeSymbolMap.entrySet()) {
-            if (maxCodeLengthData.get(0, entry.getKey().length).equals(entry.getKey().bitSet)) {
-                return Optional.of(new MatchResult(entry.getKey().length, entry.getValue()));
+    /**
+     * Tells with a single array access whether a DC difference can start at the input, that
+     * is whether its code matches and names a magnitude category of at most 15.
+     *
+     * @param bits the next {@link #maxCodeLength} bits of input, as for {@link #decode(int)}
+     */
+    public boolean mayStartDifference(final int bits) {
+        return differenceStarts[bits];
+    }
+
+    /**
+     * Decodes the next symbol.
+     *
+     * @param bits the next {@link #maxCodeLength} bits of input, right-aligned with the first bit as most significant
+     * @return the packed match (see {@link #matchLength(int)} and {@link #matchSymbol(int)}) or {@link #NO_MATCH}
+     */
+    public int decode(final int bits) {
+        if (!canonical) {
+            return decodeLinear(bits);
+        }
+        final int window = bits << (MAX_CODE_LENGTH - maxCodeLength); // Left-align to 16 bits.
+        final int packed = lookup[window >>> (MAX_CODE_LENGTH - LOOKUP_BITS)];
+        if (packed != NO_MATCH) {
+            return packed;
+        }
+        for (int codeLength = LOOKUP_BITS + 1; codeLength <= maxCodeLength; codeLength++) {
+            final int code = window >>> (MAX_CODE_LENGTH - codeLength);
+            if (code <= maxCode[codeLength]) {
+                return pack(codeLength, symbols[valPtr[codeLength] + code]);
+            }
+        }
+        return NO_MATCH;
+    }
+
+    private int decodeLinear(final int bits) {
+        for (int i = 0; i < codes.length; i++) {
+            if ((bits >>> (maxCodeLength - codeLengths[i])) == codes[i]) {
+                return pack(codeLengths[i], symbols[i]);
             }
         }
-        return Optional.empty();
+        return NO_MATCH;
+    }
+
+    private static int pack(final int codeLength, final int symbol) {
+        return (codeLength << 8) | (symbol & 0xFF);
+    }
+
+    public static int matchLength(final int packed) {
+        return packed >>> 8;
+    }
+
+    public static int matchSymbol(final int packed) {
+        return packed & 0xFF;
     }
 
 }
@@ -2,35 +2,23 @@ package io.parsingdata.jpegfragments.validator.jpeg;
 
 import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.AC;
 import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.DC;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.DC_AC_TABLE_SELECTOR;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HEIGHT;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.NUMBER_OF_IMAGE_COMPONENTS_IN_FRAME;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.RESTART_INTERVAL;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SOS;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.WIDTH;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegValidator.CHANNEL_NAME;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegValidator.listToIntArray;
-import static io.parsingdata.metal.Shorthand.last;
-import static io.parsingdata.metal.Shorthand.ref;
-import static io.parsingdata.metal.Shorthand.rev;
-import static java.math.BigInteger.ONE;
-import static java.math.BigInteger.ZERO;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.EOF;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.HUFFMAN_AC;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.HUFFMAN_DC;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.OK;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.QUANTIZATION_ARRAY_SIZE;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.RESTART_MARKER;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.SOS_BLOCK;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegEntropyCodedBitStream.EOI;
 
 import java.io.IOException;
 import java.math.BigInteger;
-import java.util.BitSet;
 import java.util.Optional;
 
 import io.parsingdata.metal.data.ByteStream;
-import io.parsingdata.metal.data.Environment;
-import io.parsingdata.metal.data.ParseState;
-import io.parsingdata.metal.data.callback.Callbacks;
-import io.parsingdata.metal.encoding.Encoding;
 
 public class JpegBaseline {
 
-    private static String info = "";
-
     private JpegBaseline() {
     }
 
@@ -41,7 +29,7 @@ public class JpegBaseline {
      * @param input ByteStream to search
      * @return Offset where SOI marker (0xFFD8) is found
      */
-    private static long findJpegHeaderStart(ByteStream input) throws IOException {
+    static long findJpegHeaderStart(ByteStream input) throws IOException {
         // Search for SOI marker (0xFFD8) in first 100 bytes
         for (int i = 0; i < 100; i++) {
             if (input.isAvailable(BigInteger.valueOf(i), BigInteger.valueOf(2))) {
@@ -56,29 +44,23 @@ public class JpegBaseline {
         return 0; // Default to 0 if not found
     }
 
-    static JpegValidationResult validateBaselineScan(final JpegValidator validator, final ParseState headerState,
+    static JpegValidationResult validateBaselineScan(final JpegValidationContext context, final HeaderSegments header,
             final ByteStream input) throws IOException {
-        final Optional<ParseState> scanResult = SOS
-                .parse(new Environment(ParseState.createFromByteStream(input, headerState.offset),
-                        Callbacks.create().add(validator), Encoding.DEFAULT_ENCODING));
-        if (scanResult.isEmpty()) {
-            info = "SOSBlock";
-            return new JpegValidationResult(false, validator.reportedOffset, validator, info,
-                    validator.detectedFragmentPoints);
+        final Optional<HeaderSegments> scan = context.parseScan(input, header.offset);
+        if (scan.isEmpty()) {
+            return new JpegValidationResult(false, context.reportedOffset, context.validator,
+                    JpegDecodeError.describe(SOS_BLOCK.code()),
+                    context.detectedFragmentPoints, context.validator.config.fragmentMergeGap);
         }
-        return validateBaselineMcus(validator, headerState, scanResult.get(), input);
+        return validateBaselineMcus(context, header, scan.get(), input);
     }
 
-    private static JpegValidationResult validateBaselineMcus(final JpegValidator validator,
-            final ParseState headerState, final ParseState scanState, final ByteStream input) throws IOException {
-        final int height = last(ref(HEIGHT)).evalSingle(headerState, Encoding.DEFAULT_ENCODING).get().asNumeric()
-                .intValueExact();
-        final int width = last(ref(WIDTH)).evalSingle(headerState, Encoding.DEFAULT_ENCODING).get().asNumeric()
-                .intValueExact();
-        final int totalChannelCount = rev(ref(NUMBER_OF_IMAGE_COMPONENTS_IN_FRAME)).eval(headerState,
-                Encoding.DEFAULT_ENCODING).head.asNumeric().intValueExact();
-        final byte samplingFactors = rev(ref("sampling_factors")).eval(headerState, Encoding.DEFAULT_ENCODING).head
-                .value()[0];
+    private static JpegValidationResult validateBaselineMcus(final JpegValidationContext context,
+            final HeaderSegments header, final HeaderSegments scan, final ByteStream input) throws IOException {
+        final int height = header.frame.height;
+        final int width = header.frame.width;
+        final int totalChannelCount = header.frame.componentCount();
+        final int samplingFactors = header.frame.samplingFactors(0);
         final int mcuWidthFactor = totalChannelCount > 1 ? (samplingFactors >> 4) & 0x0F : 1; // If there's only one
                                                                                               // channel, it's
                                                                                               // grayscale, which
@@ -91,12 +73,18 @@ public class JpegBaseline {
         final int mcuCount = mcuHeight * mcuWidth;
         final int luminanceCountPerMcu = mcuWidthFactor * mcuHeightFactor; // Calculate the ratio of luminance vs.
                                                                            // chrominance values with subsampling
-        final int restartInterval = last(ref(RESTART_INTERVAL)).evalSingle(headerState, Encoding.DEFAULT_ENCODING)
-                .map(value -> value.asNumeric().intValueExact()).orElse(0);
-        validator.reportedOffset = scanState.offset;
-        final JpegEntropyCodedBitStream bitStream = new JpegEntropyCodedBitStream(input, validator.reportedOffset, 0);
-        final int[] tableSelectors = listToIntArray(
-                rev(ref(DC_AC_TABLE_SELECTOR)).eval(scanState, Encoding.DEFAULT_ENCODING));
+        final int restartInterval = scan.restartInterval(header.restartInterval(0));
+        context.reportedOffset = scan.offset;
+        int error = OK;
+        JpegEntropyCodedBitStream bitStream = new JpegEntropyCodedBitStream(input, BigInteger.valueOf(scan.offset), 0);
+        final int[] tableSelectors = scan.scan.tableSelectors();
+        final HuffmanTable[] dcTables = new HuffmanTable[totalChannelCount];
+        final HuffmanTable[] acTables = new HuffmanTable[totalChannelCount];
+        for (int channelIndex = 0; channelIndex < totalChannelCount; channelIndex++) {
+            dcTables[channelIndex] = context.huffmanTables.get(DC).get(tableSelectors[channelIndex] >>> 4);
+            acTables[channelIndex] = context.huffmanTables.get(AC).get(tableSelectors[channelIndex] & 0x0F);
+        }
+        final HuffmanTable recoveryTable = context.huffmanTables.get(DC).get(0);
 
         // FRAGMENT DETECTION: Detect JPEG header start and extend first fragment to
         // include it
@@ -104,13 +92,14 @@ public class JpegBaseline {
         long detectionStart = jpegHeaderStart;
         long entropyStart = bitStream.getOffset();
 
-        // Don't limit by MCU count - scan entire file to handle inserted noise
+        // Scan the entire file to handle inserted noise, but stop at the EOI after all MCUs of
+        // the image were seen
         System.out.println("\n=== Starting Fragment Detection (JPEG Rule-Based) ===");
         System.out.println("JPEG header (SOI) detected at byte: " + jpegHeaderStart);
         System.out.println("Detection starts from byte: " + detectionStart);
         System.out.println(
                 "Header region: [" + jpegHeaderStart + " - " + entropyStart + "] (will be included in first fragment)");
-        System.out.println("Scanning entire file to detect all fragments (no MCU limit)");
+        System.out.println("Scanning file to detect all fragments, until " + mcuCount + " MCUs are seen before an EOI");
 
         // STATE MACHINE: OUTSIDE_FRAGMENT ↔ INSIDE_FRAGMENT
         // OUTSIDE_FRAGMENT = scanning for next valid JPEG sequence
@@ -121,15 +110,68 @@ public class JpegBaseline {
         int consecutiveValidMCUs = 0;
         int mcusInCurrentFragment = 0;
         long firstConsecutiveValidMCUOffset = 0; // Track actual start of consecutive valid sequence
+        long resumedClusterStart = -1; // Cluster start that recovery resumed decoding in, for the next MCU
         boolean isFirstFragment = true; // Track if this is the first detected fragment
+        int fragmentMcus = 0; // MCUs in the fragments detected so far
+        long fragmentEntropyBytes = 0; // Entropy-coded bytes in the fragments detected so far
+        // Coarse-to-fine detection jumps over MCUs without decoding them, see JpegBlockScan#mcusBetween
+        long jumpedMcus = 0; // Estimated MCUs of the current fragment jumped over
+        long fragmentJumpedMcus = 0; // Estimated MCUs jumped over in the fragments detected so far
+        // Noise after a fragment may decode as a few valid MCUs before the rule break. Those end in the
+        // cluster the break is in, so the MCUs of the current run that end in earlier clusters are tracked.
+        long lastMcuCluster = -1; // Cluster the last valid MCU of the run ended in, -1 after MCUs were skipped
+        int mcusBeforeLastMcuCluster = 0; // MCUs of the run that ended before that cluster
+        int runPartialMcus = 0; // 1 if the run resumed after the rest of an MCU cut off at a cluster start
 
-        // Configuration thresholds
-        final int MIN_MCUS_TO_START_FRAGMENT = 2; // Need 2 consecutive valid MCUs to confirm fragment start (lowered
-                                                  // from 4)
-        final int MIN_FRAGMENT_LENGTH_BYTES = 1000; // Minimum bytes to consider a valid fragment (lowered from 5120)
+        // Configuration thresholds, see JpegDetectionConfig
+        final JpegDetectionConfig config = context.validator.config;
+        final int MIN_MCUS_TO_START_FRAGMENT = config.minMcusToStartFragment;
+        final int MIN_FRAGMENT_LENGTH_BYTES = config.minFragmentLengthBytes;
         // Max bytes to scan forward when trying to recover after an error.
-        // Here we allow recovery to pass through up to ~30KB of noise.
-        final int MAX_SINGLE_ERROR_RECOVERY = 30 * 1024; // 30KB
+        final int MAX_SINGLE_ERROR_RECOVERY = config.maxSingleErrorRecovery;
+        // Fragments consist of whole filesystem clusters, counted from the JPEG header. Recovery
+        // first tries to resume at the next cluster starts, with this many MCUs to confirm.
+        final int RECOVERY_CLUSTER_BYTES = config.clusterBytes;
+        final int CLUSTER_PROBE_MCUS = config.clusterProbeMcus;
+
+        // With restart markers, validate the restart intervals in parallel up front. The loop
+        // below skips over each valid interval it reaches while inside a fragment, and recovery
+        // jumps to the markers.
+        JpegRestartIntervals restartIntervals = null;
+        if (restartInterval > 0) {
+            restartIntervals = JpegRestartIntervals.validate(input, entropyStart, dcTables, acTables,
+                    luminanceCountPerMcu, restartInterval);
+            System.out.println("Validated " + restartIntervals.validatedCount() + " of "
+                    + restartIntervals.size() + " restart intervals in parallel");
+        }
+
+        // Classify the clusters after the headers in parallel as well: recovery jumps past the
+        // ones that are certainly noise instead of decoding through them.
+        final JpegNoiseBlocks noiseBlocks = JpegNoiseBlocks.classify(input, jpegHeaderStart, entropyStart,
+                RECOVERY_CLUSTER_BYTES);
+        System.out.println("Classified " + noiseBlocks.noiseCount() + " of " + noiseBlocks.size()
+                + " clusters as noise");
+
+        // Without them, decode chunks of the scan speculatively in parallel instead. The loop
+        // below skips ahead whenever it lands on an MCU boundary that such a decoder passed.
+        // Coarse-to-fine detection only probes the start of every cluster instead, and the loop
+        // jumps over runs of clusters where decoding resumes.
+        JpegSpeculativeScan speculativeScan = null;
+        JpegBlockScan blockScan = null;
+        if (restartInterval == 0 && config.coarseToFine) {
+            blockScan = JpegBlockScan.classify(input, jpegHeaderStart, entropyStart, RECOVERY_CLUSTER_BYTES,
+                    dcTables, acTables, luminanceCountPerMcu, CLUSTER_PROBE_MCUS, noiseBlocks);
+            System.out.println("Probed " + blockScan.size() + " clusters, decoding resumes in "
+                    + blockScan.continuousCount());
+        } else if (restartInterval == 0) {
+            speculativeScan = JpegSpeculativeScan.decode(input, entropyStart, dcTables, acTables,
+                    luminanceCountPerMcu);
+            if (speculativeScan != null) {
+                System.out.println("Decoded " + speculativeScan.size() + " chunks of entropy data speculatively");
+            }
+        }
+        CoarseJump coarseJump = null; // The last jump over continuous clusters, until it is confirmed.
+        long exactUntil = -1; // Bit position up to which decoding is exact again after a jump was undone.
 
         // Scan until we reach actual end of stream or EOI, not based on original MCU
         // count
@@ -138,57 +180,74 @@ public class JpegBaseline {
         while (!reachedEOI) {
             // Check for EOI marker before processing MCU
             try {
-                Optional<BitSet> peek = bitStream.peek(16);
-                if (peek.isPresent()) {
-                    byte[] bytes = peek.get().toByteArray();
-                    if (bytes.length >= 2) {
-                        int firstByte = bytes[0] & 0xFF;
-                        int secondByte = bytes[1] & 0xFF;
-
-                        if (firstByte == 0xFF && secondByte == 0xD9) {
-                            long eoiOffset = bitStream.getOffset();
-                            System.out.println("EOI marker found at offset " + eoiOffset
-                                    + " - treating as fragmentation boundary");
-
-                            // Close current fragment (if any)
-                            if (insideValidFragment) {
-                                long fragmentLength = lastValidMCUBoundary - fragmentStartOffset;
-                                if (fragmentLength >= MIN_FRAGMENT_LENGTH_BYTES) {
-                                    System.out.println(
-                                            "✓ FRAGMENT END before EOI at offset " + lastValidMCUBoundary +
-                                                    " (length: " + fragmentLength + " bytes, " +
-                                                    mcusInCurrentFragment + " MCUs decoded)");
-                                    validator.detectedFragmentPoints.add(BigInteger.valueOf(fragmentStartOffset));
-                                    validator.detectedFragmentPoints.add(BigInteger.valueOf(lastValidMCUBoundary));
-                                } else {
-                                    System.out.println("  Discarding short fragment (" + fragmentLength + " bytes)");
-                                }
-                                insideValidFragment = false;
-                                mcusInCurrentFragment = 0;
-                                consecutiveValidMCUs = 0;
-                                firstConsecutiveValidMCUOffset = 0;
-                            }
-
-                            // Skip the EOI marker bits (16 bits) so we don't see it again
-                            if (bitStream.getBitOffset() > 0) {
-                                bitStream.skip(8 - bitStream.getBitOffset());
-                            }
-                            bitStream.skip(16);
-
-                            // Try to recover / find more fragments after this EOI
-                            RecoveryResult recovery = attemptFragmentRecovery(
-                                    bitStream, input, validator, mcuIndex, restartInterval,
-                                    MAX_SINGLE_ERROR_RECOVERY);
-                            if (!recovery.success) {
-                                System.out.println("  No more valid JPEG sequences after EOI. Stopping detection.");
-                                break; // really done
-                            }
-
-                            System.out.println("  Resuming search after EOI at offset " + bitStream.getOffset());
-                            // Continue loop in OUTSIDE_FRAGMENT state
-                            continue;
+                if (bitStream.markerAhead() == EOI) {
+                    long eoiOffset = bitStream.getOffset();
+                    System.out.println("EOI marker found at offset " + eoiOffset
+                            + " - treating as fragmentation boundary");
+
+                    // Close current fragment (if any)
+                    if (insideValidFragment) {
+                        long fragmentLength = lastValidMCUBoundary - fragmentStartOffset;
+                        if (fragmentLength >= MIN_FRAGMENT_LENGTH_BYTES) {
+                            System.out.println(
+                                    "✓ FRAGMENT END before EOI at offset " + lastValidMCUBoundary +
+                                            " (length: " + fragmentLength + " bytes, " +
+                                            mcusInCurrentFragment + " MCUs decoded)");
+                            context.detectedFragmentPoints.add(fragmentStartOffset);
+                            context.detectedFragmentPoints.add(lastValidMCUBoundary);
+                            fragmentMcus += mcusInCurrentFragment + runPartialMcus;
+                            fragmentJumpedMcus += jumpedMcus;
+                            fragmentEntropyBytes += lastValidMCUBoundary - Math.max(fragmentStartOffset, entropyStart);
+                        } else {
+                            System.out.println("  Discarding short fragment (" + fragmentLength + " bytes)");
                         }
+                        insideValidFragment = false;
+                        mcusInCurrentFragment = 0;
+                        jumpedMcus = 0;
+                        consecutiveValidMCUs = 0;
+                        firstConsecutiveValidMCUOffset = 0;
+                    }
+
+                    // Every MCU of the image was seen, but for fewer than a fragment would need: whatever
+                    // follows the EOI is not part of it
+                    final long remainingBytes = estimateRemainingBytes(mcuCount, fragmentMcus + fragmentJumpedMcus,
+                            fragmentEntropyBytes);
+                    if (remainingBytes >= 0 && remainingBytes < Math.max(MIN_FRAGMENT_LENGTH_BYTES, 1)) {
+                        System.out.println("  All " + mcuCount + " MCUs seen before EOI, but for an estimated "
+                                + remainingBytes + " bytes. Stopping detection.");
+                        break;
+                    }
+
+                    // Skip the EOI marker bits (16 bits) so we don't see it again
+                    if (bitStream.getBitOffset() > 0) {
+                        bitStream.skipBits(8 - bitStream.getBitOffset());
+                    }
+                    bitStream.skipBits(16);
+
+                    // Try to recover / find more fragments after this EOI
+                    RecoveryResult recovery = attemptFragmentRecovery(bitStream, recoveryTable, dcTables,
+                            acTables, luminanceCountPerMcu, mcuIndex, restartInterval, consecutiveValidMCUs,
+                            MIN_MCUS_TO_START_FRAGMENT, MAX_SINGLE_ERROR_RECOVERY, jpegHeaderStart,
+                            RECOVERY_CLUSTER_BYTES, CLUSTER_PROBE_MCUS, noiseBlocks, restartIntervals);
+                    mcuIndex = recovery.anchoredMcuIndex >= 0 ? recovery.anchoredMcuIndex
+                            : mcuIndex + recovery.skippedMCUs;
+                    resumedClusterStart = recovery.clusterStart;
+                    if (recovery.skippedMCUs > 0) {
+                        consecutiveValidMCUs = 0;
+                        firstConsecutiveValidMCUOffset = 0;
+                    }
+                    if (recovery.lastValidMCUBoundary >= 0) {
+                        lastValidMCUBoundary = recovery.lastValidMCUBoundary;
+                        context.reportedOffset = recovery.reportedOffset;
+                    }
+                    if (!recovery.success) {
+                        System.out.println("  No more valid JPEG sequences after EOI. Stopping detection.");
+                        break; // really done
                     }
+
+                    System.out.println("  Resuming search after EOI at offset " + bitStream.getOffset());
+                    // Continue loop in OUTSIDE_FRAGMENT state
+                    continue;
                 }
             } catch (IOException e) {
                 // End of stream
@@ -197,41 +256,74 @@ public class JpegBaseline {
                 break;
             }
 
-            long offsetBeforeMCU = bitStream.getOffset();
-            boolean mcuValid = true;
+            // STATE: INSIDE_FRAGMENT at the start of a restart interval that was validated up front:
+            // every MCU in it is valid, so apply them at once.
+            if (restartIntervals != null && insideValidFragment && mcuIndex > 0 && mcuIndex % restartInterval == 0) {
+                final long intervalBits = restartIntervals.validatedBits(bitStream.getAlignedOffset(),
+                        0xD0 + ((mcuIndex / restartInterval) - 1) % 8);
+                if (intervalBits >= 0) {
+                    if (bitStream.getBitOffset() > 0) { // Align to next byte boundary, as the marker check does.
+                        bitStream.skipBits(8 - bitStream.getBitOffset());
+                    }
+                    bitStream.skipBits(intervalBits);
+                    lastValidMCUBoundary = bitStream.getOffset();
+                    consecutiveValidMCUs += restartInterval;
+                    mcusInCurrentFragment += restartInterval;
+                    lastMcuCluster = -1;
+                    mcusBeforeLastMcuCluster = mcusInCurrentFragment;
+                    context.reportedOffset = lastValidMCUBoundary + (bitStream.getBitOffset() > 0 ? 1 : 0);
+                    mcuIndex += restartInterval;
+                    continue;
+                }
+            }
 
-            // JPEG RULE CHECK 1: Validate restart marker if needed
-            if (!validateRestartMarker(bitStream, mcuIndex, restartInterval)) {
-                mcuValid = false;
+            // STATE: INSIDE_FRAGMENT on an MCU boundary a speculative decoder passed: every MCU
+            // up to the end of its segment is valid, so apply them at once.
+            if (speculativeScan != null && insideValidFragment) {
+                final int skippedMCUs = speculativeScan.skipSynchronized(bitStream);
+                if (skippedMCUs > 0) {
+                    lastValidMCUBoundary = bitStream.getOffset();
+                    consecutiveValidMCUs += skippedMCUs;
+                    mcusInCurrentFragment += skippedMCUs;
+                    lastMcuCluster = -1;
+                    mcusBeforeLastMcuCluster = mcusInCurrentFragment;
+                    context.reportedOffset = lastValidMCUBoundary + (bitStream.getBitOffset() > 0 ? 1 : 0);
+                    mcuIndex += skippedMCUs;
+                    continue;
+                }
             }
 
-            // JPEG RULE CHECK 2: Validate all channels in this MCU
-            // This checks: Huffman codes, RLE bounds, block structure
-            if (mcuValid) {
-                for (int channelIndex = 0; channelIndex < totalChannelCount && mcuValid; channelIndex++) {
-                    if (channelIndex == 0) {
-                        // Luminance channel
-                        for (int luminanceIndex = 0; luminanceIndex < luminanceCountPerMcu
-                                && mcuValid; luminanceIndex++) {
-                            if (!validateQuantizationArray("Luminance", bitStream,
-                                    validator.huffmanTables.get(DC).get(tableSelectors[channelIndex] >>> 4),
-                                    validator.huffmanTables.get(AC).get(tableSelectors[channelIndex] & 0x0F),
-                                    mcuIndex, mcuWidth)) {
-                                mcuValid = false;
-                            }
-                        }
-                    } else {
-                        // Chrominance channels
-                        if (!validateQuantizationArray(CHANNEL_NAME.get(channelIndex - 1), bitStream,
-                                validator.huffmanTables.get(DC).get(tableSelectors[channelIndex] >>> 4),
-                                validator.huffmanTables.get(AC).get(tableSelectors[channelIndex] & 0x0F),
-                                mcuIndex, mcuWidth)) {
-                            mcuValid = false;
-                        }
+            // STATE: INSIDE_FRAGMENT in coarse-to-fine detection: jump over the continuous clusters
+            // ahead, to where decoding resumed in the last one of them.
+            if (blockScan != null && insideValidFragment) {
+                final long bitPosition = bitStream.getBitPosition();
+                final long jumpTarget = bitPosition < exactUntil ? -1 : blockScan.jumpTarget(bitPosition);
+                if (jumpTarget >= 0) {
+                    coarseJump = new CoarseJump(bitPosition, 8 * blockScan.blockEnd(jumpTarget >>> 3),
+                            lastValidMCUBoundary, context.reportedOffset, mcusInCurrentFragment, mcuIndex, jumpedMcus);
+                    if (bitStream.skipToBitPosition(jumpTarget)) {
+                        System.out.println("  Jumped over continuous clusters from offset " + (bitPosition >>> 3)
+                                + " to " + bitStream.getOffset());
+                        lastValidMCUBoundary = bitStream.getOffset();
+                        context.reportedOffset = lastValidMCUBoundary + (bitStream.getBitOffset() > 0 ? 1 : 0);
+                        jumpedMcus += blockScan.mcusBetween(bitPosition, jumpTarget);
+                        lastMcuCluster = -1;
+                        mcusBeforeLastMcuCluster = mcusInCurrentFragment;
+                        continue;
                     }
+                    coarseJump = null;
                 }
             }
 
+            long offsetBeforeMCU = bitStream.getOffset();
+            final int bitOffsetBeforeMCU = bitStream.getBitOffset();
+            final long clusterStart = resumedClusterStart;
+            resumedClusterStart = -1;
+            // Resumed in a cluster: a restart marker due before this MCU was cut off with the data before it.
+            final int mcuError = validateMcu(bitStream, dcTables, acTables, luminanceCountPerMcu, mcuIndex,
+                    clusterStart >= 0 ? 0 : restartInterval);
+            boolean mcuValid = mcuError == OK;
+
             // STATE MACHINE: Handle MCU validation result
             if (mcuValid) {
                 // ✅ MCU SATISFIES JPEG RULES
@@ -240,7 +332,17 @@ public class JpegBaseline {
 
                 // Track the start of consecutive valid sequence
                 if (consecutiveValidMCUs == 0) {
-                    firstConsecutiveValidMCUOffset = offsetBeforeMCU;
+                    firstConsecutiveValidMCUOffset = clusterStart >= 0 ? clusterStart : offsetBeforeMCU;
+                }
+                final int mcusInRun = insideValidFragment ? mcusInCurrentFragment : consecutiveValidMCUs;
+                if (mcusInRun == 0) {
+                    runPartialMcus = clusterStart >= 0 && (offsetBeforeMCU > clusterStart || bitOffsetBeforeMCU > 0) ? 1 : 0;
+                }
+                final long mcuCluster = clusterIndex(offsetAfterMCU - (bitStream.getBitOffset() > 0 ? 0 : 1),
+                        jpegHeaderStart, RECOVERY_CLUSTER_BYTES);
+                if (mcusInRun == 0 || mcuCluster != lastMcuCluster) {
+                    lastMcuCluster = mcuCluster;
+                    mcusBeforeLastMcuCluster = mcusInRun;
                 }
                 consecutiveValidMCUs++;
 
@@ -270,6 +372,7 @@ public class JpegBaseline {
 
                         insideValidFragment = true;
                         mcusInCurrentFragment = consecutiveValidMCUs;
+                        jumpedMcus = 0;
                     }
                 } else {
                     // STATE: INSIDE_FRAGMENT
@@ -277,12 +380,35 @@ public class JpegBaseline {
                     mcusInCurrentFragment++;
                 }
 
-                validator.reportedOffset = BigInteger.valueOf(offsetAfterMCU)
-                        .add(bitStream.getBitOffset() > 0 ? ONE : ZERO);
+                context.reportedOffset = offsetAfterMCU + (bitStream.getBitOffset() > 0 ? 1 : 0);
 
             } else {
                 // ❌ JPEG RULE BREAK
                 // Invalid Huffman code, RLE overflow, block structure inconsistent, etc.
+                error = mcuError;
+
+                // A rule break before the end of the cluster jumped to: decoding did not resume
+                // in sync there after all. Undo the jump and decode exactly up to that point.
+                if (coarseJump != null && insideValidFragment) {
+                    final long failurePosition = bitStream.getBitPosition();
+                    if (failurePosition >= 0 && failurePosition < coarseJump.confirmPosition) {
+                        System.out.println("  Undoing jump: rule break at offset " + (failurePosition >>> 3)
+                                + " in a continuous cluster");
+                        bitStream = new JpegEntropyCodedBitStream(input, BigInteger.valueOf(coarseJump.fromPosition >>> 3),
+                                (int) (coarseJump.fromPosition & 7));
+                        lastValidMCUBoundary = coarseJump.lastValidMCUBoundary;
+                        context.reportedOffset = coarseJump.reportedOffset;
+                        mcusInCurrentFragment = coarseJump.mcusInCurrentFragment;
+                        jumpedMcus = coarseJump.jumpedMcus;
+                        lastMcuCluster = -1;
+                        mcusBeforeLastMcuCluster = mcusInCurrentFragment;
+                        mcuIndex = coarseJump.mcuIndex;
+                        exactUntil = coarseJump.confirmPosition;
+                        coarseJump = null;
+                        continue;
+                    }
+                }
+                coarseJump = null;
 
                 if (insideValidFragment) {
                     // STATE: INSIDE_FRAGMENT
@@ -298,8 +424,23 @@ public class JpegBaseline {
                                 mcusInCurrentFragment + " MCUs decoded)");
                         System.out.println("  Reason: JPEG rule break at offset " + offsetBeforeMCU);
 
-                        validator.detectedFragmentPoints.add(BigInteger.valueOf(fragmentStartOffset));
-                        validator.detectedFragmentPoints.add(BigInteger.valueOf(fragmentEndOffset));
+                        context.detectedFragmentPoints.add(fragmentStartOffset);
+                        context.detectedFragmentPoints.add(fragmentEndOffset);
+                        fragmentJumpedMcus += jumpedMcus;
+                        if (RECOVERY_CLUSTER_BYTES > 0) {
+                            // The fragment most likely ends at the start of the cluster the rule broke in. Count
+                            // the MCUs that end before it, not the ones decoded in the noise. The MCU cut off
+                            // there is counted by the fragment that goes on with it.
+                            final long breakCluster = clusterIndex(bitStream.getOffset(), jpegHeaderStart,
+                                    RECOVERY_CLUSTER_BYTES);
+                            fragmentMcus += (lastMcuCluster == breakCluster ? mcusBeforeLastMcuCluster
+                                    : mcusInCurrentFragment) + runPartialMcus;
+                            final long breakClusterStart = jpegHeaderStart + breakCluster * RECOVERY_CLUSTER_BYTES;
+                            fragmentEntropyBytes += Math.max(breakClusterStart - Math.max(fragmentStartOffset, entropyStart), 0);
+                        } else {
+                            fragmentMcus += mcusInCurrentFragment + runPartialMcus;
+                            fragmentEntropyBytes += fragmentEndOffset - Math.max(fragmentStartOffset, entropyStart);
+                        }
                     } else {
                         System.out.println("  Discarding short fragment (" + fragmentLength + " bytes, " +
                                 mcusInCurrentFragment + " MCUs) - below minimum threshold");
@@ -308,6 +449,7 @@ public class JpegBaseline {
                     // TRANSITION: INSIDE_FRAGMENT → OUTSIDE_FRAGMENT
                     insideValidFragment = false;
                     mcusInCurrentFragment = 0;
+                    jumpedMcus = 0;
                 }
 
                 // Reset consecutive counter - need new valid sequence to start next fragment
@@ -317,9 +459,17 @@ public class JpegBaseline {
                 // CONTINUE SEARCHING: Scan forward from failure point to find next valid JPEG
                 // sequence
                 // This implements the "continuing to search for more fragments" requirement
-                RecoveryResult recovery = attemptFragmentRecovery(bitStream, input, validator,
-                        mcuIndex, restartInterval,
-                        MAX_SINGLE_ERROR_RECOVERY);
+                RecoveryResult recovery = attemptFragmentRecovery(bitStream, recoveryTable, dcTables, acTables,
+                        luminanceCountPerMcu, mcuIndex + 1, restartInterval, consecutiveValidMCUs,
+                        MIN_MCUS_TO_START_FRAGMENT, MAX_SINGLE_ERROR_RECOVERY, jpegHeaderStart,
+                        RECOVERY_CLUSTER_BYTES, CLUSTER_PROBE_MCUS, noiseBlocks, restartIntervals);
+                mcuIndex = recovery.anchoredMcuIndex >= 0 ? recovery.anchoredMcuIndex - 1 // Incremented below
+                        : mcuIndex + recovery.skippedMCUs;
+                resumedClusterStart = recovery.clusterStart;
+                if (recovery.lastValidMCUBoundary >= 0) {
+                    lastValidMCUBoundary = recovery.lastValidMCUBoundary;
+                    context.reportedOffset = recovery.reportedOffset;
+                }
                 if (!recovery.success) {
                     // No more valid JPEG data found - stop
                     System.out.println("  No more valid JPEG sequences found. Stopping detection.");
@@ -344,21 +494,23 @@ public class JpegBaseline {
                 System.out.println("✓ FINAL FRAGMENT END at offset " + lastValidMCUBoundary +
                         " (length: " + fragmentLength + " bytes, " +
                         mcusInCurrentFragment + " MCUs decoded)");
-                validator.detectedFragmentPoints.add(BigInteger.valueOf(fragmentStartOffset));
-                validator.detectedFragmentPoints.add(BigInteger.valueOf(lastValidMCUBoundary));
+                context.detectedFragmentPoints.add(fragmentStartOffset);
+                context.detectedFragmentPoints.add(lastValidMCUBoundary);
+                fragmentMcus += mcusInCurrentFragment + runPartialMcus;
+                fragmentJumpedMcus += jumpedMcus;
+                fragmentEntropyBytes += lastValidMCUBoundary - Math.max(fragmentStartOffset, entropyStart);
             } else {
                 System.out.println("  Discarding final short fragment (" + fragmentLength + " bytes)");
             }
         }
 
         // Final validation
-        if (validateRestartMarker(bitStream, mcuCount, restartInterval)) {
-            validator.reportedOffset = BigInteger.valueOf(bitStream.getOffset())
-                    .add(bitStream.getBitOffset() > 0 ? ONE : ZERO);
-            info = "";
+        error = validateRestartMarker(bitStream, mcuCount, restartInterval);
+        if (error == OK) {
+            context.reportedOffset = bitStream.getOffset() + (bitStream.getBitOffset() > 0 ? 1 : 0);
         }
 
-        int numFragments = validator.detectedFragmentPoints.size() / 2;
+        int numFragments = context.detectedFragmentPoints.size() / 2;
         System.out.println("\n=== Fragment Detection Complete ===");
         System.out.println("Detection range: [0 - " + bitStream.getOffset() + "]");
         System.out.println("  - Header fragment: [0 - " + entropyStart + "] (no decoding)");
@@ -366,8 +518,56 @@ public class JpegBaseline {
                 "  - Entropy fragments: [" + entropyStart + " - " + bitStream.getOffset() + "] (Huffman decoded)");
         System.out.println("Total valid fragments detected: " + numFragments);
         System.out.println("Fragments represent continuous regions satisfying JPEG structure");
-        return new JpegValidationResult(true, validator.reportedOffset, validator, info,
-                validator.detectedFragmentPoints);
+        final long estimatedRemainingBytes = estimateRemainingBytes(mcuCount, fragmentMcus + fragmentJumpedMcus,
+                fragmentEntropyBytes);
+        System.out.println("MCUs in fragments: " + fragmentMcus + " of " + mcuCount + " decoded, an estimated "
+                + fragmentJumpedMcus + " jumped over, estimated "
+                + estimatedRemainingBytes + " bytes unaccounted for");
+        return new JpegValidationResult(true, context.reportedOffset, context.validator,
+                JpegDecodeError.describe(error), context.detectedFragmentPoints, config.fragmentMergeGap,
+                estimatedRemainingBytes);
+    }
+
+    /**
+     * @return the index of the cluster the file offset is in, counted from the origin, or 0 without clusters
+     */
+    private static long clusterIndex(final long offset, final long clusterOrigin, final int clusterBytes) {
+        return clusterBytes > 0 ? Math.max(offset - clusterOrigin, 0) / clusterBytes : 0;
+    }
+
+    /**
+     * @return the number of entropy-coded bytes the MCUs that are not in any fragment take, at the average size of
+     *         the ones that are, or -1 if there are none to average
+     */
+    static long estimateRemainingBytes(final int mcuCount, final long fragmentMcus, final long fragmentEntropyBytes) {
+        if (fragmentMcus <= 0) {
+            return -1;
+        }
+        return Math.max(mcuCount - fragmentMcus, 0) * fragmentEntropyBytes / fragmentMcus;
+    }
+
+    /**
+     * State of the loop before a jump over continuous clusters, to undo it
+     */
+    private static class CoarseJump {
+        final long fromPosition;
+        final long confirmPosition; // Bit position at the end of the cluster jumped to.
+        final long lastValidMCUBoundary;
+        final long reportedOffset;
+        final int mcusInCurrentFragment;
+        final int mcuIndex;
+        final long jumpedMcus;
+
+        CoarseJump(long fromPosition, long confirmPosition, long lastValidMCUBoundary, long reportedOffset,
+                int mcusInCurrentFragment, int mcuIndex, long jumpedMcus) {
+            this.fromPosition = fromPosition;
+            this.confirmPosition = confirmPosition;
+            this.lastValidMCUBoundary = lastValidMCUBoundary;
+            this.reportedOffset = reportedOffset;
+            this.mcusInCurrentFragment = mcusInCurrentFragment;
+            this.mcuIndex = mcuIndex;
+            this.jumpedMcus = jumpedMcus;
+        }
     }
 
     /**
@@ -377,11 +577,33 @@ public class JpegBaseline {
         final boolean success;
         final boolean foundValidData;
         final long recoveryOffset;
+        final int skippedMCUs; // MCUs the state machine would have tried and given up on along the way
+        final long lastValidMCUBoundary; // End of the last valid one of those, -1 if there is none
+        final long reportedOffset;
+        final long clusterStart; // Start of the cluster decoding resumes in, -1 if not at a cluster start
+        final int anchoredMcuIndex; // Index of the MCU decoding resumes with, -1 if it is not known
+
+        RecoveryResult(boolean success, boolean foundValidData, long recoveryOffset, int skippedMCUs,
+                long lastValidMCUBoundary, long reportedOffset) {
+            this(success, foundValidData, recoveryOffset, skippedMCUs, lastValidMCUBoundary, reportedOffset, -1);
+        }
+
+        RecoveryResult(boolean success, boolean foundValidData, long recoveryOffset, int skippedMCUs,
+                long lastValidMCUBoundary, long reportedOffset, long clusterStart) {
+            this(success, foundValidData, recoveryOffset, skippedMCUs, lastValidMCUBoundary, reportedOffset,
+                    clusterStart, -1);
+        }
 
-        RecoveryResult(boolean success, boolean foundValidData, long recoveryOffset) {
+        RecoveryResult(boolean success, boolean foundValidData, long recoveryOffset, int skippedMCUs,
+                long lastValidMCUBoundary, long reportedOffset, long clusterStart, int anchoredMcuIndex) {
             this.success = success;
             this.foundValidData = foundValidData;
             this.recoveryOffset = recoveryOffset;
+            this.skippedMCUs = skippedMCUs;
+            this.lastValidMCUBoundary = lastValidMCUBoundary;
+            this.reportedOffset = reportedOffset;
+            this.clusterStart = clusterStart;
+            this.anchoredMcuIndex = anchoredMcuIndex;
         }
     }
 
@@ -391,192 +613,443 @@ public class JpegBaseline {
      * Implements "continuing to search for more fragments" requirement
      * 
      * Strategy:
+     * - With restart markers, jump to the next one, or to a cluster start before it from which
+     *   decoding reaches it in sync, and re-anchor the MCU index on its sequence number
+     * - Without restart markers, first probe the next cluster starts (see probeClusters)
+     * - Jump past clusters that are certainly noise (see JpegNoiseBlocks)
      * - Scan byte-by-byte from current position
      * - Look for JPEG markers (RST, EOI, byte-stuffing patterns)
-     * - Try decoding Huffman symbols to confirm valid JPEG data
+     * - Prefilter: the DC table must match a difference at one of the 8 bit phases of the
+     *   byte, a single table lookup each on bits already in the bit reader's 64-bit window
+     * - Only then trial decode MCUs from there on a fork of the stream, as the state machine
+     *   would. If they break the rules before a fragment could start, the state machine would
+     *   only recover again from where decoding failed: do that right here, and report the
+     *   MCUs it would have tried in the result
      * - Return success if valid sequence found, allowing state machine to continue
      */
-    private static RecoveryResult attemptFragmentRecovery(JpegEntropyCodedBitStream bitStream, ByteStream input,
-            JpegValidator validator, int currentMcu, int restartInterval, int maxScanBytes) throws IOException {
-        long startOffset = bitStream.getOffset();
+    private static RecoveryResult attemptFragmentRecovery(JpegEntropyCodedBitStream bitStream, HuffmanTable dcTable,
+            HuffmanTable[] dcTables, HuffmanTable[] acTables, int luminanceCountPerMcu, int nextMcuIndex,
+            int restartInterval, int consecutiveValidMCUs, int minMcusToStartFragment, int maxScanBytes,
+            long clusterOrigin, int clusterBytes, int clusterProbeMcus, JpegNoiseBlocks noiseBlocks,
+            JpegRestartIntervals restartMarkers) throws IOException {
+        int skippedMCUs = 0;
+        long lastValidMCUBoundary = -1;
+        long reportedOffset = -1;
 
         // Align to byte boundary first
         if (bitStream.getBitOffset() > 0) {
-            bitStream.skip(8 - bitStream.getBitOffset());
+            bitStream.skipBits(8 - bitStream.getBitOffset());
         }
 
         System.out.println(
                 "  Recovery: Scanning from offset " + bitStream.getOffset() + " for valid JPEG entropy data...");
 
+        final long scanStart = bitStream.getAlignedOffset();
+        final int nextRestart = restartInterval > 0 && scanStart >= 0 ? restartMarkers.nextMarker(scanStart) : -1;
+        if (nextRestart >= 0 && restartMarkers.markerOffset(nextRestart) < scanStart + maxScanBytes
+                && !bitStream.eoiBefore(restartMarkers.markerOffset(nextRestart))) {
+            final long markerOffset = restartMarkers.markerOffset(nextRestart);
+            long resumePosition = 8 * markerOffset;
+            int mcusBeforeMarker = 0;
+            long clusterStart = -1;
+            for (long cluster = scanStart < clusterOrigin || clusterBytes <= 0 ? markerOffset
+                    : clusterOrigin + ((scanStart - clusterOrigin) / clusterBytes + 1) * clusterBytes;
+                    cluster < markerOffset; cluster += clusterBytes) {
+                if (noiseBlocks.isNoise(cluster)) {
+                    continue;
+                }
+                final long position = probeCluster(bitStream, cluster, dcTables, acTables, luminanceCountPerMcu,
+                        clusterProbeMcus, restartInterval);
+                final int mcus = position < 0 ? -1 : mcusBeforeMarker(bitStream, position, markerOffset, dcTables,
+                        acTables, luminanceCountPerMcu, restartInterval);
+                if (mcus >= 0) {
+                    resumePosition = position;
+                    mcusBeforeMarker = mcus;
+                    clusterStart = cluster;
+                    break;
+                }
+            }
+            // The marker precedes MCU n * restartInterval, for the first n from here on that fits its sequence number
+            int interval = Math.max((nextMcuIndex + mcusBeforeMarker + restartInterval - 1) / restartInterval, 1);
+            while ((interval - 1) % 8 != restartMarkers.markerSequence(nextRestart)) {
+                interval++;
+            }
+            final int anchoredMcuIndex = interval * restartInterval - mcusBeforeMarker;
+            if (bitStream.skipToBitPosition(resumePosition)) {
+                System.out.println("  Recovery SUCCESS: Restart marker RST" + restartMarkers.markerSequence(nextRestart)
+                        + " at offset " + markerOffset + ", resuming at offset " + bitStream.getOffset()
+                        + " with MCU " + anchoredMcuIndex);
+                return new RecoveryResult(true, true, bitStream.getOffset(), 0, -1, -1, clusterStart,
+                        anchoredMcuIndex);
+            }
+        }
+
+        if (restartInterval == 0 && clusterBytes > 0) {
+            final long resumePosition = probeClusters(bitStream, dcTables, acTables, luminanceCountPerMcu,
+                    clusterOrigin, clusterBytes, clusterProbeMcus, maxScanBytes, noiseBlocks);
+            final long clusterStart = resumePosition < 0 ? -1
+                    : clusterOrigin + ((resumePosition >>> 3) - clusterOrigin) / clusterBytes * clusterBytes;
+            if (resumePosition >= 0 && bitStream.skipToBitPosition(resumePosition)) {
+                System.out.println("  Recovery SUCCESS: Decoded " + clusterProbeMcus + " MCUs in cluster at "
+                        + clusterStart + ", first MCU boundary at offset " + bitStream.getOffset());
+                return new RecoveryResult(true, true, bitStream.getOffset(), 0, -1, -1, clusterStart);
+            }
+        }
+
         // Scan byte-by-byte looking for a position where we can successfully decode
         for (int byteOffset = 0; byteOffset < maxScanBytes; byteOffset++) {
-            try {
-                long currentOffset = bitStream.getOffset();
-
-                // Strategy 1: Check for JPEG markers first (fastest detection)
-                Optional<BitSet> peek = bitStream.peek(16);
-                if (peek.isPresent()) {
-                    byte[] markerBytes = peek.get().toByteArray();
-                    if (markerBytes.length >= 2) {
-                        int firstByte = markerBytes[0] & 0xFF;
-                        int secondByte = markerBytes[1] & 0xFF;
-
-                        // Check for markers
-                        if (firstByte == 0xFF && secondByte != 0x00) {
-                            boolean isRestartMarker = (secondByte >= 0xD0 && secondByte <= 0xD7);
-                            boolean isEOI = (secondByte == 0xD9);
-
-                            // Restart marker found (if image uses them)
-                            if (isRestartMarker && restartInterval > 0) {
-                                System.out.println("  Recovery SUCCESS: Restart marker at offset " + currentOffset);
-                                return new RecoveryResult(true, true, currentOffset);
-                            }
-
-                            // EOI marker - treat as end-of-entropy, not a new start
-                            if (isEOI) {
-                                System.out.println(
-                                        "  Recovery: EOI at offset " + currentOffset + " (end of entropy region)");
-                                // Do NOT return success here; EOI is not a valid recovery point
-                                return new RecoveryResult(false, false, currentOffset);
-                            }
-                        }
-
-                        // Strategy 2: For byte-stuffed data, 0xFF00 indicates escaped 0xFF in valid
-                        // entropy data
-                        // This is a strong signal that we're back in valid JPEG entropy coding
-                        if (firstByte == 0xFF && secondByte == 0x00) {
-                            System.out.println(
-                                    "  Recovery SUCCESS: Found byte-stuffed 0xFF00 at offset " + currentOffset);
-                            return new RecoveryResult(true, true, currentOffset);
-                        }
-                    }
+            // Noise: continue after its cluster, which holds no markers either
+            final long offset = bitStream.getAlignedOffset();
+            if (offset >= 0 && noiseBlocks.isNoise(offset)) {
+                final long blockEnd = noiseBlocks.blockEnd(offset);
+                if (!bitStream.skipToBitPosition(8 * blockEnd)) {
+                    System.out.println("  Recovery FAILED: End of stream reached");
+                    return new RecoveryResult(false, false, bitStream.getOffset(), skippedMCUs, lastValidMCUBoundary,
+                            reportedOffset);
                 }
+                byteOffset += (int) (blockEnd - offset) - 1;
+                continue;
+            }
 
-                // Strategy 3: Try to decode Huffman DC symbol at this position
-                // If we can decode successfully, we've found valid data
-                try {
-                    // Attempt to decode a DC coefficient using luminance DC table
-                    HuffmanTable dcTable = validator.huffmanTables.get(DC).get(0);
-                    if (dcTable != null) {
-                        // Try to match a Huffman code at current position
-                        Optional<BitSet> testData = bitStream.peek(dcTable.maxCodeLength);
-                        if (testData.isPresent()) {
-                            Optional<MatchResult> matchResult = dcTable.findShortestMatch(testData.get());
-                            if (matchResult.isPresent()) {
-                                // Successfully matched a Huffman code!
-                                int symbol = matchResult.get().symbol;
-                                // Valid DC symbol should be 0-15 (magnitude category)
-                                if (symbol >= 0 && symbol <= 15) {
-                                    // Check if we can read the magnitude bits too
-                                    int bitsNeeded = matchResult.get().bitsMatched + symbol;
-                                    Optional<BitSet> fullData = bitStream.peek(bitsNeeded);
-                                    if (fullData.isPresent()) {
-                                        // Successfully decoded complete DC coefficient!
-                                        System.out.println(
-                                                "  Recovery SUCCESS: Decoded valid Huffman DC symbol at offset "
-                                                        + currentOffset);
-                                        return new RecoveryResult(true, true, currentOffset);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    // Decode failed at this position, continue scanning
-                }
+            // Strategy 1: Check for JPEG markers first (fastest detection)
+            final int marker = bitStream.markerAhead();
 
-                // Move forward one byte and try again
-                bitStream.skip(8);
+            // Restart marker found (if image uses them)
+            if (marker >= 0xD0 && marker <= 0xD7 && restartInterval > 0) {
+                System.out.println("  Recovery SUCCESS: Restart marker at offset " + bitStream.getOffset());
+                return new RecoveryResult(true, true, bitStream.getOffset(), skippedMCUs, lastValidMCUBoundary,
+                        reportedOffset);
+            }
 
-            } catch (IOException e) {
+            // EOI marker - treat as end-of-entropy, not a new start
+            if (marker == EOI) {
+                System.out.println(
+                        "  Recovery: EOI at offset " + bitStream.getOffset() + " (end of entropy region)");
+                // Do NOT return success here; EOI is not a valid recovery point
+                return new RecoveryResult(false, false, bitStream.getOffset(), skippedMCUs, lastValidMCUBoundary,
+                        reportedOffset);
+            }
+
+            // Strategy 2: For byte-stuffed data, 0xFF00 indicates escaped 0xFF in valid
+            // entropy data
+            // This is a strong signal that we're back in valid JPEG entropy coding
+            if (marker == JpegEntropyCodedBitStream.NO_MARKER && bitStream.peekBits(16) == 0xFF00) {
+                System.out.println(
+                        "  Recovery SUCCESS: Found byte-stuffed 0xFF00 at offset " + bitStream.getOffset());
+                return new RecoveryResult(true, true, bitStream.getOffset(), skippedMCUs, lastValidMCUBoundary,
+                        reportedOffset);
+            }
+
+            // Strategy 3: Try to decode Huffman DC symbol at this byte, at each of its bit phases
+            // If we can decode successfully, we've found valid data
+            final ResyncTrial trial = dcTable == null ? null : resync(bitStream, dcTable, dcTables, acTables,
+                    luminanceCountPerMcu, nextMcuIndex + skippedMCUs, restartInterval,
+                    minMcusToStartFragment - consecutiveValidMCUs, clusterProbeMcus);
+            if (trial != null && trial.resumes) { // A fragment starts or an EOI follows: up to the state machine
+                bitStream.skipBits(trial.phase);
+                System.out.println("  Recovery SUCCESS: Decoded valid Huffman DC symbol at offset "
+                        + bitStream.getOffset() + ", bit " + trial.phase + " (after " + skippedMCUs
+                        + " MCUs that break the rules)");
+                return new RecoveryResult(true, true, bitStream.getOffset(), skippedMCUs, lastValidMCUBoundary,
+                        reportedOffset);
+            }
+            if (trial != null) {
+                // The state machine would give up on these MCUs and recover from where decoding failed
+                skippedMCUs += trial.validMCUs + 1;
+                consecutiveValidMCUs = 0;
+                if (trial.validMCUs > 0) {
+                    lastValidMCUBoundary = trial.lastValidMCUBoundary;
+                    reportedOffset = trial.reportedOffset;
+                }
+                bitStream.skipBits(trial.stream.getBitsRead() - bitStream.getBitsRead());
+                if (bitStream.getBitOffset() > 0) {
+                    bitStream.skipBits(8 - bitStream.getBitOffset());
+                }
+                byteOffset = -1; // That is a new recovery, with its own scan limit
+                continue;
+            }
+
+            // Move forward one byte and try again
+            if (!bitStream.skipBits(8)) {
                 // Reached end of stream
                 System.out.println("  Recovery FAILED: End of stream reached");
-                return new RecoveryResult(false, false, bitStream.getOffset());
+                return new RecoveryResult(false, false, bitStream.getOffset(), skippedMCUs, lastValidMCUBoundary,
+                        reportedOffset);
             }
         }
 
         System.out.println("  Recovery FAILED: No valid data found within " + maxScanBytes + " bytes");
-        return new RecoveryResult(false, false, bitStream.getOffset());
+        return new RecoveryResult(false, false, bitStream.getOffset(), skippedMCUs, lastValidMCUBoundary,
+                reportedOffset);
+    }
+
+    /**
+     * Outcome of decoding MCUs from one bit phase of a recovery candidate
+     */
+    private static class ResyncTrial {
+        final JpegEntropyCodedBitStream stream; // Stopped where decoding failed or ended.
+        final int phase;
+        final int validMCUs;
+        final boolean resumes; // Enough MCUs decode to start a fragment, or an EOI follows them.
+        final long lastValidMCUBoundary;
+        final long reportedOffset;
+
+        ResyncTrial(JpegEntropyCodedBitStream stream, int phase, int validMCUs, boolean resumes,
+                long lastValidMCUBoundary, long reportedOffset) {
+            this.stream = stream;
+            this.phase = phase;
+            this.validMCUs = validMCUs;
+            this.resumes = resumes;
+            this.lastValidMCUBoundary = lastValidMCUBoundary;
+            this.reportedOffset = reportedOffset;
+        }
+    }
+
+    /**
+     * Resynchronization at the byte the bit stream is aligned to. Decoding may resume at any of
+     * its 8 bit phases: the bits for all of them come from a single peek into the bit reader's
+     * 64-bit window, and one lookup per phase in the DC table tells whether a difference starts
+     * there. Only those phases are decoded, on forks of the stream, as the state machine would,
+     * until the MCUs needed to start a fragment and at least resyncMcus MCUs decode.
+     *
+     * @return the phase that resumes with the longest run of valid MCUs or, if none resumes, the
+     *         one with the longest run; null if no DC difference starts at any phase
+     */
+    private static ResyncTrial resync(JpegEntropyCodedBitStream bitStream, HuffmanTable dcTable,
+            HuffmanTable[] dcTables, HuffmanTable[] acTables, int luminanceCountPerMcu, int mcuIndex,
+            int restartInterval, int neededMCUs, int resyncMcus) throws IOException {
+        final int bits = bitStream.peekBits(dcTable.maxCodeLength + 7);
+        ResyncTrial best = null;
+        for (int phase = 0; bits >= 0 && phase < 8; phase++) {
+            if (!dcTable.mayStartDifference((bits >>> (7 - phase)) & ((1 << dcTable.maxCodeLength) - 1))) {
+                continue;
+            }
+            final JpegEntropyCodedBitStream trial = bitStream.fork();
+            trial.skipBits(phase);
+            // Check if we can read the magnitude bits too
+            final int matchResult = dcTable.decode(trial.peekBits(dcTable.maxCodeLength));
+            if (trial.peekBits(HuffmanTable.matchLength(matchResult) + HuffmanTable.matchSymbol(matchResult)) < 0) {
+                continue;
+            }
+            int validMCUs = 0;
+            int trialError = OK;
+            long lastValidMCUBoundary = -1;
+            long reportedOffset = -1;
+            while (validMCUs < Math.max(neededMCUs, resyncMcus) && trial.markerAhead() != EOI) {
+                trialError = validateMcu(trial, dcTables, acTables, luminanceCountPerMcu, mcuIndex + validMCUs,
+                        restartInterval);
+                if (trialError != OK) {
+                    break;
+                }
+                validMCUs++;
+                lastValidMCUBoundary = trial.getOffset();
+                reportedOffset = lastValidMCUBoundary + (trial.getBitOffset() > 0 ? 1 : 0);
+            }
+            final boolean resumes = trialError == OK || validMCUs >= neededMCUs;
+            if (best == null || (resumes && !best.resumes)
+                    || (resumes == best.resumes && validMCUs > best.validMCUs)) {
+                best = new ResyncTrial(trial, phase, validMCUs, resumes, lastValidMCUBoundary, reportedOffset);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Valid data most likely resumes at the start of a cluster, somewhere in the middle of an
+     * MCU: at an unknown bit of an unknown block. The next cluster starts within the scan
+     * limit are probed (see probeCluster) in order. Clusters that are certainly noise and
+     * clusters past an EOI marker are not probed.
+     *
+     * @return the bit position (see {@link JpegEntropyCodedBitStream#getBitPosition()}) of the first MCU
+     *         boundary after the cluster start decoding resumes at, or -1
+     */
+    private static long probeClusters(JpegEntropyCodedBitStream bitStream, HuffmanTable[] dcTables,
+            HuffmanTable[] acTables, int luminanceCountPerMcu, long clusterOrigin, int clusterBytes, int probeMcus,
+            int maxScanBytes, JpegNoiseBlocks noiseBlocks) throws IOException {
+        final long scanStart = bitStream.getAlignedOffset();
+        if (scanStart < clusterOrigin) {
+            return -1;
+        }
+        for (long clusterStart = clusterOrigin + ((scanStart - clusterOrigin) / clusterBytes + 1) * clusterBytes;
+                clusterStart < scanStart + maxScanBytes; clusterStart += clusterBytes) {
+            if (noiseBlocks.isNoise(clusterStart)) {
+                continue;
+            }
+            final JpegEntropyCodedBitStream probe = bitStream.fork();
+            if (!probe.skipToBitPosition(8 * clusterStart) || probe.eoiBefore(clusterStart)) {
+                return -1;
+            }
+            final long resumePosition = probeCluster(bitStream, clusterStart, dcTables, acTables,
+                    luminanceCountPerMcu, probeMcus, 0);
+            if (resumePosition >= 0) {
+                return resumePosition;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Every bit of the first byte of the cluster and every block of the MCU is tried as the place
+     * decoding resumes, until the rest of that MCU and the given number of MCUs after it decode.
+     * Only the structure of the codes is validated, so the unknown DC predictor does not matter.
+     * The MCU index is not needed either: with restart markers, decoding stops at the next one,
+     * which may well come before the given number of MCUs.
+     *
+     * @param bitStream a stream at or before the cluster start, which is only read through forks
+     * @return the bit position (see {@link JpegEntropyCodedBitStream#getBitPosition()}) of the first MCU
+     *         boundary after the cluster start decoding resumes at, or -1
+     */
+    static long probeCluster(JpegEntropyCodedBitStream bitStream, long clusterStart, HuffmanTable[] dcTables,
+            HuffmanTable[] acTables, int luminanceCountPerMcu, int probeMcus, int restartInterval) throws IOException {
+        final int blocksPerMcu = luminanceCountPerMcu + dcTables.length - 1;
+        for (int phase = 0; phase < 8; phase++) {
+            for (int firstBlock = 0; firstBlock < blocksPerMcu; firstBlock++) {
+                final JpegEntropyCodedBitStream trial = bitStream.fork();
+                if (!trial.skipToBitPosition(8 * clusterStart + phase)) {
+                    return -1;
+                }
+                if (firstBlock > 0 && (trial.markerAhead() == EOI
+                        || validateBlocks(trial, dcTables, acTables, luminanceCountPerMcu, firstBlock) != OK)) {
+                    continue;
+                }
+                final long resumePosition = trial.getBitPosition();
+                int validMCUs = 0;
+                int marker = trial.markerAhead();
+                while (validMCUs < probeMcus && marker != EOI
+                        && (restartInterval == 0 || marker == JpegEntropyCodedBitStream.NO_MARKER)
+                        && validateMcu(trial, dcTables, acTables, luminanceCountPerMcu, 0, 0) == OK) {
+                    validMCUs++;
+                    marker = trial.markerAhead();
+                }
+                if (resumePosition >= 0 && (validMCUs == probeMcus
+                        || (restartInterval > 0 && validMCUs > 0 && marker >= 0xD0 && marker <= 0xD7))) {
+                    return resumePosition;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of MCUs that decode from the bit position up to the restart marker at the file offset,
+     *         at most a restart interval, or -1 if decoding does not get there
+     */
+    private static int mcusBeforeMarker(JpegEntropyCodedBitStream bitStream, long bitPosition, long markerOffset,
+            HuffmanTable[] dcTables, HuffmanTable[] acTables, int luminanceCountPerMcu, int restartInterval)
+            throws IOException {
+        final JpegEntropyCodedBitStream trial = bitStream.fork();
+        if (!trial.skipToBitPosition(bitPosition)) {
+            return -1;
+        }
+        for (int mcus = 0; mcus <= restartInterval; mcus++) {
+            if (trial.markerAhead() != JpegEntropyCodedBitStream.NO_MARKER) {
+                return trial.getAlignedOffset() == markerOffset ? mcus : -1;
+            }
+            if (validateMcu(trial, dcTables, acTables, luminanceCountPerMcu, 0, 0) != OK) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Validates the restart marker (if one is due) and every block of a single MCU.
+     *
+     * @return {@link JpegDecodeError#OK} or the code of the rule the MCU breaks
+     */
+    static int validateMcu(final JpegEntropyCodedBitStream bitStream, final HuffmanTable[] dcTables,
+            final HuffmanTable[] acTables, final int luminanceCountPerMcu, final int mcuIndex,
+            final int restartInterval) throws IOException {
+        // JPEG RULE CHECK 1: Validate restart marker if needed
+        final int restartError = validateRestartMarker(bitStream, mcuIndex, restartInterval);
+        if (restartError != OK) {
+            return restartError;
+        }
+
+        // JPEG RULE CHECK 2: Validate all channels in this MCU
+        // This checks: Huffman codes, RLE bounds, block structure
+        return validateBlocks(bitStream, dcTables, acTables, luminanceCountPerMcu, 0);
     }
 
-    private static boolean validateRestartMarker(JpegEntropyCodedBitStream input, int mcuIndex, int restartInterval)
+    /**
+     * Validates the blocks of an MCU from the one with the given index onwards. Luminance may
+     * have multiple blocks per MCU due to subsampling, which come first.
+     */
+    private static int validateBlocks(final JpegEntropyCodedBitStream bitStream, final HuffmanTable[] dcTables,
+            final HuffmanTable[] acTables, final int luminanceCountPerMcu, final int firstBlock) throws IOException {
+        final int blockCount = luminanceCountPerMcu + dcTables.length - 1;
+        for (int block = firstBlock; block < blockCount; block++) {
+            final int channelIndex = block < luminanceCountPerMcu ? 0 : block - luminanceCountPerMcu + 1;
+            final int blockError = validateQuantizationArray(channelIndex, bitStream, dcTables[channelIndex],
+                    acTables[channelIndex]);
+            if (blockError != OK) {
+                return blockError;
+            }
+        }
+        return OK;
+    }
+
+    private static int validateRestartMarker(JpegEntropyCodedBitStream input, int mcuIndex, int restartInterval)
             throws IOException {
         if (mcuIndex > 0 && restartInterval > 0 && (mcuIndex % restartInterval) == 0) { // If restartInterval == 0,
                                                                                         // there are no markers.
             if (input.getBitOffset() > 0) { // Align to next byte boundary.
-                input.skip(8 - input.getBitOffset());
+                input.skipBits(8 - input.getBitOffset());
             }
-            final Optional<BitSet> restartMarkerValue = input.peek(16);
-            if (restartMarkerValue.isEmpty()) {
-                info = "RestartM";
-                return false;
+            final int restartMarkerValue = input.peekBits(16);
+            if (restartMarkerValue < 0) {
+                return RESTART_MARKER.code();
             }
-            final byte[] restartMarkerConvertedBits = restartMarkerValue.get().toByteArray();
-            final byte[] restartMarkerBytes = new byte[2];
-            if (restartMarkerConvertedBits.length > 0) {
-                restartMarkerBytes[0] = restartMarkerConvertedBits[0];
+            if ((restartMarkerValue >>> 8) != 0xFF
+                    || (restartMarkerValue & 0xFF) != 0xD0 + (((mcuIndex / restartInterval) - 1) % 8)) {
+                return RESTART_MARKER.code();
             }
-            if (restartMarkerConvertedBits.length > 1) {
-                restartMarkerBytes[1] = restartMarkerConvertedBits[1];
-            }
-            // Integer.reverse() with >> 24 and & 0xff is used because BitSet provides the
-            // bytes in reversed order.
-            if (restartMarkerBytes[0] != -1 || (byte) ((Integer.reverse(restartMarkerBytes[1]) >> 24)
-                    & 0xff) != (byte) (208 + (((mcuIndex / restartInterval) - 1) % 8) & 0xff)) {
-                info = "RestartM";
-                return false;
-            }
-            input.skip(16);
+            input.skipBits(16);
         }
-        return true;
+        return OK;
     }
 
-    private static boolean validateQuantizationArray(final String channelName, final JpegEntropyCodedBitStream input,
-            final HuffmanTable dcTable, final HuffmanTable acTable, final int mcuIndex, final int mcuWidth)
-            throws IOException {
+    private static int validateQuantizationArray(final int channelIndex, final JpegEntropyCodedBitStream input,
+            final HuffmanTable dcTable, final HuffmanTable acTable) throws IOException {
         int quantizationArraySize = 0; // This counter will count to 63 as the array fills up.
-        final Optional<BitSet> maxDCCodeLengthData = input.peek(dcTable.maxCodeLength);
-        if (maxDCCodeLengthData.isEmpty()) {
-            info = "EOF";
-            return false;
+        final int maxDCCodeLengthData = input.peekBits(dcTable.maxCodeLength);
+        if (maxDCCodeLengthData < 0) {
+            return EOF.code();
         }
-        final Optional<MatchResult> matchDCResult = dcTable.findShortestMatch(maxDCCodeLengthData.get());
-        if (matchDCResult.isEmpty()) {
-            info = "Huffman-DC; " + channelName;
-            return false; // No Huffmancode match found: this is a Huffmantable lookup error.
+        final int matchDCResult = dcTable.decode(maxDCCodeLengthData);
+        if (matchDCResult == HuffmanTable.NO_MATCH) {
+            return HUFFMAN_DC.code(channelIndex); // No Huffmancode match found: this is a Huffmantable lookup error.
         }
         // nr. 0: DC, nr. 1 t/m max. 63: AC.
         quantizationArraySize++;
-        input.skip(matchDCResult.get().bitsMatched + matchDCResult.get().symbol);
+        input.skipBits(HuffmanTable.matchLength(matchDCResult) + HuffmanTable.matchSymbol(matchDCResult));
         while (quantizationArraySize < 64) {
-            final Optional<BitSet> maxACCodeLengthData = input.peek(acTable.maxCodeLength);
-            if (maxACCodeLengthData.isEmpty()) {
-                info = "EOF";
-                return false;
-            }
-            final Optional<MatchResult> matchACResult = acTable.findShortestMatch(maxACCodeLengthData.get());
-            if (matchACResult.isEmpty()) {
-                info = "Huffman-AC; " + channelName;
-                return false; // No Huffmancode match found: this is a Huffmantable lookup error.
+            final int maxACCodeLengthData = input.peekBits(acTable.maxCodeLength);
+            if (maxACCodeLengthData < 0) {
+                return EOF.code();
+            }
+            final int matchACResult = acTable.decode(maxACCodeLengthData);
+            if (matchACResult == HuffmanTable.NO_MATCH) {
+                return HUFFMAN_AC.code(channelIndex); // No Huffmancode match found: this is a Huffmantable lookup error.
             } else {
-                if (matchACResult.get().symbol == 0) {
+                final int symbol = HuffmanTable.matchSymbol(matchACResult);
+                if (symbol == 0) {
                     quantizationArraySize = 64;
                 } else {
-                    final int higherNibbleValue = (matchACResult.get().symbol & 0x00F0) >> 4;
+                    final int higherNibbleValue = (symbol & 0x00F0) >> 4;
                     quantizationArraySize += higherNibbleValue;
 
-                    final int lowerNibbleValue = matchACResult.get().symbol & 0x000F;
+                    final int lowerNibbleValue = symbol & 0x000F;
                     quantizationArraySize++;
                     if (quantizationArraySize > 64) {
-                        info = "QASize; " + channelName;
-                        return false; // Quantization Array Size overflow found.
+                        return QUANTIZATION_ARRAY_SIZE.code(channelIndex); // Quantization Array Size overflow found.
                     }
-                    input.skip(lowerNibbleValue);
+                    input.skipBits(lowerNibbleValue);
                 }
-                input.skip(matchACResult.get().bitsMatched);
+                input.skipBits(HuffmanTable.matchLength(matchACResult));
             }
         }
-        return true;
+        return OK;
     }
 
 }
@@ -0,0 +1,161 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import io.parsingdata.metal.data.ByteStream;
+
+/**
+ * Clusters of a baseline scan without restart markers, classified ahead of the sequential
+ * decoder for coarse-to-fine detection.
+ *
+ * A cluster is continuous if decoding resumes at its start (see
+ * {@link JpegBaseline#probeCluster}) and it holds no marker. Only a few MCUs are decoded
+ * per cluster, on the common fork-join pool in batches of {@link #BATCH_BLOCKS} clusters,
+ * so this is a fraction of the work of decoding the scan. Inside a fragment, in a continuous
+ * cluster, the sequential decoder jumps to where decoding resumed in the last cluster of the
+ * run, and only decodes exactly from there: through the transition to the cluster where the
+ * run ends, which finds the rule break to the byte. Noise that starts and ends within a run
+ * of continuous clusters goes unnoticed. The MCUs jumped over are estimated from the size of
+ * the ones the probe of each cluster decoded, see {@link #mcusBetween}.
+ */
+final class JpegBlockScan {
+
+    static final int BATCH_BLOCKS = 64;
+
+    private final long origin;
+    private final int blockBytes;
+    private final long firstBlock; // Index of the first block that starts at or after the entropy-coded data.
+    private final long[] resumePositions; // Per block from firstBlock onwards, -1 if it is not continuous.
+    private final int probeMcus;
+    private final long[] probeBits; // Per block, bits of the MCUs the probe decoded from the resume position, or 0.
+
+    private JpegBlockScan(final long origin, final int blockBytes, final long firstBlock, final int blockCount,
+            final int probeMcus) {
+        this.origin = origin;
+        this.blockBytes = blockBytes;
+        this.firstBlock = firstBlock;
+        this.resumePositions = new long[blockCount];
+        this.probeMcus = probeMcus;
+        this.probeBits = new long[blockCount];
+    }
+
+    /**
+     * @param origin file offset the blocks are counted from
+     * @param entropyStart file offset of the entropy-coded data, blocks that start before it are not classified
+     */
+    static JpegBlockScan classify(final ByteStream input, final long origin, final long entropyStart,
+            final int blockBytes, final HuffmanTable[] dcTables, final HuffmanTable[] acTables,
+            final int luminanceCountPerMcu, final int probeMcus, final JpegNoiseBlocks noiseBlocks) {
+        final long firstBlock = (Math.max(entropyStart - origin, 0) + blockBytes - 1) / blockBytes;
+        final long firstBlockStart = origin + firstBlock * blockBytes;
+        final int blockCount = (int) (JpegByteStream.availableLength(input, firstBlockStart) / blockBytes);
+        final JpegBlockScan scan = new JpegBlockScan(origin, blockBytes, firstBlock, blockCount, probeMcus);
+        IntStream.range(0, (blockCount + BATCH_BLOCKS - 1) / BATCH_BLOCKS).parallel().forEach(batch ->
+                scan.classifyBatch(input, batch * BATCH_BLOCKS, Math.min(blockCount, (batch + 1) * BATCH_BLOCKS),
+                        dcTables, acTables, luminanceCountPerMcu, probeMcus, noiseBlocks));
+        return scan;
+    }
+
+    /**
+     * @param bitPosition position of the sequential decoder on an MCU boundary, see
+     *                    {@link JpegEntropyCodedBitStream#getBitPosition()}
+     * @return the position where decoding resumed in the last cluster of the continuous run that the cluster the
+     *         sequential decoder stands in starts, or -1 if there is no such run or the position is not ahead
+     */
+    long jumpTarget(final long bitPosition) {
+        final long fileOffset = bitPosition >>> 3;
+        if (bitPosition < 0 || fileOffset < origin) {
+            return -1;
+        }
+        final long current = (fileOffset - origin) / blockBytes - firstBlock;
+        if (current >= resumePositions.length - 1 || (current >= 0 && resumePositions[(int) current] < 0)) {
+            return -1; // Not in a continuous cluster, or before the headers end.
+        }
+        int block = (int) current + 1;
+        if (block < 0 || resumePositions[block] < 0) {
+            return -1;
+        }
+        while (block + 1 < resumePositions.length && resumePositions[block + 1] >= 0) {
+            block++;
+        }
+        return resumePositions[block] > bitPosition ? resumePositions[block] : -1;
+    }
+
+    /**
+     * Estimates the MCUs between two bit positions in a run of continuous clusters, such as the ones a jump to
+     * {@link #jumpTarget} skips: the bits in each cluster, at the size of the MCUs its probe decoded. A cluster that
+     * was not probed, such as the one the headers end in, takes the size of the next one.
+     */
+    long mcusBetween(final long fromPosition, final long toPosition) {
+        double mcus = 0;
+        for (long position = fromPosition; position < toPosition; ) {
+            final long block = ((position >>> 3) - origin) / blockBytes - firstBlock;
+            final long end = Math.min(8 * (origin + (firstBlock + block + 1) * blockBytes), toPosition);
+            final long bits = probeBits(block) > 0 ? probeBits(block) : probeBits(block + 1);
+            if (bits > 0) {
+                mcus += (double) (end - position) * probeMcus / bits;
+            }
+            position = end;
+        }
+        return Math.round(mcus);
+    }
+
+    private long probeBits(final long block) {
+        return block >= 0 && block < probeBits.length ? probeBits[(int) block] : 0;
+    }
+
+    /**
+     * @return the file offset of the end of the cluster the file offset is in
+     */
+    long blockEnd(final long offset) {
+        return origin + ((offset - origin) / blockBytes + 1) * blockBytes;
+    }
+
+    int continuousCount() {
+        return (int) Arrays.stream(resumePositions).filter(position -> position >= 0).count();
+    }
+
+    int size() {
+        return resumePositions.length;
+    }
+
+    private void classifyBatch(final ByteStream input, final int startBlock, final int endBlock,
+            final HuffmanTable[] dcTables, final HuffmanTable[] acTables, final int luminanceCountPerMcu,
+            final int probeMcus, final JpegNoiseBlocks noiseBlocks) {
+        Arrays.fill(resumePositions, startBlock, endBlock, -1);
+        JpegByteStream entropyData = null;
+        for (int block = startBlock; block < endBlock; block++) {
+            final long blockStart = origin + (firstBlock + block) * blockBytes;
+            if (noiseBlocks.isNoise(blockStart)) {
+                continue;
+            }
+            try {
+                if (entropyData == null) {
+                    entropyData = new JpegByteStream(input, blockStart);
+                }
+                final long startIndex = entropyData.toIndex(blockStart);
+                final long endIndex = entropyData.toIndex(blockStart + blockBytes);
+                if (startIndex < 0 || endIndex < 0 || entropyData.nextMarker(startIndex, endIndex - 1) != Long.MAX_VALUE) {
+                    continue;
+                }
+                entropyData.release(startIndex);
+                final JpegEntropyCodedBitStream probe = new JpegEntropyCodedBitStream(entropyData, blockStart, 0);
+                resumePositions[block] = JpegBaseline.probeCluster(probe, blockStart, dcTables, acTables,
+                        luminanceCountPerMcu, probeMcus, 0);
+                if (resumePositions[block] >= 0 && probe.skipToBitPosition(resumePositions[block])) {
+                    // The probe decoded these MCUs on a fork, decode them once more for their size.
+                    for (int mcu = 0; mcu < probeMcus; mcu++) {
+                        JpegBaseline.validateMcu(probe, dcTables, acTables, luminanceCountPerMcu, 0, 0);
+                    }
+                    probeBits[block] = Math.max(probe.getBitPosition() - resumePositions[block], 0);
+                }
+            } catch (final IOException | RuntimeException e) {
+                // Not continuous: left to the sequential decoder, which runs into the same problem and reports it.
+                entropyData = null;
+            }
+        }
+    }
+
+}
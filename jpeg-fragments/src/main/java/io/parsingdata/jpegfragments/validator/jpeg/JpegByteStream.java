@@ -1,60 +1,258 @@
 package io.parsingdata.jpegfragments.validator.jpeg;
 
-import static java.math.BigInteger.ONE;
-
 import java.io.IOException;
 import java.math.BigInteger;
-import java.util.Optional;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import io.parsingdata.jpegfragments.MappedByteStream;
 import io.parsingdata.metal.data.ByteStream;
 
+/**
+ * Entropy-coded data with byte stuffing removed. The input is unstuffed in a single
+ * forward pass, {@link #CHUNK_SIZE} bytes at a time: a byte that follows a 0xFF and is
+ * 0x00 or 0xFF is dropped and its file offset is recorded in a sorted index, so an
+ * unstuffed index maps back to a file offset with a binary search. Data before the
+ * index passed to {@link #release(long)} is discarded, so memory use does not grow
+ * with the size of the input.
+ *
+ * Markers are recognized while unstuffing as well: a 0xFF that is followed by anything
+ * but byte stuffing starts a marker, and its index is recorded so the bit reader can
+ * tell where the entropy-coded data is interrupted without probing for it.
+ */
 public class JpegByteStream {
 
+    static final int CHUNK_SIZE = 64 * 1024;
+
     private final ByteStream input;
-    private int offset;
+    public final long start; // File offset of the first byte.
+
+    private byte[] data = new byte[2 * CHUNK_SIZE]; // Unstuffed bytes from dataStart onwards.
+    private long dataStart;
+    private int dataLength;
+    private long[] removedOffsets = new long[64]; // File offsets of dropped bytes not yet discarded, ascending.
+    private int removedLength;
+    private long removedStart; // Number of dropped bytes discarded from removedOffsets.
+    private long[] markerIndexes = new long[16]; // Unstuffed indexes of the 0xFF of markers not yet discarded, ascending.
+    private int markerLength;
+    private long fillOffset; // File offset of the next byte to unstuff.
+    private int fillPrevious; // Byte before fillOffset, needed to recognize byte stuffing.
+    private boolean exhausted;
+    private long releasedIndex;
 
-    public JpegByteStream(final ByteStream input, final int offset) {
+    public JpegByteStream(final ByteStream input, final long start) throws IOException {
         this.input = input;
-        this.offset = offset;
+        this.start = start;
+        this.fillOffset = start;
+        this.fillPrevious = start > 0 && input.isAvailable(BigInteger.valueOf(start - 1), BigInteger.ONE)
+                ? input.read(BigInteger.valueOf(start - 1), 1)[0] & 0xFF
+                : 0;
+    }
+
+    /**
+     * @return the unsigned value of the byte at the unstuffed index, or -1 if the input ends before it
+     */
+    public int read(final long index) throws IOException {
+        while (index >= dataStart + dataLength) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return data[(int) (index - dataStart)] & 0xFF;
+    }
+
+    /**
+     * Marks the bytes before index as no longer needed. Offsets can only be mapped at or after it.
+     */
+    public void release(final long index) {
+        releasedIndex = Math.max(releasedIndex, index);
+    }
+
+    /**
+     * @return the file offset of the byte at the unstuffed index
+     */
+    public long toFileOffset(final long index) {
+        // The byte at index follows every dropped byte with fewer than index bytes kept before it.
+        int low = 0;
+        int high = removedLength;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (removedOffsets[middle] - start - (removedStart + middle) <= index) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return start + index + removedStart + low;
     }
 
-    public int getOffset() { return this.offset; }
+    /**
+     * @return the unstuffed index of the first marker in [index, limit], or {@link Long#MAX_VALUE} if there is none
+     */
+    public long nextMarker(final long index, final long limit) throws IOException {
+        // A marker is only recognized once the byte after its 0xFF has been unstuffed.
+        while (dataStart + dataLength <= limit + 1) {
+            if (!fill()) {
+                break;
+            }
+        }
+        int low = 0;
+        int high = markerLength;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (markerIndexes[middle] < index) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low < markerLength && markerIndexes[low] <= limit ? markerIndexes[low] : Long.MAX_VALUE;
+    }
 
-    public Optional<UnescapedByteArray> peek(final int count) throws IOException {
-        final byte[] byteValues = new byte[count];
-        byte previousValue = 0;
-        if (this.offset > 0) {
-            if (!this.input.isAvailable(BigInteger.valueOf(this.offset-1), ONE)) {
-                return Optional.empty();
+    /**
+     * @return the unstuffed index of the first byte at or after the file offset, or -1 if the input ends before it
+     */
+    public long toIndex(final long fileOffset) throws IOException {
+        while (fillOffset < fileOffset) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int low = 0;
+        int high = removedLength;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (removedOffsets[middle] < fileOffset) {
+                low = middle + 1;
+            } else {
+                high = middle;
             }
-            previousValue = this.input.read(BigInteger.valueOf(this.offset-1), 1)[0];
         }
-        int skippedBytes = 0;
-        for (int i = 0; i < count + skippedBytes; i++) {
-            if (!this.input.isAvailable(BigInteger.valueOf(this.offset+i), ONE)) {
-                return Optional.empty();
+        return fileOffset - start - removedStart - low;
+    }
+
+    private boolean fill() throws IOException {
+        if (exhausted) {
+            return false;
+        }
+        final ByteBuffer chunk = readChunk(input, fillOffset);
+        final int chunkLength = chunk.remaining();
+        if (chunkLength < CHUNK_SIZE) {
+            exhausted = true;
+        }
+        if (chunkLength == 0) {
+            return false;
+        }
+        makeRoom(chunkLength);
+        for (int i = 0; i < chunkLength; i++) {
+            final int value = chunk.get(i) & 0xFF;
+            if (fillPrevious == 0xFF && value != 0x00 && value != 0xFF && dataStart + dataLength > 0) { // A marker: the last byte kept is its 0xFF.
+                if (markerLength == markerIndexes.length) {
+                    markerIndexes = Arrays.copyOf(markerIndexes, markerLength * 2);
+                }
+                markerIndexes[markerLength++] = dataStart + dataLength - 1;
             }
-            byte currentValue = this.input.read(BigInteger.valueOf(this.offset+i), 1)[0];
-            if (previousValue == -1 && (currentValue == 0 || currentValue == -1)) { // We found a case of byte stuffing
-                skippedBytes++;
-                //System.out.println("Encountered byte stuffing at offset " + (getOffset() + i + skippedBytes));
+            if (fillPrevious == 0xFF && (value == 0x00 || value == 0xFF)) { // We found a case of byte stuffing
+                if (removedLength == removedOffsets.length) {
+                    removedOffsets = Arrays.copyOf(removedOffsets, removedLength * 2);
+                }
+                removedOffsets[removedLength++] = fillOffset + i;
             } else {
-                byteValues[i-skippedBytes] = currentValue;
+                data[dataLength++] = (byte) value;
+            }
+            fillPrevious = value;
+        }
+        fillOffset += chunkLength;
+        return true;
+    }
+
+    private void makeRoom(final int count) {
+        if (data.length - dataLength >= count) {
+            return;
+        }
+        final int releasable = (int) Math.min(Math.max(releasedIndex - dataStart, 0), dataLength);
+        if (releasable >= data.length / 2) {
+            final long releasedFileOffset = toFileOffset(dataStart + releasable);
+            System.arraycopy(data, releasable, data, 0, dataLength - releasable);
+            dataStart += releasable;
+            dataLength -= releasable;
+            int removable = 0;
+            while (removable < removedLength && removedOffsets[removable] < releasedFileOffset) {
+                removable++;
+            }
+            System.arraycopy(removedOffsets, removable, removedOffsets, 0, removedLength - removable);
+            removedStart += removable;
+            removedLength -= removable;
+            int discardedMarkers = 0;
+            while (discardedMarkers < markerLength && markerIndexes[discardedMarkers] < dataStart) {
+                discardedMarkers++;
+            }
+            System.arraycopy(markerIndexes, discardedMarkers, markerIndexes, 0, markerLength - discardedMarkers);
+            markerLength -= discardedMarkers;
+        }
+        if (data.length - dataLength < count) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + count));
+        }
+    }
+
+    private static ByteBuffer readChunk(final ByteStream input, final long offset) throws IOException {
+        return read(input, offset, CHUNK_SIZE);
+    }
+
+    /**
+     * @return up to length bytes of the input from the file offset, fewer if the input ends before that
+     */
+    static ByteBuffer read(final ByteStream input, final long offset, final int maxLength) throws IOException {
+        if (input instanceof MappedByteStream) { // Read the mapped memory in place.
+            final MappedByteStream mappedInput = (MappedByteStream) input;
+            if (offset >= mappedInput.size()) {
+                return ByteBuffer.allocate(0);
+            }
+            return mappedInput.slice(offset, (int) Math.min(maxLength, mappedInput.size() - offset));
+        }
+        final BigInteger chunkStart = BigInteger.valueOf(offset);
+        if (!input.isAvailable(chunkStart, BigInteger.ONE)) {
+            return ByteBuffer.allocate(0);
+        }
+        int length = maxLength;
+        if (!input.isAvailable(chunkStart, BigInteger.valueOf(length))) { // Near the end: find the largest available length.
+            int available = 1;
+            while (length - available > 1) {
+                final int candidate = (available + length) >>> 1;
+                if (input.isAvailable(chunkStart, BigInteger.valueOf(candidate))) {
+                    available = candidate;
+                } else {
+                    length = candidate;
+                }
             }
-            previousValue = currentValue;
+            length = available;
         }
-        return Optional.of(new UnescapedByteArray(byteValues, count+skippedBytes));
+        return ByteBuffer.wrap(input.read(chunkStart, length));
     }
 
-    public boolean skip(final int count) throws IOException {
-        Optional<UnescapedByteArray> dataRead = peek(count);
-        if (dataRead.isEmpty()) { return false; }
-        final int skipLength = dataRead.get().totalLength;
-        if (this.input.isAvailable(BigInteger.valueOf(this.offset), BigInteger.valueOf(skipLength))) {
-            this.offset += skipLength;
-            return true;
+    /**
+     * @return the number of bytes available in the input from the file offset
+     */
+    static long availableLength(final ByteStream input, final long offset) {
+        if (input instanceof MappedByteStream) {
+            return Math.max(((MappedByteStream) input).size() - offset, 0);
+        }
+        final BigInteger start = BigInteger.valueOf(offset);
+        long available = 0;
+        long unavailable = 1;
+        while (input.isAvailable(start, BigInteger.valueOf(unavailable))) {
+            available = unavailable;
+            unavailable *= 2;
+        }
+        while (unavailable - available > 1) {
+            final long candidate = (available + unavailable) >>> 1;
+            if (input.isAvailable(start, BigInteger.valueOf(candidate))) {
+                available = candidate;
+            } else {
+                unavailable = candidate;
+            }
         }
-        return false;
+        return available;
     }
 
 }
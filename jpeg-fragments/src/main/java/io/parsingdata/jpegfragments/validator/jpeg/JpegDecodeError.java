@@ -0,0 +1,68 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegValidator.CHANNEL_NAME;
+
+/**
+ * Reasons why validation of a scan stops. The MCU validation kernels return these as an
+ * int code, see {@link #code()} and {@link #code(int)}, so reporting a failure does not
+ * allocate: the bit stream is left at the bit the rule broke at, and the text for the
+ * result is only built by {@link #describe(int)} once validation ends.
+ */
+public enum JpegDecodeError {
+
+    NONE(""),
+    JPEG_HEADER("JpegHeader"),
+    SOS_BLOCK("SOSBlock"),
+    EOF("EOF"),
+    RESTART_MARKER("RestartM"),
+    HUFFMAN_DC("Huffman-DC"),
+    HUFFMAN_AC("Huffman-AC"),
+    QUANTIZATION_ARRAY_SIZE("QASize"),
+    HUFFMAN_DC_FIRST("Huffman-DC-F"),
+    HUFFMAN_AC_FIRST("Huffman-AC-F"),
+    HUFFMAN_AC_REFINE("Huffman-AC-R"),
+    COEFFICIENT_AC_REFINE("Coeff-AC-R");
+
+    public static final int OK = 0; // Code of NONE.
+    private static final JpegDecodeError[] VALUES = values();
+
+    public final String label;
+
+    JpegDecodeError(final String label) {
+        this.label = label;
+    }
+
+    public int code() {
+        return ordinal();
+    }
+
+    /**
+     * @return the code of this error in the channel with the given index in the scan
+     */
+    public int code(final int channelIndex) {
+        return ordinal() | ((channelIndex + 1) << 8);
+    }
+
+    public static JpegDecodeError of(final int code) {
+        return VALUES[code & 0xFF];
+    }
+
+    /**
+     * @return the text reported in {@link JpegValidationResult#info} for the code
+     */
+    public static String describe(final int code) {
+        final int channelIndex = (code >>> 8) - 1;
+        if (channelIndex < 0) {
+            return of(code).label;
+        }
+        return of(code).label + "; " + channelName(channelIndex);
+    }
+
+    private static String channelName(final int channelIndex) {
+        if (channelIndex == 0) {
+            return "Luminance";
+        }
+        return channelIndex <= CHANNEL_NAME.size() ? CHANNEL_NAME.get(channelIndex - 1) : "Component " + channelIndex;
+    }
+
+}
@@ -0,0 +1,173 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * The thresholds that decide what the validators report as a fragment, and how they recover
+ * after decoding breaks. Immutable: the with-methods return a copy with a single value changed.
+ *
+ * The merge gap and the snapping values are only applied to the fragments a validation found,
+ * see {@link #detection()}: configurations that differ in those alone share a validation.
+ */
+public final class JpegDetectionConfig {
+
+    public static final JpegDetectionConfig DEFAULT = new Builder().build();
+
+    // Detection
+    public final int minMcusToStartFragment; // Consecutive valid MCUs that confirm the start of a fragment.
+    public final int minFragmentLengthBytes; // Shorter fragments are discarded.
+    public final int maxSingleErrorRecovery; // Bytes of noise that recovery looks past after a break.
+    public final boolean coarseToFine; // Baseline scans without restart markers: decode exactly only around transitions.
+    public final int clusterBytes; // Fragments consist of whole clusters of this size, counted from the JPEG header.
+    public final int clusterProbeMcus; // MCUs that confirm decoding resumes at the start of a cluster.
+    public final int spliceProbeBytes; // Progressive scans: data to decode after a cut before the splice holds.
+
+    // Post-processing
+    public final int fragmentMergeGap; // Fragments closer together than this are reported as one range.
+    public final int snapBoundaryBytes; // Reported ranges are snapped to multiples of this.
+    public final int snapToleranceBytes; // Range starts further than this from a boundary are inferred or dropped.
+
+    /**
+     * The values of a configuration while it is built, those of {@link #DEFAULT} to begin with.
+     */
+    private static final class Builder {
+        int minMcusToStartFragment = 2;
+        int minFragmentLengthBytes = 1000;
+        int maxSingleErrorRecovery = 30 * 1024;
+        boolean coarseToFine = false;
+        int clusterBytes = 4096;
+        int clusterProbeMcus = 8;
+        int spliceProbeBytes = 4096;
+        int fragmentMergeGap = 1024;
+        int snapBoundaryBytes = 4096;
+        int snapToleranceBytes = 768;
+
+        Builder() {}
+
+        Builder(final JpegDetectionConfig config) {
+            minMcusToStartFragment = config.minMcusToStartFragment;
+            minFragmentLengthBytes = config.minFragmentLengthBytes;
+            maxSingleErrorRecovery = config.maxSingleErrorRecovery;
+            coarseToFine = config.coarseToFine;
+            clusterBytes = config.clusterBytes;
+            clusterProbeMcus = config.clusterProbeMcus;
+            spliceProbeBytes = config.spliceProbeBytes;
+            fragmentMergeGap = config.fragmentMergeGap;
+            snapBoundaryBytes = config.snapBoundaryBytes;
+            snapToleranceBytes = config.snapToleranceBytes;
+        }
+
+        JpegDetectionConfig build() {
+            return new JpegDetectionConfig(this);
+        }
+    }
+
+    private JpegDetectionConfig(final Builder builder) {
+        if (builder.minMcusToStartFragment < 1 || builder.clusterBytes < 1 || builder.clusterProbeMcus < 1 || builder.snapBoundaryBytes < 1) {
+            throw new IllegalArgumentException("MCUs to start a fragment, cluster size, cluster probe MCUs and snap boundary must be positive.");
+        }
+        this.minMcusToStartFragment = builder.minMcusToStartFragment;
+        this.minFragmentLengthBytes = builder.minFragmentLengthBytes;
+        this.maxSingleErrorRecovery = builder.maxSingleErrorRecovery;
+        this.coarseToFine = builder.coarseToFine;
+        this.clusterBytes = builder.clusterBytes;
+        this.clusterProbeMcus = builder.clusterProbeMcus;
+        this.spliceProbeBytes = builder.spliceProbeBytes;
+        this.fragmentMergeGap = builder.fragmentMergeGap;
+        this.snapBoundaryBytes = builder.snapBoundaryBytes;
+        this.snapToleranceBytes = builder.snapToleranceBytes;
+    }
+
+    /**
+     * @return a copy of this configuration with the change applied
+     */
+    private JpegDetectionConfig with(final Consumer<Builder> change) {
+        final Builder builder = new Builder(this);
+        change.accept(builder);
+        return builder.build();
+    }
+
+    public JpegDetectionConfig withMinMcusToStartFragment(final int minMcusToStartFragment) {
+        return with(builder -> builder.minMcusToStartFragment = minMcusToStartFragment);
+    }
+
+    public JpegDetectionConfig withMinFragmentLengthBytes(final int minFragmentLengthBytes) {
+        return with(builder -> builder.minFragmentLengthBytes = minFragmentLengthBytes);
+    }
+
+    public JpegDetectionConfig withMaxSingleErrorRecovery(final int maxSingleErrorRecovery) {
+        return with(builder -> builder.maxSingleErrorRecovery = maxSingleErrorRecovery);
+    }
+
+    public JpegDetectionConfig withCoarseToFine(final boolean coarseToFine) {
+        return with(builder -> builder.coarseToFine = coarseToFine);
+    }
+
+    public JpegDetectionConfig withClusterBytes(final int clusterBytes) {
+        return with(builder -> builder.clusterBytes = clusterBytes);
+    }
+
+    public JpegDetectionConfig withClusterProbeMcus(final int clusterProbeMcus) {
+        return with(builder -> builder.clusterProbeMcus = clusterProbeMcus);
+    }
+
+    public JpegDetectionConfig withSpliceProbeBytes(final int spliceProbeBytes) {
+        return with(builder -> builder.spliceProbeBytes = spliceProbeBytes);
+    }
+
+    public JpegDetectionConfig withFragmentMergeGap(final int fragmentMergeGap) {
+        return with(builder -> builder.fragmentMergeGap = fragmentMergeGap);
+    }
+
+    public JpegDetectionConfig withSnapBoundaryBytes(final int snapBoundaryBytes) {
+        return with(builder -> builder.snapBoundaryBytes = snapBoundaryBytes);
+    }
+
+    public JpegDetectionConfig withSnapToleranceBytes(final int snapToleranceBytes) {
+        return with(builder -> builder.snapToleranceBytes = snapToleranceBytes);
+    }
+
+    /**
+     * @return this configuration with the post-processing values of {@link #DEFAULT}: configurations with an
+     *         equal detection find the same fragments
+     */
+    public JpegDetectionConfig detection() {
+        return with(builder -> {
+            builder.fragmentMergeGap = DEFAULT.fragmentMergeGap;
+            builder.snapBoundaryBytes = DEFAULT.snapBoundaryBytes;
+            builder.snapToleranceBytes = DEFAULT.snapToleranceBytes;
+        });
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof JpegDetectionConfig)) {
+            return false;
+        }
+        final JpegDetectionConfig config = (JpegDetectionConfig) other;
+        return minMcusToStartFragment == config.minMcusToStartFragment
+                && minFragmentLengthBytes == config.minFragmentLengthBytes
+                && maxSingleErrorRecovery == config.maxSingleErrorRecovery
+                && coarseToFine == config.coarseToFine
+                && clusterBytes == config.clusterBytes
+                && clusterProbeMcus == config.clusterProbeMcus
+                && spliceProbeBytes == config.spliceProbeBytes
+                && fragmentMergeGap == config.fragmentMergeGap
+                && snapBoundaryBytes == config.snapBoundaryBytes
+                && snapToleranceBytes == config.snapToleranceBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minMcusToStartFragment, minFragmentLengthBytes, maxSingleErrorRecovery, coarseToFine, clusterBytes, clusterProbeMcus, spliceProbeBytes, fragmentMergeGap, snapBoundaryBytes, snapToleranceBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "minMcus=" + minMcusToStartFragment + " minLength=" + minFragmentLengthBytes + " maxRecovery=" + maxSingleErrorRecovery
+                + (coarseToFine ? " coarseToFine" : " exact") + " cluster=" + clusterBytes + " probeMcus=" + clusterProbeMcus
+                + " spliceProbe=" + spliceProbeBytes + " mergeGap=" + fragmentMergeGap + " snap=" + snapBoundaryBytes + "/" + snapToleranceBytes;
+    }
+
+}
@@ -5,66 +5,219 @@ import static java.math.BigInteger.ZERO;
 
 import java.io.IOException;
 import java.math.BigInteger;
-import java.util.BitSet;
-import java.util.Optional;
 
 import io.parsingdata.metal.data.ByteStream;
 
+/**
+ * Bit reader over the unstuffed entropy-coded data of a {@link JpegByteStream}. Up to 8
+ * bytes are kept in a 64-bit window; file offsets are only computed when asked for.
+ * Whenever the window is refilled, the first marker in it is looked up as well, so
+ * {@link #markerAhead()} usually answers without touching the input.
+ */
 public class JpegEntropyCodedBitStream {
 
+    private static final int WINDOW_BYTES = 8;
+    public static final int MAX_PEEK_BITS = 31;
+    public static final int NO_MARKER = -1;
+    public static final int EOI = 0xD9;
+
     private final JpegByteStream input;
+    private final long startOffset; // File offset the stream was positioned at.
+    private final long startPosition;
+    private final boolean releasing; // Whether data behind this stream may be discarded from the input.
+    private long position; // Unstuffed index of the current byte.
     private int bitOffset;
 
-    public JpegEntropyCodedBitStream(final ByteStream input, final BigInteger byteOffset, final int bitOffset) {
+    private long window; // Bytes from windowPosition onwards, first byte in the most significant bits.
+    private long windowPosition;
+    private int windowBytes;
+    private long windowMarker; // Unstuffed index of the first marker in the window, Long.MAX_VALUE if there is none.
+
+    public JpegEntropyCodedBitStream(final ByteStream input, final BigInteger byteOffset, final int bitOffset) throws IOException {
         if (!input.isAvailable(byteOffset, bitOffset > 0 ? ONE : ZERO)) {
             throw new RuntimeException("EOF error.");
         }
-        this.input = new JpegByteStream(input, byteOffset.intValueExact());
+        this.input = new JpegByteStream(input, byteOffset.longValueExact());
+        this.startOffset = byteOffset.longValueExact();
+        this.startPosition = 0;
+        this.releasing = true;
+        this.position = 0;
         this.bitOffset = bitOffset;
+        loadWindow();
     }
 
-    public int getOffset() throws IOException {
-        int sizeToCheck = 1 + (getBitOffset() > 0 ? 1 : 0);
-        final Optional<UnescapedByteArray> peekedValue = input.peek(sizeToCheck);
-        if (peekedValue.isEmpty() || peekedValue.get().totalLength == sizeToCheck) {
-            return this.input.getOffset();
-        } else {
-            // If a value was returned, we are not at EOF, but if more bytes we need than requested, we need to skip the escaped values.
-            return this.input.getOffset() + (peekedValue.get().totalLength - sizeToCheck);
+    public JpegEntropyCodedBitStream(final JpegByteStream input, final long byteOffset, final int bitOffset) throws IOException {
+        final long index = byteOffset < input.start ? -1 : input.toIndex(byteOffset);
+        if (index < 0 || (bitOffset > 0 && input.read(index) < 0)) {
+            throw new RuntimeException("EOF error.");
         }
+        this.input = input;
+        this.startOffset = byteOffset;
+        this.startPosition = index;
+        this.releasing = true;
+        this.position = index;
+        this.bitOffset = bitOffset;
+        loadWindow();
+    }
+
+    private JpegEntropyCodedBitStream(final JpegEntropyCodedBitStream source) {
+        this.input = source.input;
+        this.startOffset = source.startOffset;
+        this.startPosition = source.startPosition;
+        this.releasing = false;
+        this.position = source.position;
+        this.bitOffset = source.bitOffset;
+        this.window = source.window;
+        this.windowPosition = source.windowPosition;
+        this.windowBytes = source.windowBytes;
+        this.windowMarker = source.windowMarker;
+    }
+
+    /**
+     * @return a stream at the same position that reads ahead without discarding anything this stream still needs
+     */
+    public JpegEntropyCodedBitStream fork() {
+        return new JpegEntropyCodedBitStream(this);
     }
+
+    public long getOffset() throws IOException {
+        final int sizeToCheck = 1 + (getBitOffset() > 0 ? 1 : 0);
+        if (!isAvailable(sizeToCheck)) {
+            return position == startPosition ? startOffset : input.toFileOffset(position - 1) + 1;
+        }
+        // If escaped values precede the bytes at the current position, report the offset past them.
+        return input.toFileOffset(position + sizeToCheck - 1) + 1 - sizeToCheck;
+    }
+
     public int getBitOffset() { return bitOffset; }
 
-    public Optional<BitSet> peek(final int count) throws IOException {
-        final int bytesNeeded = (count+bitOffset) / 8 + ((count+bitOffset) % 8 > 0 ? 1 : 0);
-        final Optional<UnescapedByteArray> dataRead = this.input.peek(bytesNeeded);
-        if (dataRead.isEmpty()) { return Optional.empty(); }
-        final byte[] byteValues = dataRead.get().byteValues;
-        final BitSet requestedBits = new BitSet(count);
-        int localBitOffset = bitOffset; // localBitOffset needed for 'peek' -> don't change the real offset
-        for (int byteIndex = 0, requestedIndex = 0; byteIndex < bytesNeeded; byteIndex++) {
-            for (int bitIndex = localBitOffset; bitIndex < 8 && requestedIndex < count; bitIndex++, requestedIndex++) {
-                requestedBits.set(requestedIndex, ((byteValues[byteIndex] >> (7 - bitIndex)) & 1) == 1);
+    /**
+     * @return the file offset of the next byte boundary, or -1 if the input ends before it
+     */
+    public long getAlignedOffset() throws IOException {
+        final long alignedPosition = position + (bitOffset > 0 ? 1 : 0);
+        return input.read(alignedPosition) < 0 ? -1 : input.toFileOffset(alignedPosition);
+    }
+
+    /**
+     * @return the position of the next bit as its file offset times 8 plus the bit offset, or -1 if the input ends
+     *         before it
+     */
+    public long getBitPosition() throws IOException {
+        return input.read(position) < 0 ? -1 : 8 * input.toFileOffset(position) + bitOffset;
+    }
+
+    /**
+     * Skips forward to a position returned by {@link #getBitPosition()} of a stream over the same input.
+     *
+     * @return false if the position is behind this stream or not available
+     */
+    public boolean skipToBitPosition(final long bitPosition) throws IOException {
+        releaseBeforePosition();
+        final long index = input.toIndex(bitPosition >>> 3);
+        final long bits = 8 * (index - position) + (bitPosition & 7) - bitOffset;
+        return index >= 0 && bits >= 0 && skipBits(bits);
+    }
+
+    /**
+     * @return the number of bits read since the stream was positioned at its start offset
+     */
+    public long getBitsRead() {
+        return 8 * (position - startPosition) + bitOffset;
+    }
+
+    /**
+     * Markers interrupt the entropy-coded data; the bits before one are padding. Only a real
+     * marker counts, not a 0xFF that is byte stuffed, so this is also correct when the
+     * stream is not at a byte boundary.
+     *
+     * @return the second byte of the marker that starts at the next byte boundary (RSTn, EOI or any
+     *         other), or {@link #NO_MARKER}
+     */
+    public int markerAhead() throws IOException {
+        final long alignedPosition = position + (bitOffset > 0 ? 1 : 0);
+        if (alignedPosition < windowPosition || alignedPosition >= windowPosition + WINDOW_BYTES) {
+            if (input.nextMarker(alignedPosition, alignedPosition) == Long.MAX_VALUE) {
+                return NO_MARKER;
+            }
+        } else if (alignedPosition != windowMarker
+                && (alignedPosition < windowMarker || input.nextMarker(alignedPosition, alignedPosition) == Long.MAX_VALUE)) {
+            return NO_MARKER;
+        }
+        return input.read(alignedPosition + 1);
+    }
+
+    /**
+     * @return whether an EOI marker starts after the next byte boundary and before the given file offset, which
+     *         must be available
+     */
+    public boolean eoiBefore(final long fileOffset) throws IOException {
+        final long limit = input.toIndex(fileOffset) - 1;
+        long marker = input.nextMarker(position + (bitOffset > 0 ? 1 : 0), limit);
+        while (marker <= limit) {
+            if (input.read(marker + 1) == EOI) {
+                return true;
+            }
+            marker = input.nextMarker(marker + 1, limit);
+        }
+        return false;
+    }
+
+    /**
+     * @param count number of bits to peek, at most {@link #MAX_PEEK_BITS}
+     * @return the next count bits with the first bit as most significant, or -1 if not enough data is available
+     */
+    public int peekBits(final int count) throws IOException {
+        final int byteCount = (count + bitOffset + 7) / 8;
+        if (position - windowPosition + byteCount > windowBytes) {
+            loadWindow();
+            if (byteCount > windowBytes) {
+                return -1;
             }
-            localBitOffset = 0;
         }
-        return Optional.of(requestedBits);
+        return count == 0 ? 0 : (int) ((window << (8 * (position - windowPosition) + bitOffset)) >>> (64 - count));
     }
 
-    public boolean skip(final int bits) throws IOException {
-        int newBitOffset = this.bitOffset;
-        int byteIncrease = bits / 8;
-        int bitIncrease = bits % 8;
-        if (newBitOffset + bitIncrease >= 8) {
-            byteIncrease++;
-            bitIncrease -= 8;
+    public boolean skipBits(final long bits) throws IOException {
+        final long byteIncrease = (bitOffset + bits) / 8;
+        if (byteIncrease > WINDOW_BYTES) {
+            releaseBeforePosition();
         }
-        newBitOffset += bitIncrease;
-        final boolean dataAvailable = byteIncrease == 0 || this.input.skip(byteIncrease);
-        if (dataAvailable) {
-            this.bitOffset = newBitOffset;
+        if (!isAvailable(byteIncrease)) {
+            return false;
+        }
+        this.position += byteIncrease;
+        this.bitOffset = (int) ((bitOffset + bits) % 8);
+        return true;
+    }
+
+    private boolean isAvailable(final long byteCount) throws IOException {
+        return byteCount == 0
+                || position - windowPosition + byteCount <= windowBytes
+                || input.read(position + byteCount - 1) >= 0;
+    }
+
+    private void releaseBeforePosition() { // Nothing before the current byte is needed any more.
+        if (releasing) {
+            input.release(position == startPosition ? position : position - 1);
+        }
+    }
+
+    private void loadWindow() throws IOException {
+        releaseBeforePosition();
+        window = 0;
+        windowPosition = position;
+        windowBytes = 0;
+        windowMarker = input.nextMarker(position, position + WINDOW_BYTES - 1);
+        for (int i = 0; i < WINDOW_BYTES; i++) {
+            final int value = input.read(position + i);
+            if (value < 0) {
+                window <<= 8 * (WINDOW_BYTES - i);
+                return;
+            }
+            window = (window << 8) | value;
+            windowBytes++;
         }
-        return dataAvailable;
     }
 
 }
@@ -0,0 +1,239 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SOF0_IDENTIFIER;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SOF2_IDENTIFIER;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import io.parsingdata.metal.data.ByteStream;
+
+/**
+ * Parses the marker segments of a JPEG header, and those of each scan, straight from the
+ * bytes. It walks the segments like {@link io.parsingdata.jpegfragments.web.JpegStructuralParser}
+ * and accepts the same segments as {@link JpegStructure#HEADER} and {@link JpegStructure#SCAN},
+ * which {@link JpegMetalHeaderParser} still parses to cross-check it.
+ */
+final class JpegHeaderParser {
+
+    private static final int SOI = 0xD8;
+    private static final int DHT = 0xC4;
+    private static final int RST0 = 0xD0;
+    private static final int SOS = 0xDA;
+    private static final int DRI = 0xDD;
+
+    private final ByteStream input;
+    private long offset;
+    private long reportedOffset;
+    private FrameHeader frame;
+    private final List<HuffmanSpec> huffmanSpecs = new ArrayList<>();
+    private int restartInterval = HeaderSegments.NO_RESTART_INTERVAL;
+
+    private JpegHeaderParser(final ByteStream input, final long offset) {
+        this.input = input;
+        this.offset = offset;
+        this.reportedOffset = offset;
+    }
+
+    /**
+     * @return the SOI and the segments after it up to the first one that is not part of the header, or empty if
+     *         there is no SOI at the start of the input
+     */
+    static Optional<HeaderSegments> parseHeader(final ByteStream input) throws IOException {
+        final byte[] soi = read(input, 0, 2);
+        if (soi == null || (soi[0] & 0xFF) != 0xFF || (soi[1] & 0xFF) != SOI) {
+            return Optional.empty();
+        }
+        final JpegHeaderParser parser = new JpegHeaderParser(input, 2);
+        parser.parseSegments(true);
+        return Optional.of(new HeaderSegments(parser.offset, parser.reportedOffset, parser.frame, null, parser.huffmanSpecs, parser.restartInterval));
+    }
+
+    /**
+     * @return the tables and restart intervals before a scan and its SOS, or empty if no valid SOS follows them
+     */
+    static Optional<HeaderSegments> parseScan(final ByteStream input, final long offset) throws IOException {
+        final JpegHeaderParser parser = new JpegHeaderParser(input, offset);
+        parser.parseSegments(false);
+        final ScanHeader scan = parser.parseScanHeader();
+        if (scan == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new HeaderSegments(parser.offset, parser.reportedOffset, null, scan, parser.huffmanSpecs, parser.restartInterval));
+    }
+
+    private void parseSegments(final boolean header) throws IOException {
+        while (true) {
+            final byte[] marker = read(input, offset, 2);
+            if (marker == null || (marker[0] & 0xFF) != 0xFF) {
+                return;
+            }
+            final int identifier = marker[1] & 0xFF;
+            if (identifier == DHT) {
+                reportedOffset = offset + 2;
+                if (parseHuffmanTables()) {
+                    continue;
+                }
+                return;
+            }
+            if (header && (identifier == SOF0_IDENTIFIER || identifier == SOF2_IDENTIFIER)) {
+                reportedOffset = offset + 2;
+                if (parseFrameHeader()) {
+                    continue;
+                }
+            }
+            if (identifier == DRI) {
+                reportedOffset = offset + 2;
+                if (parseRestartInterval()) {
+                    continue;
+                }
+            }
+            if ((identifier < RST0 || identifier > SOS) && identifier != SOF0_IDENTIFIER) {
+                reportedOffset = offset + 2;
+                if (skipSegment()) {
+                    continue;
+                }
+            }
+            return;
+        }
+    }
+
+    private boolean parseHuffmanTables() throws IOException {
+        final int length = readLength();
+        if (length < 0) {
+            return false;
+        }
+        final long end = offset + 2 + length;
+        long position = offset + 4;
+        do { // Tables are parsed up to the end of the segment, the last one may run past it. Like the metal
+             // tokens, the tables before one that is cut off are kept even though the segment is not.
+            final byte[] definition = read(input, position, 17);
+            if (definition == null) {
+                return false;
+            }
+            final int[] lengths = new int[16];
+            int symbolCount = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = definition[i + 1] & 0xFF;
+                symbolCount += lengths[i];
+            }
+            final byte[] symbols = read(input, position + 17, symbolCount);
+            if (symbols == null) {
+                return false;
+            }
+            huffmanSpecs.add(new HuffmanSpec(definition[0] & 0xFF, lengths, unsigned(symbols)));
+            position += 17 + symbolCount;
+        } while (position < end);
+        offset = position;
+        return true;
+    }
+
+    private boolean parseFrameHeader() throws IOException {
+        final byte[] fixed = read(input, offset, 10);
+        if (fixed == null) {
+            return false;
+        }
+        final int length = readShort(fixed, 2);
+        final int componentCount = fixed[9] & 0xFF;
+        if (componentCount * 3 + 8 != length) {
+            return false;
+        }
+        final byte[] segment = read(input, offset, 2 + length);
+        if (segment == null) {
+            return false;
+        }
+        frame = JpegTableCache.frameHeader(segment, () -> {
+            final int[] componentIdentifiers = new int[componentCount];
+            final int[] samplingFactors = new int[componentCount];
+            for (int component = 0; component < componentCount; component++) {
+                componentIdentifiers[component] = segment[10 + 3 * component] & 0xFF;
+                samplingFactors[component] = segment[11 + 3 * component] & 0xFF;
+            }
+            return new FrameHeader(segment[1] & 0xFF, readShort(segment, 5), readShort(segment, 7), componentIdentifiers, samplingFactors);
+        });
+        offset += 2 + length;
+        return true;
+    }
+
+    private boolean parseRestartInterval() throws IOException {
+        final byte[] segment = read(input, offset, 6);
+        if (segment == null || readShort(segment, 2) != 4) {
+            return false;
+        }
+        restartInterval = readShort(segment, 4);
+        offset += 6;
+        return true;
+    }
+
+    private boolean skipSegment() throws IOException {
+        final int length = readLength();
+        if (length < 2 || !input.isAvailable(BigInteger.valueOf(offset + 4), BigInteger.valueOf(length - 2))) {
+            return false;
+        }
+        offset += 2 + length;
+        return true;
+    }
+
+    /**
+     * @return the SOS at the offset, or null if there is no valid one
+     */
+    private ScanHeader parseScanHeader() throws IOException {
+        final byte[] fixed = read(input, offset, 5);
+        if (fixed == null || (fixed[0] & 0xFF) != 0xFF || (fixed[1] & 0xFF) != SOS) {
+            return null;
+        }
+        reportedOffset = offset + 2;
+        final int length = readShort(fixed, 2);
+        final int componentCount = fixed[4] & 0xFF;
+        if (componentCount * 2 + 6 != length) {
+            return null;
+        }
+        final byte[] segment = read(input, offset, 2 + length);
+        if (segment == null) {
+            return null;
+        }
+        final int[] componentSelectors = new int[componentCount];
+        final int[] tableSelectors = new int[componentCount];
+        for (int component = 0; component < componentCount; component++) {
+            componentSelectors[component] = segment[5 + 2 * component] & 0xFF;
+            tableSelectors[component] = segment[6 + 2 * component] & 0xFF;
+        }
+        final int end = 5 + 2 * componentCount;
+        offset += 2 + length;
+        return new ScanHeader(componentSelectors, tableSelectors, segment[end] & 0xFF, segment[end + 1] & 0xFF, segment[end + 2] & 0xFF);
+    }
+
+    /**
+     * @return the length field of the segment at the offset, or -1 if it is not available
+     */
+    private int readLength() throws IOException {
+        final byte[] length = read(input, offset + 2, 2);
+        return length == null ? -1 : readShort(length, 0);
+    }
+
+    /**
+     * @return the bytes, or null if they are not all available
+     */
+    private static byte[] read(final ByteStream input, final long offset, final int length) throws IOException {
+        if (!input.isAvailable(BigInteger.valueOf(offset), BigInteger.valueOf(length))) {
+            return null;
+        }
+        return input.read(BigInteger.valueOf(offset), length);
+    }
+
+    private static int readShort(final byte[] data, final int index) {
+        return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+    }
+
+    private static int[] unsigned(final byte[] data) {
+        final int[] result = new int[data.length];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = data[i] & 0xFF;
+        }
+        return result;
+    }
+
+}
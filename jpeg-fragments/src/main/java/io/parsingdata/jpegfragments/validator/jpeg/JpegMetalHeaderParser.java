@@ -0,0 +1,123 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.DC_AC_TABLE_SELECTOR;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.END_OF_SPECTRAL_SELECTION;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HEADER;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HEIGHT;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HIGH_AND_LOW_SUCCESSIVE_APPROXIMATION_BIT_POSITION;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HT;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.IDENTIFIER;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.NUMBER_OF_IMAGE_COMPONENTS_IN_FRAME;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.RESTART_INTERVAL;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SCAN;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SCAN_COMPONENT_SELECTOR;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SOF;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.START_OF_SPECTRAL_SELECTION;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.TABLE_CLASS_TABLE_HUFFMAN_IDENTIFIER;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.WIDTH;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegValidator.listToIntArray;
+import static io.parsingdata.metal.Shorthand.con;
+import static io.parsingdata.metal.Shorthand.last;
+import static io.parsingdata.metal.Shorthand.ref;
+import static io.parsingdata.metal.Shorthand.rev;
+import static io.parsingdata.metal.Shorthand.scope;
+import static io.parsingdata.metal.data.Selection.reverse;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import io.parsingdata.metal.data.ByteStream;
+import io.parsingdata.metal.data.Environment;
+import io.parsingdata.metal.data.ParseState;
+import io.parsingdata.metal.data.callback.Callback;
+import io.parsingdata.metal.data.callback.Callbacks;
+import io.parsingdata.metal.encoding.Encoding;
+import io.parsingdata.metal.token.Token;
+
+/**
+ * Parses the same segments as {@link JpegHeaderParser} with the tokens of {@link JpegStructure},
+ * and reads the values back from the parse graph. It is much slower, and used to cross-check
+ * the byte-level parser, see {@link JpegValidator#JpegValidator(boolean, boolean)}.
+ */
+final class JpegMetalHeaderParser implements Callback {
+
+    private final List<HuffmanSpec> huffmanSpecs = new ArrayList<>();
+    private long reportedOffset;
+
+    private JpegMetalHeaderParser(final long offset) {
+        this.reportedOffset = offset;
+    }
+
+    static Optional<HeaderSegments> parseHeader(final ByteStream input) {
+        final JpegMetalHeaderParser parser = new JpegMetalHeaderParser(0);
+        return HEADER.parse(parser.environment(input, 0))
+                .map(state -> new HeaderSegments(state.offset.longValueExact(), parser.reportedOffset, frameHeader(state), null, parser.huffmanSpecs, restartInterval(state)));
+    }
+
+    static Optional<HeaderSegments> parseScan(final ByteStream input, final long offset) {
+        final JpegMetalHeaderParser parser = new JpegMetalHeaderParser(offset);
+        return SCAN.parse(parser.environment(input, offset))
+                .map(state -> new HeaderSegments(state.offset.longValueExact(), parser.reportedOffset, null, scanHeader(state), parser.huffmanSpecs, restartInterval(state)));
+    }
+
+    private Environment environment(final ByteStream input, final long offset) {
+        return new Environment(ParseState.createFromByteStream(input, BigInteger.valueOf(offset)), Callbacks.create().add(this).add(HT, new Callback() {
+            @Override
+            public void handleSuccess(final Token token, final ParseState before, final ParseState after) {
+                huffmanSpecs.add(new HuffmanSpec(
+                        last(ref(TABLE_CLASS_TABLE_HUFFMAN_IDENTIFIER)).evalSingle(after, Encoding.DEFAULT_ENCODING).get().asNumeric().intValueExact(),
+                        listToIntArray(reverse(scope(ref("li"), con(0)).eval(after, Encoding.DEFAULT_ENCODING))),
+                        listToIntArray(reverse(scope(ref("vij"), con(0)).eval(after, Encoding.DEFAULT_ENCODING)))));
+            }
+
+            @Override
+            public void handleFailure(final Token token, final ParseState before) {
+            }
+        }), Encoding.DEFAULT_ENCODING);
+    }
+
+    private static FrameHeader frameHeader(final ParseState state) {
+        final Optional<Integer> identifier = intValue(state, SOF + Token.SEPARATOR + IDENTIFIER);
+        if (identifier.isEmpty()) {
+            return null;
+        }
+        final int componentCount = intValue(state, NUMBER_OF_IMAGE_COMPONENTS_IN_FRAME).get();
+        final int[] componentIdentifiers = listToIntArray(rev(ref("component_identifier")).eval(state, Encoding.DEFAULT_ENCODING));
+        final int[] samplingFactors = listToIntArray(rev(ref("sampling_factors")).eval(state, Encoding.DEFAULT_ENCODING));
+        return new FrameHeader(identifier.get(), intValue(state, HEIGHT).get(), intValue(state, WIDTH).get(),
+                Arrays.copyOfRange(componentIdentifiers, componentIdentifiers.length - componentCount, componentIdentifiers.length),
+                Arrays.copyOfRange(samplingFactors, samplingFactors.length - componentCount, samplingFactors.length));
+    }
+
+    private static ScanHeader scanHeader(final ParseState state) {
+        return new ScanHeader(
+                listToIntArray(rev(ref(SCAN_COMPONENT_SELECTOR)).eval(state, Encoding.DEFAULT_ENCODING)),
+                listToIntArray(rev(ref(DC_AC_TABLE_SELECTOR)).eval(state, Encoding.DEFAULT_ENCODING)),
+                intValue(state, START_OF_SPECTRAL_SELECTION).get(),
+                intValue(state, END_OF_SPECTRAL_SELECTION).get(),
+                intValue(state, HIGH_AND_LOW_SUCCESSIVE_APPROXIMATION_BIT_POSITION).get());
+    }
+
+    private static int restartInterval(final ParseState state) {
+        return intValue(state, RESTART_INTERVAL).orElse(HeaderSegments.NO_RESTART_INTERVAL);
+    }
+
+    private static Optional<Integer> intValue(final ParseState state, final String name) {
+        return last(ref(name)).evalSingle(state, Encoding.DEFAULT_ENCODING).map(value -> value.asNumeric().intValueExact());
+    }
+
+    @Override
+    public void handleSuccess(final Token token, final ParseState before, final ParseState after) {
+        if (token.name.equals(IDENTIFIER)) {
+            reportedOffset = after.offset.longValueExact();
+        }
+    }
+
+    @Override
+    public void handleFailure(final Token token, final ParseState before) {
+    }
+
+}
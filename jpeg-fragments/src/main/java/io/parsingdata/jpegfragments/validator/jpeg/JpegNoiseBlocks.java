@@ -0,0 +1,124 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+import io.parsingdata.metal.data.ByteStream;
+
+/**
+ * Blocks of the input that are certainly not entropy-coded data, found with byte statistics
+ * only, ahead of the sequential decoder.
+ *
+ * Blocks are aligned to filesystem clusters. A block is noise if every byte in it is
+ * printable ASCII, or if it has no 0xFF at all (so no byte stuffing either) while its byte
+ * histogram is about as flat as random data. Huffman-coded data is dense, so a 0xFF comes
+ * along every few hundred bytes, and 0xFF00 with it; only very repetitive data lacks it,
+ * and that has a low entropy. The blocks are classified in parallel on the common fork-join
+ * pool, 64 blocks per word of the resulting bitmap, which recovery reads to jump past them.
+ */
+final class JpegNoiseBlocks {
+
+    static final double MIN_NOISE_ENTROPY = 7.5; // Bits per byte; random bytes have close to 8.
+
+    private final long origin;
+    private final int blockBytes;
+    private final long firstBlock; // Index of the first block that starts at or after the entropy-coded data.
+    private final int blockCount;
+    private final long[] noise; // Bit per block from firstBlock onwards.
+
+    private JpegNoiseBlocks(final long origin, final int blockBytes, final long firstBlock, final int blockCount) {
+        this.origin = origin;
+        this.blockBytes = blockBytes;
+        this.firstBlock = firstBlock;
+        this.blockCount = blockCount;
+        this.noise = new long[(blockCount + 63) / 64];
+    }
+
+    /**
+     * @param origin file offset the blocks are counted from
+     * @param entropyStart file offset of the entropy-coded data, blocks that start before it are not classified
+     */
+    static JpegNoiseBlocks classify(final ByteStream input, final long origin, final long entropyStart,
+            final int blockBytes) {
+        final long firstBlock = (Math.max(entropyStart - origin, 0) + blockBytes - 1) / blockBytes;
+        final long firstBlockStart = origin + firstBlock * blockBytes;
+        final int blockCount = (int) (JpegByteStream.availableLength(input, firstBlockStart) / blockBytes);
+        final JpegNoiseBlocks blocks = new JpegNoiseBlocks(origin, blockBytes, firstBlock, blockCount);
+        IntStream.range(0, blocks.noise.length).parallel().forEach(word -> {
+            final int wordBlocks = Math.min(64, blockCount - 64 * word);
+            try {
+                final ByteBuffer data = JpegByteStream.read(input, firstBlockStart + 64L * word * blockBytes,
+                        wordBlocks * blockBytes);
+                for (int block = 0; block < wordBlocks && data.remaining() >= blockBytes; block++) {
+                    if (isNoise(data, blockBytes)) {
+                        blocks.noise[word] |= 1L << block;
+                    }
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return blocks;
+    }
+
+    /**
+     * @return whether the block the file offset is in is certainly noise
+     */
+    boolean isNoise(final long offset) {
+        if (offset < origin) {
+            return false;
+        }
+        final long block = (offset - origin) / blockBytes - firstBlock;
+        return block >= 0 && block < blockCount && (noise[(int) (block >>> 6)] & (1L << block)) != 0;
+    }
+
+    /**
+     * @return the file offset of the end of the block the file offset is in
+     */
+    long blockEnd(final long offset) {
+        return origin + ((offset - origin) / blockBytes + 1) * blockBytes;
+    }
+
+    int noiseCount() {
+        int count = 0;
+        for (final long word : noise) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    int size() {
+        return blockCount;
+    }
+
+    /**
+     * Reads the next block of data and tells whether it is noise.
+     */
+    private static boolean isNoise(final ByteBuffer data, final int blockBytes) {
+        final int[] histogram = new int[256];
+        for (int i = 0; i < blockBytes; i++) {
+            histogram[data.get() & 0xFF]++;
+        }
+        int printable = 0;
+        for (int value = 0x20; value <= 0x7E; value++) {
+            printable += histogram[value];
+        }
+        if (printable == blockBytes) { // Text.
+            return true;
+        }
+        if (histogram[0xFF] > 0) { // Any 0xFF may start byte stuffing or a marker.
+            return false;
+        }
+        double entropy = 0;
+        for (final int count : histogram) {
+            if (count > 0) {
+                final double p = (double) count / blockBytes;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) >= MIN_NOISE_ENTROPY;
+    }
+
+}
@@ -2,71 +2,91 @@ package io.parsingdata.jpegfragments.validator.jpeg;
 
 import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.AC;
 import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.DC;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.DC_AC_TABLE_SELECTOR;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.END_OF_SPECTRAL_SELECTION;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HEIGHT;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HIGH_AND_LOW_SUCCESSIVE_APPROXIMATION_BIT_POSITION;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HT;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.NUMBER_OF_IMAGE_COMPONENTS_IN_FRAME;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.NUMBER_OF_IMAGE_COMPONENTS_IN_SCAN;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.RESTART_INTERVAL;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SCAN;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SCAN_COMPONENT_SELECTOR;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.START_OF_SPECTRAL_SELECTION;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.WIDTH;
-import static io.parsingdata.metal.Shorthand.con;
-import static io.parsingdata.metal.Shorthand.last;
-import static io.parsingdata.metal.Shorthand.nth;
-import static io.parsingdata.metal.Shorthand.ref;
-import static io.parsingdata.metal.Shorthand.rev;
-import static java.math.BigInteger.ONE;
-import static java.math.BigInteger.ZERO;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.COEFFICIENT_AC_REFINE;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.EOF;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.HUFFMAN_AC_FIRST;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.HUFFMAN_AC_REFINE;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.HUFFMAN_DC_FIRST;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.JPEG_HEADER;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.OK;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.QUANTIZATION_ARRAY_SIZE;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.RESTART_MARKER;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.SOS_BLOCK;
 
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Arrays;
-import java.util.BitSet;
+import java.util.Map;
 import java.util.Optional;
 
+import io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType;
 import io.parsingdata.metal.data.ByteStream;
-import io.parsingdata.metal.data.Environment;
-import io.parsingdata.metal.data.ParseState;
-import io.parsingdata.metal.data.callback.Callback;
-import io.parsingdata.metal.data.callback.Callbacks;
-import io.parsingdata.metal.encoding.Encoding;
-import io.parsingdata.metal.expression.value.Value;
-import io.parsingdata.metal.token.Token;
 
+/**
+ * Validates the scans of a progressive JPEG and detects fragments in them the way
+ * {@link JpegBaseline} does in a baseline scan.
+ *
+ * When the data of a scan breaks a rule, recovery assumes clusters of noise were inserted
+ * before the break: it splices whole clusters out of the input (see {@link SplicedByteStream})
+ * and decodes again from the last checkpoint before the cut (see {@link JpegScanCheckpoints}),
+ * with the coefficient state of that point. A splice holds if decoding continues well past the
+ * cut, or up to the end of the scan where the next scan or the EOI starts. The fragment then
+ * ends at the cut and the next one starts where the data resumes. Otherwise the next scan
+ * header is searched for and a fragment starts there; the coefficients of the lost part of the
+ * scan stay unknown.
+ */
 public class JpegProgressive {
 
-    private static String[] channelNames = {"Luminance", "Blueness", "Redness"};
-    private String info = "";
+    private int error = OK;
+    private JpegValidationContext context;
+    private JpegDetectionConfig config;
     private int endOfBandSkips;
+    private JpegByteStream entropyData; // Unstuffed from the first scan on and shared by all scans.
+    private ByteStream sourceInput;
+    private ByteStream input; // The source input with the clusters of noise found so far spliced out.
+    private long clusterOrigin;
+    private long entropyStart;
+    private JpegNoiseBlocks noiseBlocks; // Classified at the first break.
+    private final JpegScanCheckpoints checkpoints = new JpegScanCheckpoints();
+    private long fragmentStart; // Offset in the source input, -1 if no fragment is open.
+    private long missingBytes; // Estimated bytes of the scan data lost at breaks, -1 if unknown.
 
     JpegProgressive() {}
 
-    JpegValidationResult validateProgressiveScans(final JpegValidator validator, final ParseState headerState, final ByteStream input) throws IOException {
+    void release() {
+        this.context = null;
+        this.entropyData = null;
+        this.sourceInput = null;
+        this.input = null;
+        this.noiseBlocks = null;
+    }
+
+    JpegValidationResult validateProgressiveScans(final JpegValidationContext context, final HeaderSegments header, final ByteStream input) throws IOException {
+        this.context = context;
+        this.config = context.validator.config;
+        this.error = OK;
         this.endOfBandSkips = 0;
-        final Optional<Value> heightValue = last(ref(HEIGHT)).evalSingle(headerState, Encoding.DEFAULT_ENCODING);
-        if (heightValue.isEmpty()) {
-            info = "JpegHeader";
-            return new JpegValidationResult(false, validator.reportedOffset, validator, info);
-        }
-        final int height = heightValue.get().asNumeric().intValueExact();
-        final Optional<Value> widthValue = last(ref(WIDTH)).evalSingle(headerState, Encoding.DEFAULT_ENCODING);
-        if (widthValue.isEmpty()) {
-            info = "JpegHeader";
-            return new JpegValidationResult(false, validator.reportedOffset, validator, info);
-        }
-        final int width = widthValue.get().asNumeric().intValueExact();
+        this.entropyData = null;
+        this.sourceInput = input;
+        this.input = input;
+        this.clusterOrigin = JpegBaseline.findJpegHeaderStart(input);
+        this.noiseBlocks = null;
+        this.fragmentStart = clusterOrigin;
+        this.missingBytes = 0;
+        if (header.frame == null) {
+            error = JPEG_HEADER.code();
+            return new JpegValidationResult(false, context.reportedOffset, context.validator, JpegDecodeError.describe(error));
+        }
+        final int height = header.frame.height;
+        final int width = header.frame.width;
         final int mcuBaseWidth = ((width  / 8) + (width  % 8 == 0 ? 0 : 1));
         final int mcuBaseHeigth = ((height / 8) + (height % 8 == 0 ? 0 : 1));
         final int mcuBaseCount = mcuBaseWidth * mcuBaseHeigth;
 
-        final int totalChannelCount = rev(ref(NUMBER_OF_IMAGE_COMPONENTS_IN_FRAME)).eval(headerState, Encoding.DEFAULT_ENCODING).head.asNumeric().intValueExact();
+        final int totalChannelCount = header.frame.componentCount();
 
-        final byte samplingFactors = rev(ref("sampling_factors")).eval(headerState, Encoding.DEFAULT_ENCODING).head.value()[0];
-        final int[] componentIDs = JpegValidator.listToIntArray(rev(ref("component_identifier")).eval(headerState, Encoding.DEFAULT_ENCODING));
+        final int samplingFactors = header.frame.samplingFactors(0);
+        final int[] componentIDs = header.frame.componentIdentifiers();
         final int mcuWidthFactor = totalChannelCount > 1 ? (samplingFactors >> 4) & 0x0F : 1; // If there's only one channel, it's grayscale, which implies no subsampling
         final int mcuWidth = ((width  / (8 * mcuWidthFactor)) + (width  % (8 * mcuWidthFactor) == 0 ? 0 : 1));
         final int mcuHeightFactor = totalChannelCount > 1 ? samplingFactors & 0x0F : 1; // If there's only one channel, it's grayscale, which implies no subsampling
@@ -76,56 +96,69 @@ public class JpegProgressive {
         final boolean skipVertical = (mcuHeightFactor > 1) && ((height % (mcuHeightFactor * 8)) <= 8) && ((height % (mcuHeightFactor * 8)) > 0);
         final int luminanceCountPerMcu = mcuWidthFactor * mcuHeightFactor; // Calculate the ratio of luminance vs. chrominance values with subsampling
 
-        int restartInterval = last(ref(RESTART_INTERVAL)).evalSingle(headerState, Encoding.DEFAULT_ENCODING).map(value -> value.asNumeric().intValueExact()).orElse(0);
+        int restartInterval = header.restartInterval(0);
 
         final int[][] previousSaLows = new int[totalChannelCount][64];
         for (int[] previousSaLow : previousSaLows) {
             Arrays.fill(previousSaLow, -1);
         }
         boolean finalScanCompleted = false;
-        validator.reportedOffset = headerState.offset;
-        final boolean[][][] refinableCoeffs = new boolean[totalChannelCount][][];
-        refinableCoeffs[0] = new boolean[mcuBaseCount][64];
+        context.reportedOffset = header.offset;
+        final JpegRefinableCoefficients[] refinableCoeffs = new JpegRefinableCoefficients[totalChannelCount];
+        refinableCoeffs[0] = context.refinableCoefficients(0, mcuBaseCount);
         for (int chromIndex = 1; chromIndex < totalChannelCount; chromIndex++) {
-            refinableCoeffs[chromIndex] = new boolean[mcuCount][64];
+            refinableCoeffs[chromIndex] = context.refinableCoefficients(chromIndex, mcuCount);
         }
         while (!finalScanCompleted) {
-            final Optional<ParseState> scanResult = SCAN.parse(new Environment(ParseState.createFromByteStream(input, validator.reportedOffset), Callbacks.create().add(validator).add(HT, new Callback() {
-                @Override public void handleSuccess(final Token token, final ParseState before, final ParseState after) {
-                    final HuffmanTable table = new HuffmanTable(after);
-                    validator.huffmanTables.get(table.type).put(table.id, table);
-                }
-                @Override public void handleFailure(final Token token, final ParseState before) {}
-            }), Encoding.DEFAULT_ENCODING));
+            final long scanStart = context.reportedOffset;
+            final Optional<HeaderSegments> scanResult = context.parseScan(this.input, scanStart);
             if (scanResult.isEmpty()) {
-                info = "SOSBlock";
-                return new JpegValidationResult(false, validator.reportedOffset, validator, info);
-            }
-            validator.reportedOffset = scanResult.get().offset;
-            restartInterval = last(ref(RESTART_INTERVAL)).evalSingle(scanResult.get(), Encoding.DEFAULT_ENCODING).map(value -> value.asNumeric().intValueExact()).orElse(restartInterval);
-            final int startOfSpectralSelection = last(ref(START_OF_SPECTRAL_SELECTION)).evalSingle(scanResult.get(), Encoding.DEFAULT_ENCODING).get().asNumeric().intValueExact();
-            final int endOfSpectralSelection = last(ref(END_OF_SPECTRAL_SELECTION)).evalSingle(scanResult.get(), Encoding.DEFAULT_ENCODING).get().asNumeric().intValueExact();
-            final int imageComponentsInScan = last(ref(NUMBER_OF_IMAGE_COMPONENTS_IN_SCAN)).evalSingle(scanResult.get(), Encoding.DEFAULT_ENCODING).get().asNumeric().intValueExact();
-            final int[] scanComponentSelectors = JpegValidator.listToIntArray(rev(ref(SCAN_COMPONENT_SELECTOR)).eval(scanResult.get(), Encoding.DEFAULT_ENCODING));
-            final int saValues = last(ref(HIGH_AND_LOW_SUCCESSIVE_APPROXIMATION_BIT_POSITION)).evalSingle(scanResult.get(), Encoding.DEFAULT_ENCODING).get().asNumeric().intValueExact();
-            final int saLow = saValues & 0x0f;
-            final int saHigh = saValues >>> 4;
+                error = SOS_BLOCK.code();
+                missingBytes = -1; // The scan is lost as a whole.
+                endFragment(scanStart);
+                final int marker = skipToNextScan(context, scanStart + 1);
+                if (marker < 0) {
+                    return new JpegValidationResult(false, SplicedByteStream.sourceOffset(this.input, scanStart), context.validator, JpegDecodeError.describe(error), context.detectedFragmentPoints, config.fragmentMergeGap);
+                }
+                if (marker == JpegEntropyCodedBitStream.EOI) {
+                    break;
+                }
+                continue;
+            }
+            final ScanHeader scanHeader = scanResult.get().scan;
+            context.reportedOffset = scanResult.get().offset;
+            restartInterval = scanResult.get().restartInterval(restartInterval);
+            final int startOfSpectralSelection = scanHeader.startOfSpectralSelection;
+            final int endOfSpectralSelection = scanHeader.endOfSpectralSelection;
+            final int imageComponentsInScan = scanHeader.componentCount();
+            final int[] scanComponentSelectors = scanHeader.componentSelectors();
+            final int saLow = scanHeader.saLow();
+            final int saHigh = scanHeader.saHigh();
+            final int[] tableSelectors = scanHeader.tableSelectors();
             if (startOfSpectralSelection > endOfSpectralSelection ||
                 endOfSpectralSelection > 63 ||
                 (startOfSpectralSelection == 0 && endOfSpectralSelection != 0) ||
                 (startOfSpectralSelection > 0 && imageComponentsInScan != 1) ||
-                (saHigh != 0 && saLow != (saHigh - 1))) {
-                info = "SOSBlock";
-                return new JpegValidationResult(false, validator.reportedOffset, validator, info);
+                (saHigh != 0 && saLow != (saHigh - 1)) ||
+                !referencesDefined(componentIDs, scanComponentSelectors, tableSelectors, startOfSpectralSelection, saHigh, context.huffmanTables)) {
+                error = SOS_BLOCK.code();
+                missingBytes = -1; // The scan is lost as a whole.
+                endFragment(scanStart);
+                final int marker = skipToNextScan(context, scanStart + 1);
+                if (marker < 0) {
+                    return new JpegValidationResult(false, SplicedByteStream.sourceOffset(this.input, context.reportedOffset), context.validator, JpegDecodeError.describe(error), context.detectedFragmentPoints, config.fragmentMergeGap);
+                }
+                if (marker == JpegEntropyCodedBitStream.EOI) {
+                    break;
+                }
+                continue;
             }
 
-            final JpegValidationResult result = validateProgressiveScanData(componentIDs, luminanceCountPerMcu, restartInterval, mcuWidth, mcuHeight, mcuWidthFactor, mcuHeightFactor, mcuBaseCount, skipHorizontal, skipVertical, startOfSpectralSelection, endOfSpectralSelection, saLow, saHigh, imageComponentsInScan, scanComponentSelectors, refinableCoeffs, validator, headerState, scanResult.get(), input);
-            if (!result.completed) {
-                return result;
-            }
+            final ScanPlan scan = new ScanPlan(componentIDs, luminanceCountPerMcu, restartInterval, mcuWidth, mcuHeight, mcuWidthFactor, mcuHeightFactor, mcuBaseCount, skipHorizontal, skipVertical, startOfSpectralSelection, endOfSpectralSelection, saHigh, scanComponentSelectors, tableSelectors, context.huffmanTables, refinableCoeffs, context.reportedOffset);
+            final JpegValidationResult result = validateProgressiveScanData(scan, context);
             if (imageComponentsInScan == 1) {
                 for (int ssIndex = startOfSpectralSelection; ssIndex <= endOfSpectralSelection; ssIndex++) {
-                    previousSaLows[getComponentIndex(componentIDs, scanComponentSelectors[0])][ssIndex] = saLow;
+                    previousSaLows[scan.componentIndices[0]][ssIndex] = saLow;
                 }
             } else {
                 for (int channelIndex = 0; channelIndex < previousSaLows.length; channelIndex++) {
@@ -133,16 +166,113 @@ public class JpegProgressive {
                 }
             }
             finalScanCompleted = finalScanCompleted(previousSaLows);
-            validator.reportedOffset = result.offset;
+            if (!result.completed) {
+                // The scan is lost from the break on, continue with the next one.
+                final int marker = skipToNextScan(context, context.reportedOffset);
+                if (marker < 0) {
+                    return result;
+                }
+                if (marker == JpegEntropyCodedBitStream.EOI) {
+                    break;
+                }
+                finalScanCompleted = false;
+            }
         }
-        return new JpegValidationResult(true, validator.reportedOffset, validator, info);
+        endFragment(context.reportedOffset);
+        context.reportedOffset = SplicedByteStream.sourceOffset(this.input, context.reportedOffset);
+        return new JpegValidationResult(true, context.reportedOffset, context.validator, JpegDecodeError.describe(error), context.detectedFragmentPoints, config.fragmentMergeGap, finalScanCompleted ? missingBytes : -1);
     }
 
-    private int getComponentIndex(final int[] componentIDs, final int scanComponentSelector) {
+    /**
+     * A scan compiled from its header before its data is decoded: the tables, and the number of
+     * blocks of each component in an MCU. The MCUs in the last column and row hold fewer
+     * luminance blocks when the image does not fill them, so the block counts are kept per edge,
+     * see {@link #edge(int)}.
+     */
+    private static final class ScanPlan {
+        static final int LAST_COLUMN = 1;
+        static final int LAST_ROW = 2;
+
+        final long dataOffset;
+        final int restartInterval;
+        final int mcuWidth;
+        final int mcuHeight;
+        final int startOfSpectralSelection;
+        final int endOfSpectralSelection;
+        final int saHigh;
+        final int[] componentIndices; // Of the components in the scan, in the frame.
+        final HuffmanTable[] dcTables; // Of the components in the scan.
+        final HuffmanTable acTable; // Null in DC scans.
+        final int[][] blockCounts; // Per edge, of the components in the scan.
+        final int[] refineBits; // Per edge, the blocks in an MCU of a DC refine scan.
+        final boolean edgeBlocks; // Whether the block counts differ at the edges.
+        final JpegRefinableCoefficients refinableCoeffs; // Of the component of an AC scan, null in DC scans.
+        final int unitCount; // MCUs, or blocks in AC scans.
+
+        ScanPlan(final int[] componentIDs, final int luminanceCountPerMcu, final int restartInterval, final int mcuWidth, final int mcuHeight, final int mcuWidthFactor, final int mcuHeightFactor, final int mcuBaseCount, final boolean skipHorizontal, final boolean skipVertical, final int startOfSpectralSelection, final int endOfSpectralSelection, final int saHigh, final int[] scanComponentSelectors, final int[] tableSelectors, final Map<CoefficientType, Map<Integer, HuffmanTable>> huffmanTables, final JpegRefinableCoefficients[] refinableCoeffs, final long dataOffset) {
+            this.dataOffset = dataOffset;
+            this.restartInterval = restartInterval;
+            this.mcuWidth = mcuWidth;
+            this.mcuHeight = mcuHeight;
+            this.startOfSpectralSelection = startOfSpectralSelection;
+            this.endOfSpectralSelection = endOfSpectralSelection;
+            this.saHigh = saHigh;
+            final int imageComponentsInScan = scanComponentSelectors.length;
+            componentIndices = new int[imageComponentsInScan];
+            dcTables = new HuffmanTable[imageComponentsInScan];
+            for (int channelIndex = 0; channelIndex < imageComponentsInScan; channelIndex++) {
+                componentIndices[channelIndex] = getComponentIndex(componentIDs, scanComponentSelectors[channelIndex]);
+                dcTables[channelIndex] = huffmanTables.get(DC).get(tableSelectors[channelIndex] >>> 4);
+            }
+            acTable = startOfSpectralSelection > 0 ? huffmanTables.get(AC).get(tableSelectors[0] & 0x0F) : null;
+            blockCounts = new int[(LAST_COLUMN | LAST_ROW) + 1][imageComponentsInScan];
+            refineBits = new int[blockCounts.length];
+            for (int edge = 0; edge < blockCounts.length; edge++) {
+                for (int channelIndex = 0; channelIndex < imageComponentsInScan; channelIndex++) {
+                    // If the scan holds luminance (component #1) then there might be multiple blocks per MCU due to subsampling
+                    blockCounts[edge][channelIndex] = componentIndices[channelIndex] != 0 ? 1 : imageComponentsInScan > 1 ? luminanceCountPerMcu : calculateLuminanceCountInMcu((edge & LAST_COLUMN) != 0, (edge & LAST_ROW) != 0, mcuWidthFactor, mcuHeightFactor, skipHorizontal, skipVertical, luminanceCountPerMcu);
+                    refineBits[edge] += blockCounts[edge][channelIndex]; // One bit per block
+                }
+            }
+            edgeBlocks = refineBits[LAST_COLUMN | LAST_ROW] != refineBits[0];
+            this.refinableCoeffs = startOfSpectralSelection > 0 ? refinableCoeffs[componentIndices[0]] : null;
+            this.unitCount = startOfSpectralSelection == 0 ? mcuWidth * mcuHeight : componentIndices[0] == 0 ? mcuBaseCount : (mcuWidth * mcuHeight);
+        }
+
+        /**
+         * @return {@link #LAST_COLUMN} and {@link #LAST_ROW} for the MCU, 0 for an MCU that is not on the edge
+         */
+        int edge(final int unit) {
+            if (!edgeBlocks) {
+                return 0;
+            }
+            return (unit % mcuWidth + 1 == mcuWidth ? LAST_COLUMN : 0) | (unit / mcuWidth + 1 == mcuHeight ? LAST_ROW : 0);
+        }
+    }
+
+    /**
+     * @return the index of the component in the frame, or -1 if the frame does not specify it
+     */
+    private static int getComponentIndex(final int[] componentIDs, final int scanComponentSelector) {
         for (int i = 0; i < componentIDs.length; i++) {
             if (componentIDs[i] == scanComponentSelector) { return i; }
         }
-        throw new RuntimeException("provided scanComponentSelector not specified in Frame header.");
+        return -1;
+    }
+
+    /**
+     * @return whether the frame specifies every component of the scan and every table the scan decodes with is defined
+     */
+    private static boolean referencesDefined(final int[] componentIDs, final int[] scanComponentSelectors, final int[] tableSelectors, final int startOfSpectralSelection, final int saHigh, final Map<CoefficientType, Map<Integer, HuffmanTable>> huffmanTables) {
+        for (int channelIndex = 0; channelIndex < scanComponentSelectors.length; channelIndex++) {
+            if (getComponentIndex(componentIDs, scanComponentSelectors[channelIndex]) < 0) {
+                return false;
+            }
+            if (startOfSpectralSelection == 0 && saHigh == 0 && huffmanTables.get(DC).get(tableSelectors[channelIndex] >>> 4) == null) {
+                return false; // DC refine scans decode without tables.
+            }
+        }
+        return startOfSpectralSelection == 0 || huffmanTables.get(AC).get(tableSelectors[0] & 0x0F) != null;
     }
 
     private boolean finalScanCompleted(final int[][] previousSaLows) {
@@ -154,279 +284,407 @@ public class JpegProgressive {
         return true;
     }
 
-    private JpegValidationResult validateProgressiveScanData(final int[] componentIDs, final int luminanceCountPerMcu, final int restartInterval, final int mcuWidth, final int mcuHeight, final int mcuWidthFactor, final int mcuHeightFactor, final int mcuBaseCount, final boolean skipHorizontal, final boolean skipVertical, final int startOfSpectralSelection, final int endOfSpectralSelection, final int saLow, final int saHigh, final int imageComponentsInScan, final int[] scanComponentSelectors, final boolean[][][] myRefinableCoeffs, final JpegValidator validator, final ParseState headerState, final ParseState scanState, final ByteStream input) throws IOException {
-        validator.reportedOffset = scanState.offset;
-        final JpegEntropyCodedBitStream bitStream = new JpegEntropyCodedBitStream(input, validator.reportedOffset, 0);
-        if (saHigh == 0) { // DC or AC first
-            if (startOfSpectralSelection == 0) { // DC first
-                // for each MCU, for each channel, ...
-                for (int mcuHeightIndex = 0; mcuHeightIndex < mcuHeight; mcuHeightIndex++) {
-                    for (int mcuWidthIndex = 0; mcuWidthIndex < mcuWidth; mcuWidthIndex++) {
-                        // Restart marker:
-                        if (!validateRestartMarker(bitStream, (mcuHeightIndex*mcuWidth)+mcuWidthIndex, restartInterval)) {
-                            return new JpegValidationResult(false, BigInteger.valueOf(bitStream.getOffset()), validator, info);
-                        }
-                        // For all channels:
-                        for (int channelIndex = 0; channelIndex < imageComponentsInScan; channelIndex++) {
-                            final int dcId = nth(ref(DC_AC_TABLE_SELECTOR), con(channelIndex)).evalSingle(scanState, Encoding.DEFAULT_ENCODING).get().asNumeric().intValueExact() >>> 4;
-                            // If we are validating component #1 (luminance) then we might have multiple instances per MCU due to subsampling
-                            for (int csFactorIndex = 0; csFactorIndex < (scanComponentSelectors[channelIndex] == componentIDs[0] ? (imageComponentsInScan > 1 ? luminanceCountPerMcu : calculateLuminanceCountInMcu(mcuWidthIndex, mcuHeightIndex, mcuWidth, mcuHeight, mcuWidthFactor, mcuHeightFactor, skipHorizontal, skipVertical, luminanceCountPerMcu)) : 1); csFactorIndex++) {
-                                if (!validateDCFirstData(bitStream, validator.huffmanTables.get(DC).get(dcId), channelIndex)) {
-                                    return new JpegValidationResult(false, BigInteger.valueOf(bitStream.getOffset()), validator, info);
-                                }
-                            }
-                        }
-                        validator.reportedOffset = BigInteger.valueOf(bitStream.getOffset()).add(bitStream.getBitOffset() > 0 ? ONE : ZERO);
-                    }
+    private JpegValidationResult validateProgressiveScanData(final ScanPlan scan, final JpegValidationContext context) throws IOException {
+        context.reportedOffset = scan.dataOffset;
+        if (entropyData == null) {
+            entropyData = new JpegByteStream(input, context.reportedOffset);
+            entropyStart = context.reportedOffset;
+        }
+        JpegEntropyCodedBitStream bitStream = new JpegEntropyCodedBitStream(entropyData, context.reportedOffset, 0);
+        checkpoints.reset();
+        for (int unit = 0; unit <= scan.unitCount; unit++) {
+            checkpoints.record(bitStream, unit, endOfBandSkips);
+            if (unit < scan.unitCount) {
+                error = validateScanUnit(scan, bitStream, unit);
+            } else {
+                // The scan must end where the next one or the EOI starts.
+                error = nextSegmentStarts(input, bitStream) ? OK : SOS_BLOCK.code();
+                if (error == OK) {
+                    break;
                 }
-            } else { // AC first, 1 channel validation
-                final int currentMcuCount = scanComponentSelectors[0] == componentIDs[0] ? mcuBaseCount : (mcuWidth * mcuHeight);
-                final int acId = last(ref(DC_AC_TABLE_SELECTOR)).evalSingle(scanState, Encoding.DEFAULT_ENCODING).get().asNumeric().intValueExact() & 0x0F;
-                for (int mcuIndex = 0; mcuIndex < currentMcuCount; mcuIndex++) {
-                    // Restart marker:
-                    if (!validateRestartMarker(bitStream, mcuIndex, restartInterval)) {
-                        return new JpegValidationResult(false, BigInteger.valueOf(bitStream.getOffset()), validator, info);
-                    }
-                    // for each MCU, for a single channel:
-                    // validate from sOS to eOS
-                    if (endOfBandSkips > 0) {
-                        endOfBandSkips--;
-                    } else {
-                        if (!validateACFirstData(bitStream, validator.huffmanTables.get(AC).get(acId), startOfSpectralSelection, endOfSpectralSelection, myRefinableCoeffs[getComponentIndex(componentIDs, scanComponentSelectors[0])][mcuIndex])) {
-                            return new JpegValidationResult(false, BigInteger.valueOf(bitStream.getOffset()), validator, info);
-                        }
-                    }
-                    validator.reportedOffset = BigInteger.valueOf(bitStream.getOffset()).add(bitStream.getBitOffset() > 0 ? ONE : ZERO);
+            }
+            if (error != OK) {
+                final long breakOffset = bitStream.getOffset();
+                final int checkpoint = findSplice(scan, breakOffset);
+                if (checkpoint < 0) {
+                    // The rest of the scan is lost, estimated at the average size of the units decoded before the break.
+                    missingBytes = missingBytes < 0 || unit == 0 ? -1 : missingBytes + (scan.unitCount - unit) * (breakOffset - scan.dataOffset) / unit;
+                    endFragment(lastValidOffset(scan, unit));
+                    context.reportedOffset = breakOffset;
+                    return new JpegValidationResult(false, SplicedByteStream.sourceOffset(input, breakOffset), context.validator, JpegDecodeError.describe(error), context.detectedFragmentPoints, config.fragmentMergeGap);
                 }
-            } // end AC first
-        } else { // DC or AC refine
-            if (startOfSpectralSelection == 0) { // DC refine
-                for (int mcuHeightIndex = 0; mcuHeightIndex < mcuHeight; mcuHeightIndex++) {
-                    for (int mcuWidthIndex = 0; mcuWidthIndex < mcuWidth; mcuWidthIndex++) {
-                        // Restart marker:
-                        if (!validateRestartMarker(bitStream, (mcuHeightIndex * mcuWidth) + mcuWidthIndex, restartInterval)) {
-                            return new JpegValidationResult(false, BigInteger.valueOf(bitStream.getOffset()), validator, info);
-                        }
-                        // In case of subsampling, there may be multiple luminance bits to skip per MCU
-                        final boolean skipPossible = bitStream.skip(
-                            scanComponentSelectors[0] != componentIDs[0] ? // Does this scan contain luminance?
-                                imageComponentsInScan : // No: Skip 1 bit for each channel it does contain
-                                (imageComponentsInScan == 1 ? // Yes: Is this a luminance-only scan?
-                                    // Yes: Calculate whether to skip 1, 2 or 4 bits
-                                    calculateLuminanceCountInMcu(mcuWidthIndex, mcuHeightIndex, mcuWidth, mcuHeight, mcuWidthFactor, mcuHeightFactor, skipHorizontal, skipVertical, luminanceCountPerMcu) :
-                                    luminanceCountPerMcu + (imageComponentsInScan - 1)) // No: Skip max amount of luminance + 1 bit per chrominance channel
-                        );
-                        if (!skipPossible) {
-                            info = "EOF";
-                            return new JpegValidationResult(false, BigInteger.valueOf(bitStream.getOffset()), validator, info);
+                final long position = checkpoints.position(checkpoint);
+                entropyData = new JpegByteStream(input, position >>> 3);
+                bitStream = new JpegEntropyCodedBitStream(entropyData, position >>> 3, (int) (position & 7));
+                checkpoints.truncate(checkpoint);
+                unit = checkpoints.unit(checkpoint) - 1;
+            }
+        }
+        context.reportedOffset = bitStream.getOffset() + (bitStream.getBitOffset() > 0 ? 1 : 0);
+        return new JpegValidationResult(true, context.reportedOffset, context.validator, JpegDecodeError.describe(error));
+    }
+
+    /**
+     * Validates the restart marker (if one is due) and the data of a single unit of the scan.
+     *
+     * @return {@link JpegDecodeError#OK} or the code of the rule the unit breaks
+     */
+    private int validateScanUnit(final ScanPlan scan, final JpegEntropyCodedBitStream bitStream, final int unit) throws IOException {
+        // Restart marker:
+        final int restartError = validateRestartMarker(bitStream, unit, scan.restartInterval);
+        if (restartError != OK) {
+            return restartError;
+        }
+        if (scan.saHigh == 0) { // DC or AC first
+            if (scan.startOfSpectralSelection == 0) { // DC first
+                final int[] blockCounts = scan.blockCounts[scan.edge(unit)];
+                // For all channels:
+                for (int channelIndex = 0; channelIndex < blockCounts.length; channelIndex++) {
+                    for (int blockIndex = 0; blockIndex < blockCounts[channelIndex]; blockIndex++) {
+                        final int dcError = validateDCFirstData(bitStream, scan.dcTables[channelIndex], channelIndex);
+                        if (dcError != OK) {
+                            return dcError;
                         }
-                        validator.reportedOffset = BigInteger.valueOf(bitStream.getOffset()).add(bitStream.getBitOffset() > 0 ? ONE : ZERO);
                     }
                 }
-            } else { // AC refine, 1 channel validation
-                final int currentMcuCount = scanComponentSelectors[0] == componentIDs[0] ? mcuBaseCount : (mcuWidth * mcuHeight);
-                final int acId = last(ref(DC_AC_TABLE_SELECTOR)).evalSingle(scanState, Encoding.DEFAULT_ENCODING).get().asNumeric().intValueExact() & 0x0F;
-                for (int mcuIndex = 0; mcuIndex < currentMcuCount; mcuIndex++) {
-                    // Restart marker:
-                    if (!validateRestartMarker(bitStream, mcuIndex, restartInterval)) {
-                        return new JpegValidationResult(false, BigInteger.valueOf(bitStream.getOffset()), validator, info);
-                    }
-                    if (!validateACRefineData(bitStream, validator.huffmanTables.get(AC).get(acId), startOfSpectralSelection, endOfSpectralSelection, myRefinableCoeffs[getComponentIndex(componentIDs, scanComponentSelectors[0])][mcuIndex])) {
-                        return new JpegValidationResult(false, BigInteger.valueOf(bitStream.getOffset()), validator, info);
-                    }
-                    validator.reportedOffset = BigInteger.valueOf(bitStream.getOffset()).add(bitStream.getBitOffset() > 0 ? ONE : ZERO);
+                return OK;
+            }
+            // AC first, 1 channel validation: validate from sOS to eOS
+            if (endOfBandSkips > 0) {
+                endOfBandSkips--;
+                return OK;
+            }
+            return validateACFirstData(bitStream, scan.acTable, scan.componentIndices[0], scan.startOfSpectralSelection, scan.endOfSpectralSelection, scan.refinableCoeffs, unit);
+        }
+        if (scan.startOfSpectralSelection == 0) { // DC refine
+            // Skip 1 bit per block; with subsampling there may be multiple luminance blocks per MCU
+            return bitStream.skipBits(scan.refineBits[scan.edge(unit)]) ? OK : EOF.code();
+        }
+        // AC refine, 1 channel validation
+        return validateACRefineData(bitStream, scan.acTable, scan.componentIndices[0], scan.startOfSpectralSelection, scan.endOfSpectralSelection, scan.refinableCoeffs, unit);
+    }
+
+    /**
+     * Looks for clusters of noise to splice out of the input before the break, nearest first.
+     * On success, the input is spliced and the coefficient state is that of the returned
+     * checkpoint, from which decoding continues.
+     *
+     * @return the checkpoint before the cut, or -1 if no splice holds
+     */
+    private int findSplice(final ScanPlan scan, final long breakOffset) throws IOException {
+        if (noiseBlocks == null) {
+            noiseBlocks = JpegNoiseBlocks.classify(sourceInput, clusterOrigin, entropyStart, config.clusterBytes);
+        }
+        System.out.println("  Recovery: break in scan at offset " + SplicedByteStream.sourceOffset(input, breakOffset) + ", looking for noise to splice out...");
+        for (long cut = clusterOrigin + (breakOffset - clusterOrigin) / config.clusterBytes * config.clusterBytes; cut > breakOffset - config.maxSingleErrorRecovery; cut -= config.clusterBytes) {
+            final int checkpoint = checkpoints.before(8 * cut);
+            if (checkpoint < 0) {
+                break;
+            }
+            for (long resume = cut + config.clusterBytes; resume < breakOffset + config.maxSingleErrorRecovery && input.isAvailable(BigInteger.valueOf(resume), BigInteger.ONE); resume += config.clusterBytes) {
+                if (noiseBlocks.isNoise(SplicedByteStream.sourceOffset(input, resume))) {
+                    continue;
+                }
+                final SplicedByteStream spliced = new SplicedByteStream(input, cut, resume - cut);
+                final boolean holds = decodesAcross(scan, spliced, checkpoint, cut);
+                restore(scan, checkpoint);
+                if (holds) {
+                    final long end = SplicedByteStream.sourceOffset(input, cut);
+                    final long start = SplicedByteStream.sourceOffset(input, resume);
+                    System.out.println("  Recovery SUCCESS: spliced out [" + end + " - " + start + "), decoding resumes at offset " + start);
+                    endFragment(cut);
+                    fragmentStart = start;
+                    input = spliced;
+                    return checkpoint;
+                }
+            }
+        }
+        System.out.println("  Recovery FAILED: no noise to splice out");
+        return -1;
+    }
+
+    /**
+     * @return whether the units from the checkpoint on decode over the spliced input until well past the cut, or
+     *         until the end of the scan where the next scan or the EOI starts
+     */
+    private boolean decodesAcross(final ScanPlan scan, final ByteStream spliced, final int checkpoint, final long cut) throws IOException {
+        final long position = restore(scan, checkpoint);
+        final JpegEntropyCodedBitStream trial = new JpegEntropyCodedBitStream(new JpegByteStream(spliced, position >>> 3), position >>> 3, (int) (position & 7));
+        for (int unit = checkpoints.unit(checkpoint); unit < scan.unitCount; unit++) {
+            final long bitPosition = trial.getBitPosition();
+            if (bitPosition < 0) {
+                return false;
+            }
+            if (bitPosition >= 8 * (cut + config.spliceProbeBytes)) {
+                return true;
+            }
+            if (validateScanUnit(scan, trial, unit) != OK) {
+                return false;
+            }
+        }
+        return nextSegmentStarts(spliced, trial);
+    }
+
+    /**
+     * Returns the coefficient state to that of the checkpoint.
+     *
+     * @return the bit position of the checkpoint
+     */
+    private long restore(final ScanPlan scan, final int checkpoint) {
+        if (scan.refinableCoeffs != null) {
+            checkpoints.revert(checkpoint, scan.refinableCoeffs);
+        }
+        endOfBandSkips = checkpoints.endOfBandSkips(checkpoint);
+        return checkpoints.position(checkpoint);
+    }
+
+    /**
+     * Decodes the units from the latest checkpoint up to the one that broke a rule again.
+     *
+     * @return the offset of the end of the last valid unit
+     */
+    private long lastValidOffset(final ScanPlan scan, final int brokenUnit) throws IOException {
+        final int checkpoint = checkpoints.latest();
+        final long position = restore(scan, checkpoint);
+        final JpegEntropyCodedBitStream replay = new JpegEntropyCodedBitStream(new JpegByteStream(input, position >>> 3), position >>> 3, (int) (position & 7));
+        for (int unit = checkpoints.unit(checkpoint); unit < brokenUnit; unit++) {
+            if (validateScanUnit(scan, replay, unit) != OK) {
+                break;
+            }
+        }
+        return replay.getOffset() + (replay.getBitOffset() > 0 ? 1 : 0);
+    }
+
+    /**
+     * @return whether a scan or the EOI starts at the next byte boundary of the stream
+     */
+    private boolean nextSegmentStarts(final ByteStream input, final JpegEntropyCodedBitStream bitStream) throws IOException {
+        final int marker = bitStream.markerAhead();
+        if (marker == JpegEntropyCodedBitStream.EOI) {
+            return true;
+        }
+        final long offset = bitStream.getAlignedOffset();
+        return marker != JpegEntropyCodedBitStream.NO_MARKER && offset >= 0 && context.startsScan(input, offset);
+    }
+
+    /**
+     * Recovery when a scan cannot be spliced back together: searches forward for the next
+     * marker where a scan starts, or the EOI. A fragment starts at the scan.
+     *
+     * @return the second byte of the marker found, or -1 if there is none
+     */
+    private int skipToNextScan(final JpegValidationContext context, final long offset) throws IOException {
+        System.out.println("  Recovery: searching for the next scan from offset " + SplicedByteStream.sourceOffset(input, offset));
+        if (!input.isAvailable(BigInteger.valueOf(offset), BigInteger.ONE)) {
+            return -1;
+        }
+        final JpegByteStream data = new JpegByteStream(input, offset);
+        for (long index = 0; data.read(index) >= 0; index += JpegByteStream.CHUNK_SIZE) {
+            final long limit = index + JpegByteStream.CHUNK_SIZE - 1;
+            for (long marker = data.nextMarker(index, limit); marker <= limit; marker = data.nextMarker(marker + 1, limit)) {
+                final int code = data.read(marker + 1);
+                final long markerOffset = data.toFileOffset(marker);
+                if (code == JpegEntropyCodedBitStream.EOI) {
+                    System.out.println("  Recovery: EOI at offset " + SplicedByteStream.sourceOffset(input, markerOffset));
+                    context.reportedOffset = markerOffset;
+                    return code;
+                }
+                if ((code < 0xD0 || code > 0xD7) && context.startsScan(input, markerOffset)) {
+                    fragmentStart = SplicedByteStream.sourceOffset(input, markerOffset);
+                    System.out.println("  Recovery SUCCESS: next scan at offset " + fragmentStart);
+                    context.reportedOffset = markerOffset;
+                    return code;
                 }
             }
+            data.release(limit + 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Ends the open fragment, if any, at the offset in the input as it is spliced now.
+     */
+    private void endFragment(final long offset) {
+        if (fragmentStart < 0) {
+            return;
+        }
+        final long end = SplicedByteStream.sourceOffset(input, offset);
+        if (end - fragmentStart >= config.minFragmentLengthBytes) {
+            System.out.println("✓ FRAGMENT END at offset " + end + " (length: " + (end - fragmentStart) + " bytes)");
+            context.detectedFragmentPoints.add(fragmentStart);
+            context.detectedFragmentPoints.add(end);
+        } else {
+            System.out.println("  Discarding short fragment (" + (end - fragmentStart) + " bytes)");
         }
-        validator.reportedOffset = BigInteger.valueOf(bitStream.getOffset()).add(bitStream.getBitOffset() > 0 ? ONE : ZERO);
-        return new JpegValidationResult(true, validator.reportedOffset, validator, info);
+        fragmentStart = -1;
     }
 
-    private int calculateLuminanceCountInMcu(final int mcuWidthIndex, final int mcuHeightIndex, final int mcuWidth, final int mcuHeight, final int mcuWidthFactor, final int mcuHeightFactor, final boolean skipHorizontal, final boolean skipVertical, final int luminanceCountPerMcu) {
-        if (skipHorizontal && (mcuWidthIndex + 1 == mcuWidth)) {
-            if (skipVertical && (mcuHeightIndex + 1 == mcuHeight)) {
+    private static int calculateLuminanceCountInMcu(final boolean lastColumn, final boolean lastRow, final int mcuWidthFactor, final int mcuHeightFactor, final boolean skipHorizontal, final boolean skipVertical, final int luminanceCountPerMcu) {
+        if (skipHorizontal && lastColumn) {
+            if (skipVertical && lastRow) {
                 return luminanceCountPerMcu / (mcuWidthFactor * mcuHeightFactor);
             }
             return luminanceCountPerMcu / mcuWidthFactor;
-        } else if (skipVertical && (mcuHeightIndex + 1 == mcuHeight)) {
+        } else if (skipVertical && lastRow) {
             return luminanceCountPerMcu / mcuHeightFactor;
         }
         return luminanceCountPerMcu;
     }
 
-    private boolean validateRestartMarker(JpegEntropyCodedBitStream input, int mcuIndex, int restartInterval) throws IOException {
+    private int validateRestartMarker(JpegEntropyCodedBitStream input, int mcuIndex, int restartInterval) throws IOException {
         if (mcuIndex > 0 && restartInterval > 0 && (mcuIndex % restartInterval) == 0) { // If restartInterval == 0, there are no markers.
             if (input.getBitOffset() > 0) { // Align to next byte boundary.
-                input.skip(8 - input.getBitOffset());
+                input.skipBits(8 - input.getBitOffset());
             }
-            final Optional<BitSet> restartMarkerValue = input.peek(16);
-            if (restartMarkerValue.isEmpty()) {
-                info = "RestartM";
-                return false;
+            final int restartMarkerValue = input.peekBits(16);
+            if (restartMarkerValue < 0) {
+                return RESTART_MARKER.code();
             }
-            final byte[] restartMarkerBytes = restartMarkerValue.get().toByteArray();
-            // Integer.reverse() with >> 24 and & 0xff is used because BitSet provides the bytes in reversed order.
-            if (restartMarkerBytes[0] != -1 || (byte)((Integer.reverse(restartMarkerBytes[1]) >> 24) & 0xff) != (byte)(208 + (((mcuIndex / restartInterval) - 1) % 8) & 0xff)) {
-                info = "RestartM";
-                return false;
+            if ((restartMarkerValue >>> 8) != 0xFF || (restartMarkerValue & 0xFF) != 0xD0 + (((mcuIndex / restartInterval) - 1) % 8)) {
+                return RESTART_MARKER.code();
             }
-            input.skip(16);
+            input.skipBits(16);
         }
-        return true;
+        return OK;
     }
 
-    private boolean validateDCFirstData(final JpegEntropyCodedBitStream input, final HuffmanTable dcTable, final int channelIndex) throws IOException {
-        final Optional<BitSet> maxDCCodeLengthData = input.peek(dcTable.maxCodeLength);
-        if (maxDCCodeLengthData.isEmpty()) {
-            info = "EOF";
-            return false;
+    private int validateDCFirstData(final JpegEntropyCodedBitStream input, final HuffmanTable dcTable, final int channelIndex) throws IOException {
+        final int maxDCCodeLengthData = input.peekBits(dcTable.maxCodeLength);
+        if (maxDCCodeLengthData < 0) {
+            return EOF.code();
         }
-        final Optional<MatchResult> matchDCResult = dcTable.findShortestMatch(maxDCCodeLengthData.get());
-        if (matchDCResult.isEmpty()) {
-            info = "Huffman-DC-F; " + channelNames[channelIndex];
-            return false; // No Huffmancode match found: this is a Huffmantable lookup error.
+        final int matchDCResult = dcTable.decode(maxDCCodeLengthData);
+        if (matchDCResult == HuffmanTable.NO_MATCH) {
+            return HUFFMAN_DC_FIRST.code(channelIndex); // No Huffmancode match found: this is a Huffmantable lookup error.
         }
-        input.skip(matchDCResult.get().bitsMatched + matchDCResult.get().symbol);
-        return true;
+        input.skipBits(HuffmanTable.matchLength(matchDCResult) + HuffmanTable.matchSymbol(matchDCResult));
+        return OK;
     }
 
-    private boolean validateACFirstData(final JpegEntropyCodedBitStream input, final HuffmanTable acTable, final int startOfSpectralSelection, final int endOfSpectralSelection, final boolean[] refinableCoeffs) throws IOException {
+    private int validateACFirstData(final JpegEntropyCodedBitStream input, final HuffmanTable acTable, final int channelIndex, final int startOfSpectralSelection, final int endOfSpectralSelection, final JpegRefinableCoefficients refinableCoeffs, final int block) throws IOException {
         for (int quantizationArrayIndex = startOfSpectralSelection; quantizationArrayIndex <= endOfSpectralSelection; quantizationArrayIndex++) {
-            final Optional<BitSet> maxACCodeLengthData = input.peek(acTable.maxCodeLength);
-            if (maxACCodeLengthData.isEmpty()) {
-                info = "EOF";
-                return false;
+            final int maxACCodeLengthData = input.peekBits(acTable.maxCodeLength);
+            if (maxACCodeLengthData < 0) {
+                return EOF.code();
             }
-            final Optional<MatchResult> matchACResult = acTable.findShortestMatch(maxACCodeLengthData.get());
-            if (matchACResult.isEmpty()) {
-                info = "Huffman-AC-F";
-                return false; // No Huffmancode match found: this is a Huffmantable lookup error.
+            final int matchACResult = acTable.decode(maxACCodeLengthData);
+            if (matchACResult == HuffmanTable.NO_MATCH) {
+                return HUFFMAN_AC_FIRST.code(channelIndex); // No Huffmancode match found: this is a Huffmantable lookup error.
             }
-            final int numZeroes = matchACResult.get().symbol >>> 4;
-            final int coeffLength = matchACResult.get().symbol & 0x000F;
-            input.skip(matchACResult.get().bitsMatched);
+            final int numZeroes = HuffmanTable.matchSymbol(matchACResult) >>> 4;
+            final int coeffLength = HuffmanTable.matchSymbol(matchACResult) & 0x000F;
+            input.skipBits(HuffmanTable.matchLength(matchACResult));
             if (coeffLength != 0) {
                 // numZeroes is the amount of zeroes to fill, the coeffLength indicates one value to read
                 quantizationArrayIndex += numZeroes;
             } else if (numZeroes == 15) {
                 quantizationArrayIndex += 15;
             } else if (numZeroes == 0) {
-                return true;
+                return OK;
             } else {
                 // handle end-of-bands marker for numZeroes > 0 && < 15
                 endOfBandSkips = 1 << numZeroes; // 2 ^ numZeroes
-                endOfBandSkips += toInt(input.peek(numZeroes).get(), numZeroes); // add value of next numZeroes bits from input
+                final int endOfBandBits = input.peekBits(numZeroes);
+                if (endOfBandBits < 0) {
+                    return EOF.code();
+                }
+                endOfBandSkips += endOfBandBits; // add value of next numZeroes bits from input
                 endOfBandSkips--; // skip current quantization array slice (deduct 1 from skips)
 
-                input.skip(numZeroes);
-                return true;
+                input.skipBits(numZeroes);
+                return OK;
             }
-            final Optional<BitSet> coeff = input.peek(coeffLength);
-            if (coeff.isEmpty()) {
-                info = "EOF";
-                return false;
+            if (input.peekBits(coeffLength) < 0) {
+                return EOF.code();
             }
             if (quantizationArrayIndex > endOfSpectralSelection) {
-                info = "QASize";
-                return false; // Quantization Array Size overflow found.
+                return QUANTIZATION_ARRAY_SIZE.code(channelIndex); // Quantization Array Size overflow found.
             }
             if (coeffLength > 0) {
-                refinableCoeffs[quantizationArrayIndex] = true;
-                input.skip(coeffLength);
+                if (refinableCoeffs.mark(block, quantizationArrayIndex)) {
+                    checkpoints.logRefinable(block, quantizationArrayIndex);
+                }
+                input.skipBits(coeffLength);
             }
         }
-        return true;
+        return OK;
     }
 
-    private boolean validateACRefineData(final JpegEntropyCodedBitStream input, final HuffmanTable acTable, final int startOfSpectralSelection, final int endOfSpectralSelection, final boolean[] refinableCoeffs) throws IOException {
+    private int validateACRefineData(final JpegEntropyCodedBitStream input, final HuffmanTable acTable, final int channelIndex, final int startOfSpectralSelection, final int endOfSpectralSelection, final JpegRefinableCoefficients refinableCoeffs, final int block) throws IOException {
         int ssIndex = startOfSpectralSelection;
         if (endOfBandSkips == 0) {
             for (; ssIndex <= endOfSpectralSelection; ssIndex++) {
-                final Optional<BitSet> maxACCodeLengthData = input.peek(acTable.maxCodeLength);
-                if (maxACCodeLengthData.isEmpty()) {
-                    info = "EOF";
-                    return false;
+                final int maxACCodeLengthData = input.peekBits(acTable.maxCodeLength);
+                if (maxACCodeLengthData < 0) {
+                    return EOF.code();
                 }
-                final Optional<MatchResult> matchACResult = acTable.findShortestMatch(maxACCodeLengthData.get());
-                if (matchACResult.isEmpty()) {
-                    info = "Huffman-AC-R";
-                    return false; // No Huffmancode match found: this is a Huffmantable lookup error.
+                final int matchACResult = acTable.decode(maxACCodeLengthData);
+                if (matchACResult == HuffmanTable.NO_MATCH) {
+                    return HUFFMAN_AC_REFINE.code(channelIndex); // No Huffmancode match found: this is a Huffmantable lookup error.
                 }
-                final int numZeroes = matchACResult.get().symbol >>> 4;
-                final int coeffLength = matchACResult.get().symbol & 0x000F;
-                input.skip(matchACResult.get().bitsMatched);
+                final int numZeroes = HuffmanTable.matchSymbol(matchACResult) >>> 4;
+                final int coeffLength = HuffmanTable.matchSymbol(matchACResult) & 0x000F;
+                input.skipBits(HuffmanTable.matchLength(matchACResult));
 
                 // validate: coeffLength *must* be 0 or 1
                 if (coeffLength != 0) { // So this is not an end-of-block/band command
                     if (coeffLength != 1) {
-                        info = "Coeff-AC-R";
-                        return false; // Since this is a refine, the size of the coeff must be 1
+                        return COEFFICIENT_AC_REFINE.code(channelIndex); // Since this is a refine, the size of the coeff must be 1
                     }
                     // coeffLength = 1 => read 1 bit
-                    final Optional<BitSet> refineBit = input.peek(1);
-                    if (refineBit.isEmpty()) {
-                        info = "EOF";
-                        return false;
+                    if (input.peekBits(1) < 0) {
+                        return EOF.code();
                     }
-                    input.skip(1);
-                    for (int zeroesCount = 0; zeroesCount < numZeroes || refinableCoeffs[ssIndex];) {
-                        if (refinableCoeffs[ssIndex]) {
-                            input.skip(1);
-                        } else {
-                            zeroesCount++;
-                        }
-                        ssIndex++;
-                        if (ssIndex > endOfSpectralSelection) {
-                            info = "QASize";
-                            return false;
-                        }
+                    input.skipBits(1);
+                    ssIndex = skipZeroRun(input, refinableCoeffs.get(block), ssIndex, numZeroes, endOfSpectralSelection);
+                    if (ssIndex > endOfSpectralSelection) {
+                        return QUANTIZATION_ARRAY_SIZE.code(channelIndex);
                     }
-                    refinableCoeffs[ssIndex] = true;
+                    refinableCoeffs.mark(block, ssIndex);
+                    checkpoints.logRefinable(block, ssIndex);
                 } else {
                     // coeffLength = 0, numZeroes != 15 => new end-of-bands run
                     if (numZeroes != 15) {
                         // handle end-of-bands marker for numZeroes > 0 && < 15
                         endOfBandSkips = 1 << numZeroes; // 2 ^ numZeroes
-                        endOfBandSkips += toInt(input.peek(numZeroes).get(), numZeroes); // add value of next numZeroes bits from input
-                        input.skip(numZeroes);
+                        final int endOfBandBits = input.peekBits(numZeroes);
+                        if (endOfBandBits < 0) {
+                            return EOF.code();
+                        }
+                        endOfBandSkips += endOfBandBits; // add value of next numZeroes bits from input
+                        input.skipBits(numZeroes);
                         break;
                     }
                     // coeffLength = 0, numZeroes = 15 => skip 16 zeroes
-                    for (int zeroesCount = 0; zeroesCount < numZeroes || refinableCoeffs[ssIndex];) {
-                        if (refinableCoeffs[ssIndex]) {
-                            input.skip(1);
-                        } else {
-                            zeroesCount++;
-                        }
-                        ssIndex++;
-                        if (ssIndex > endOfSpectralSelection) {
-                            info = "QASize";
-                            return false;
-                        }
+                    ssIndex = skipZeroRun(input, refinableCoeffs.get(block), ssIndex, numZeroes, endOfSpectralSelection);
+                    if (ssIndex > endOfSpectralSelection) {
+                        return QUANTIZATION_ARRAY_SIZE.code(channelIndex);
                     }
                 }
             }
         }
         if (endOfBandSkips > 0) {
-            for (; ssIndex <= endOfSpectralSelection; ssIndex++) {
-                if (refinableCoeffs[ssIndex]) {
-                    input.skip(1);
-                }
+            if (ssIndex <= endOfSpectralSelection) {
+                input.skipBits(Long.bitCount(refinableCoeffs.get(block) & JpegRefinableCoefficients.range(ssIndex, endOfSpectralSelection + 1)));
             }
             endOfBandSkips--; // skip current quantization array slice (deduct 1 from skips)
         }
-        return true;
+        return OK;
     }
 
-    public static int toInt(final BitSet bitSet, final int eobOrder) {
-        int intValue = 0;
-        for (int bit = 0; bit < bitSet.length(); bit++) {
-            if (bitSet.get(bitSet.length() - bit - 1)) {
-                intValue |= (1 << bit);
-            }
+    /**
+     * Skips a run of zero coefficients, and a correction bit for every refinable coefficient within it.
+     *
+     * @return the index of the coefficient after numZeroes zeroes, past the end of the spectral selection if the run overflows it
+     */
+    private static int skipZeroRun(final JpegEntropyCodedBitStream input, final long refinable, final int ssIndex, final int numZeroes, final int endOfSpectralSelection) throws IOException {
+        long zeroes = ~refinable & (-1L << ssIndex);
+        for (int zeroesCount = 0; zeroesCount < numZeroes; zeroesCount++) {
+            zeroes &= zeroes - 1; // Clear the lowest zero.
         }
-        intValue = intValue << (eobOrder - bitSet.length());
-        return intValue;
+        final int end = Math.min(Long.numberOfTrailingZeros(zeroes), endOfSpectralSelection + 1);
+        input.skipBits(Long.bitCount(refinable & JpegRefinableCoefficients.range(ssIndex, end)));
+        return end;
     }
 
 }
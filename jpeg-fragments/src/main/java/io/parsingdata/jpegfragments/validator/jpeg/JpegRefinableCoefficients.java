@@ -0,0 +1,114 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The coefficients of every block of a component that an AC scan found to be nonzero, so the
+ * refinement scans after it read a correction bit for each of them. A block is a single long,
+ * with bit n set for coefficient n in zigzag order, so runs of coefficients are counted and
+ * skipped with bit operations instead of one at a time.
+ *
+ * Small images keep the words on the heap. Larger ones keep them in direct memory, and very
+ * large ones in a memory-mapped temporary file, so concurrent validations of large progressive
+ * images do not exhaust the heap.
+ */
+final class JpegRefinableCoefficients {
+
+    static final long MAX_HEAP_BYTES = 32L << 20;
+    static final long MAX_DIRECT_BYTES = 256L << 20;
+    static final long MAX_RETAINED_BYTES = 2L << 20; // Kept between validations by a pooled JpegValidationContext, over all components.
+
+    private final long[] words; // Null if the words are held off-heap.
+    private final LongBuffer offHeapWords;
+
+    private JpegRefinableCoefficients(final long[] words, final LongBuffer offHeapWords) {
+        this.words = words;
+        this.offHeapWords = offHeapWords;
+    }
+
+    static JpegRefinableCoefficients allocate(final int blockCount) throws IOException {
+        final long bytes = 8L * blockCount;
+        if (bytes <= MAX_HEAP_BYTES) {
+            return new JpegRefinableCoefficients(new long[blockCount], null);
+        }
+        if (bytes <= MAX_DIRECT_BYTES) {
+            return new JpegRefinableCoefficients(null, ByteBuffer.allocateDirect((int) bytes).asLongBuffer());
+        }
+        // The mapping outlives the channel, and the file is removed as soon as it is closed.
+        final Path file = Files.createTempFile("jpeg-refinable-", ".bin");
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE, DELETE_ON_CLOSE)) {
+            return new JpegRefinableCoefficients(null, channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes).asLongBuffer());
+        }
+    }
+
+    /**
+     * @return the previous storage cleared for the blocks if its words are on the heap and there are enough of
+     *         them, new storage otherwise
+     */
+    static JpegRefinableCoefficients allocate(final int blockCount, final JpegRefinableCoefficients previous) throws IOException {
+        if (previous != null && previous.words != null && previous.words.length >= blockCount) {
+            Arrays.fill(previous.words, 0, blockCount, 0L);
+            return previous;
+        }
+        return allocate(blockCount);
+    }
+
+    /**
+     * @return the size of the words on the heap, 0 if they are held off-heap
+     */
+    long heapBytes() {
+        return words != null ? 8L * words.length : 0;
+    }
+
+    /**
+     * @return the refinable coefficients of the block, bit n for coefficient n
+     */
+    long get(final int block) {
+        return words != null ? words[block] : offHeapWords.get(block);
+    }
+
+    /**
+     * @return whether the coefficient was not refinable before
+     */
+    boolean mark(final int block, final int coefficient) {
+        final long word = get(block);
+        if ((word & (1L << coefficient)) != 0) {
+            return false;
+        }
+        set(block, word | (1L << coefficient));
+        return true;
+    }
+
+    void clear(final int block, final int coefficient) {
+        set(block, get(block) & ~(1L << coefficient));
+    }
+
+    /**
+     * @return the coefficients from (inclusive) to (exclusive) as a mask, for at most 64 coefficients
+     */
+    static long range(final int from, final int to) {
+        if (from >= to) {
+            return 0;
+        }
+        return (to >= 64 ? -1L : (1L << to) - 1) & (-1L << from);
+    }
+
+    private void set(final int block, final long word) {
+        if (words != null) {
+            words[block] = word;
+        } else {
+            offHeapWords.put(block, word);
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import io.parsingdata.metal.data.ByteStream;
+
+/**
+ * Restart intervals of a baseline scan, validated ahead of the sequential decoder.
+ *
+ * Decoding restarts at every RSTn marker, so the MCUs that follow a marker can be
+ * validated without knowing anything that came before it. All RSTn markers in the
+ * entropy-coded data are located in one pass, which also serves recovery as an index of
+ * exact sync points with their sequence numbers. Then the intervals are decoded in
+ * parallel on the common fork-join pool, grouped into batches of about
+ * {@link #BATCH_BYTES} bytes. The sequential decoder looks up the interval that starts
+ * where it stands and skips over it when it was found to be valid, so the detected
+ * fragments are the same as when every MCU is decoded in order.
+ */
+final class JpegRestartIntervals {
+
+    static final int BATCH_BYTES = 256 * 1024;
+    static final int MIN_INTERVALS = 4; // Below this the intervals are not worth a parallel pass.
+
+    private final long[] markerOffsets; // File offsets of the RSTn markers, ascending.
+    private final int[] markerCodes; // Second byte of each marker, 0xD0 - 0xD7.
+    private final long[] intervalBits; // Bits from each marker to the end of its interval, -1 if it is not valid.
+
+    private JpegRestartIntervals(final long[] markerOffsets, final int[] markerCodes) {
+        this.markerOffsets = markerOffsets;
+        this.markerCodes = markerCodes;
+        this.intervalBits = new long[markerOffsets.length];
+    }
+
+    /**
+     * @return the restart markers, with their intervals validated unless the scan has too few of them
+     */
+    static JpegRestartIntervals validate(final ByteStream input, final long entropyStart,
+            final HuffmanTable[] dcTables, final HuffmanTable[] acTables, final int luminanceCountPerMcu,
+            final int restartInterval) throws IOException {
+        final JpegRestartIntervals intervals = findMarkers(input, entropyStart);
+        final int markerCount = intervals.markerOffsets.length;
+        Arrays.fill(intervals.intervalBits, -1);
+        if (markerCount < MIN_INTERVALS) {
+            return intervals;
+        }
+        final OffsetList batchStarts = new OffsetList();
+        for (int marker = 0; marker < markerCount; marker++) {
+            if (batchStarts.isEmpty()
+                    || intervals.markerOffsets[marker] - intervals.markerOffsets[(int) batchStarts.get(batchStarts.size() - 1)] >= BATCH_BYTES) {
+                batchStarts.add(marker);
+            }
+        }
+        batchStarts.add(markerCount);
+        IntStream.range(0, batchStarts.size() - 1).parallel().forEach(batch ->
+                intervals.validateBatch(input, (int) batchStarts.get(batch), (int) batchStarts.get(batch + 1),
+                        dcTables, acTables, luminanceCountPerMcu, restartInterval));
+        return intervals;
+    }
+
+    /**
+     * @param offset file offset of the next byte boundary of the sequential decoder
+     * @param markerCode the RSTn marker the sequential decoder expects there
+     * @return the number of bits in the valid interval that starts at offset with the expected marker, or -1
+     */
+    long validatedBits(final long offset, final int markerCode) {
+        final int marker = Arrays.binarySearch(markerOffsets, offset);
+        if (marker < 0 || markerCodes[marker] != markerCode) {
+            return -1;
+        }
+        return intervalBits[marker];
+    }
+
+    /**
+     * @return the index of the first marker at or after the file offset, or -1 if there is none
+     */
+    int nextMarker(final long offset) {
+        final int marker = Arrays.binarySearch(markerOffsets, offset);
+        final int next = marker >= 0 ? marker : -marker - 1;
+        return next < markerOffsets.length ? next : -1;
+    }
+
+    long markerOffset(final int marker) {
+        return markerOffsets[marker];
+    }
+
+    /**
+     * @return the sequence number of the marker modulo 8, the n of RSTn
+     */
+    int markerSequence(final int marker) {
+        return markerCodes[marker] - 0xD0;
+    }
+
+    int validatedCount() {
+        int count = 0;
+        for (final long bits : intervalBits) {
+            if (bits >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return markerOffsets.length;
+    }
+
+    private static JpegRestartIntervals findMarkers(final ByteStream input, final long entropyStart)
+            throws IOException {
+        final JpegByteStream entropyData = new JpegByteStream(input, entropyStart);
+        final OffsetList offsets = new OffsetList();
+        final OffsetList codes = new OffsetList();
+        // Markers are recognized while unstuffing, a chunk at a time.
+        for (long index = 0; entropyData.read(index) >= 0; index += JpegByteStream.CHUNK_SIZE) {
+            final long limit = index + JpegByteStream.CHUNK_SIZE - 1;
+            for (long marker = entropyData.nextMarker(index, limit); marker <= limit;
+                    marker = entropyData.nextMarker(marker + 1, limit)) {
+                final int value = entropyData.read(marker + 1);
+                if (value >= 0xD0 && value <= 0xD7) {
+                    offsets.add(entropyData.toFileOffset(marker));
+                    codes.add(value);
+                }
+            }
+            entropyData.release(limit + 1);
+        }
+        final int[] markerCodes = new int[codes.size()];
+        for (int i = 0; i < markerCodes.length; i++) {
+            markerCodes[i] = (int) codes.get(i);
+        }
+        return new JpegRestartIntervals(offsets.toArray(), markerCodes);
+    }
+
+    private void validateBatch(final ByteStream input, final int firstMarker, final int endMarker,
+            final HuffmanTable[] dcTables, final HuffmanTable[] acTables, final int luminanceCountPerMcu,
+            final int restartInterval) {
+        JpegByteStream entropyData = null;
+        long reachedOffset = Long.MAX_VALUE;
+        for (int marker = firstMarker; marker < endMarker; marker++) {
+            try {
+                // A stream only moves forward: start a new one if the previous interval was decoded past this marker.
+                if (entropyData == null || markerOffsets[marker] < reachedOffset) {
+                    entropyData = new JpegByteStream(input, markerOffsets[marker]);
+                }
+                final JpegEntropyCodedBitStream bitStream = new JpegEntropyCodedBitStream(entropyData, markerOffsets[marker], 0);
+                intervalBits[marker] = validateInterval(bitStream, dcTables, acTables, luminanceCountPerMcu,
+                        restartInterval);
+                reachedOffset = bitStream.getOffset();
+            } catch (final IOException | RuntimeException e) {
+                // Left to the sequential decoder, which runs into the same problem and reports it.
+                intervalBits[marker] = -1;
+                entropyData = null;
+            }
+        }
+    }
+
+    private static long validateInterval(final JpegEntropyCodedBitStream bitStream, final HuffmanTable[] dcTables,
+            final HuffmanTable[] acTables, final int luminanceCountPerMcu,
+            final int restartInterval) throws IOException {
+        if (!bitStream.skipBits(16)) { // The marker itself, checked by the sequential decoder.
+            return -1;
+        }
+        for (int mcuIndex = 0; mcuIndex < restartInterval; mcuIndex++) {
+            if (mcuIndex > 0 && bitStream.markerAhead() == JpegEntropyCodedBitStream.EOI) {
+                return -1;
+            }
+            // No restart marker is due within the interval, as mcuIndex stays below restartInterval.
+            if (JpegBaseline.validateMcu(bitStream, dcTables, acTables, luminanceCountPerMcu, mcuIndex,
+                    restartInterval) != JpegDecodeError.OK) {
+                return -1;
+            }
+        }
+        return bitStream.getBitsRead();
+    }
+
+}
@@ -0,0 +1,119 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Recent states of the decoder of a progressive scan, so recovery can decode again from
+ * one of them when it splices noise out of the data after it.
+ *
+ * A checkpoint is taken on a unit boundary (an MCU, or a block in a single-component scan)
+ * every {@link #CHECKPOINT_BITS} bits, in a ring of {@link #CAPACITY}. AC scans mark
+ * coefficients as refinable for the scans after them; every coefficient marked since the
+ * oldest checkpoint is logged, so returning to a checkpoint clears them again.
+ */
+final class JpegScanCheckpoints {
+
+    static final int CAPACITY = 256;
+    static final long CHECKPOINT_BITS = 8 * 256;
+
+    private final long[] positions = new long[CAPACITY]; // See JpegEntropyCodedBitStream#getBitPosition().
+    private final int[] units = new int[CAPACITY];
+    private final int[] endOfBandSkips = new int[CAPACITY];
+    private final long[] logPositions = new long[CAPACITY];
+    private int count; // Checkpoints taken in this scan, the last CAPACITY of them are kept.
+    private long nextBits; // Bits read by the current stream at which the next checkpoint is due.
+
+    private long[] log = new long[1024]; // Marked coefficients as block * 64 + coefficient index.
+    private long logStart; // Position of log[0] among all coefficients marked in this scan.
+    private long logEnd;
+
+    void reset() {
+        count = 0;
+        nextBits = 0;
+        logStart = 0;
+        logEnd = 0;
+    }
+
+    /**
+     * Takes a checkpoint before the unit if one is due.
+     */
+    void record(final JpegEntropyCodedBitStream bitStream, final int unit, final int endOfBandSkips) throws IOException {
+        if (bitStream.getBitsRead() < nextBits) {
+            return;
+        }
+        final long position = bitStream.getBitPosition();
+        if (position < 0) {
+            return;
+        }
+        final int slot = count++ % CAPACITY;
+        positions[slot] = position;
+        units[slot] = unit;
+        this.endOfBandSkips[slot] = endOfBandSkips;
+        logPositions[slot] = logEnd;
+        nextBits = bitStream.getBitsRead() + CHECKPOINT_BITS;
+    }
+
+    /**
+     * @return the latest checkpoint at or before the bit position, or -1 if it is no longer kept
+     */
+    int before(final long bitPosition) {
+        for (int checkpoint = count - 1; checkpoint >= Math.max(count - CAPACITY, 0); checkpoint--) {
+            if (positions[checkpoint % CAPACITY] <= bitPosition) {
+                return checkpoint;
+            }
+        }
+        return -1;
+    }
+
+    int latest() {
+        return count - 1;
+    }
+
+    long position(final int checkpoint) {
+        return positions[checkpoint % CAPACITY];
+    }
+
+    int unit(final int checkpoint) {
+        return units[checkpoint % CAPACITY];
+    }
+
+    int endOfBandSkips(final int checkpoint) {
+        return endOfBandSkips[checkpoint % CAPACITY];
+    }
+
+    /**
+     * Clears every coefficient marked since the checkpoint.
+     */
+    void revert(final int checkpoint, final JpegRefinableCoefficients refinableCoeffs) {
+        final long logPosition = logPositions[checkpoint % CAPACITY];
+        while (logEnd > logPosition) {
+            final long entry = log[(int) (--logEnd - logStart)];
+            refinableCoeffs.clear((int) (entry >>> 6), (int) (entry & 63));
+        }
+    }
+
+    /**
+     * Drops the checkpoints after the given one, when decoding continues from it over other data.
+     */
+    void truncate(final int checkpoint) {
+        count = checkpoint + 1;
+        nextBits = CHECKPOINT_BITS;
+    }
+
+    void logRefinable(final int block, final int coefficient) {
+        if (logEnd - logStart == log.length) {
+            // Entries before the oldest checkpoint kept are never reverted.
+            final long keep = count == 0 ? logEnd : logPositions[Math.max(count - CAPACITY, 0) % CAPACITY];
+            final int dropped = (int) (keep - logStart);
+            if (dropped > log.length / 2) {
+                System.arraycopy(log, dropped, log, 0, log.length - dropped);
+                logStart = keep;
+            } else {
+                log = Arrays.copyOf(log, 2 * log.length);
+            }
+        }
+        log[(int) (logEnd++ - logStart)] = (long) block * 64 + coefficient;
+    }
+
+}
@@ -0,0 +1,145 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import io.parsingdata.metal.data.ByteStream;
+
+/**
+ * Speculative decoding of a baseline scan without restart markers.
+ *
+ * The entropy-coded data is cut into chunks of {@link #CHUNK_BYTES} bytes and a decoder
+ * is started at the first byte of every chunk, all in parallel on the common fork-join
+ * pool. A decoder that starts in the middle of an MCU decodes garbage at first, but
+ * Huffman codes resynchronize quickly, after which it passes the same MCU boundaries as
+ * a decoder coming from the left. Each decoder records the MCU boundaries it passes,
+ * grouped into segments of consecutive valid MCUs: a segment ends at a rule break, at
+ * an EOI marker or at the end of the chunk, and after a
+ * rule break the decoder starts over one byte further.
+ *
+ * Decoding only depends on the bit position, so once the sequential decoder stands on a
+ * recorded boundary, every MCU up to the end of that segment is known to be valid and
+ * it can skip right to it. The detected fragments are the same as when every MCU is
+ * decoded in order.
+ */
+final class JpegSpeculativeScan {
+
+    static final int CHUNK_BYTES = 256 * 1024;
+    static final int SYNC_BYTES = 64 * 1024; // Boundaries are only recorded this far into a segment.
+
+    private final long entropyStart;
+    private final Chunk[] chunks;
+
+    private JpegSpeculativeScan(final long entropyStart, final int chunkCount) {
+        this.entropyStart = entropyStart;
+        this.chunks = new Chunk[chunkCount];
+    }
+
+    /**
+     * MCU boundaries passed by the decoder that started at the first byte of a chunk.
+     */
+    private static class Chunk {
+        final OffsetList boundaries = new OffsetList(); // Bit positions, ascending.
+        final OffsetList boundaryMcus = new OffsetList(); // Number of MCUs decoded before each boundary.
+        final OffsetList boundarySegments = new OffsetList(); // Segment of each boundary.
+        final OffsetList segmentEnds = new OffsetList(); // Bit position of the last boundary of each segment.
+        final OffsetList segmentEndMcus = new OffsetList();
+        long[] sortedBoundaries = new long[0];
+    }
+
+    /**
+     * @return the decoded chunks, or null if the entropy-coded data fits in a single chunk
+     */
+    static JpegSpeculativeScan decode(final ByteStream input, final long entropyStart,
+            final HuffmanTable[] dcTables, final HuffmanTable[] acTables, final int luminanceCountPerMcu) {
+        final long length = JpegByteStream.availableLength(input, entropyStart);
+        if (length <= CHUNK_BYTES) {
+            return null;
+        }
+        final JpegSpeculativeScan scan = new JpegSpeculativeScan(entropyStart, (int) ((length - 1) / CHUNK_BYTES) + 1);
+        IntStream.range(0, scan.chunks.length).parallel().forEach(chunk ->
+                scan.chunks[chunk] = decodeChunk(input, entropyStart + (long) chunk * CHUNK_BYTES,
+                        entropyStart + (long) (chunk + 1) * CHUNK_BYTES, dcTables, acTables, luminanceCountPerMcu));
+        return scan;
+    }
+
+    /**
+     * Skips the bit stream of the sequential decoder to the end of the segment it stands in, if any.
+     *
+     * @return the number of MCUs skipped, all of which are valid
+     */
+    int skipSynchronized(final JpegEntropyCodedBitStream bitStream) throws IOException {
+        final long bitPosition = bitStream.getBitPosition();
+        if (bitPosition < 0) {
+            return 0;
+        }
+        final long chunkIndex = ((bitPosition >>> 3) - entropyStart) / CHUNK_BYTES;
+        if (chunkIndex < 0 || chunkIndex >= chunks.length) {
+            return 0;
+        }
+        final Chunk chunk = chunks[(int) chunkIndex];
+        final int boundary = Arrays.binarySearch(chunk.sortedBoundaries, bitPosition);
+        if (boundary < 0) {
+            return 0;
+        }
+        final int segment = (int) chunk.boundarySegments.get(boundary);
+        final int mcuCount = (int) (chunk.segmentEndMcus.get(segment) - chunk.boundaryMcus.get(boundary));
+        if (mcuCount == 0 || !bitStream.skipToBitPosition(chunk.segmentEnds.get(segment))) {
+            return 0;
+        }
+        return mcuCount;
+    }
+
+    int size() {
+        return chunks.length;
+    }
+
+    private static Chunk decodeChunk(final ByteStream input, final long chunkStart, final long chunkEnd,
+            final HuffmanTable[] dcTables, final HuffmanTable[] acTables, final int luminanceCountPerMcu) {
+        final Chunk chunk = new Chunk();
+        try {
+            final JpegByteStream entropyData = new JpegByteStream(input, chunkStart);
+            long segmentStart = chunkStart;
+            long mcuCount = 0;
+            while (segmentStart < chunkEnd) {
+                final JpegEntropyCodedBitStream bitStream = new JpegEntropyCodedBitStream(entropyData, segmentStart, 0);
+                final long segment = chunk.segmentEnds.size();
+                long boundary = bitStream.getBitPosition();
+                long segmentEnd = -1;
+                long segmentEndMcu = mcuCount;
+                while (boundary >= 0) {
+                    segmentEnd = boundary;
+                    segmentEndMcu = mcuCount;
+                    if (boundary < 8 * (segmentStart + SYNC_BYTES)) {
+                        chunk.boundaries.add(boundary);
+                        chunk.boundaryMcus.add(mcuCount);
+                        chunk.boundarySegments.add(segment);
+                    }
+                    if ((boundary >>> 3) >= chunkEnd || bitStream.markerAhead() == JpegEntropyCodedBitStream.EOI
+                            || JpegBaseline.validateMcu(bitStream, dcTables, acTables, luminanceCountPerMcu, 0, 0)
+                                    != JpegDecodeError.OK) {
+                        break;
+                    }
+                    mcuCount++;
+                    boundary = bitStream.getBitPosition();
+                }
+                if (segmentEnd < 0) { // The data ends before the segment starts.
+                    break;
+                }
+                chunk.segmentEnds.add(segmentEnd);
+                chunk.segmentEndMcus.add(segmentEndMcu);
+                final long failure = bitStream.getBitPosition();
+                if (boundary < 0 || failure < 0) { // The data ends within the segment.
+                    break;
+                }
+                segmentStart = (failure >>> 3) + 1; // Start over after the byte the segment ended in.
+            }
+        } catch (final IOException | RuntimeException e) {
+            return new Chunk(); // Left to the sequential decoder, which runs into the same problem and reports it.
+        }
+        chunk.sortedBoundaries = chunk.boundaries.toArray();
+        return chunk;
+    }
+
+}
@@ -0,0 +1,123 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+import io.parsingdata.jpegfragments.MappedByteStream;
+import io.parsingdata.jpegfragments.Validator;
+import io.parsingdata.metal.data.ByteStream;
+
+/**
+ * Validates an input with several detection configurations at once and keeps the result that
+ * scores best. Detection is deterministic, so each configuration runs once. The configurations
+ * share the input and its parsed header. The first runs on the calling thread and the others on
+ * a pool of one thread per processor that all portfolios share, so the parallel stages within
+ * each validation keep the common fork-join pool to themselves. On equal scores the
+ * configuration listed first wins, so the default strategies differ from the first only in
+ * how they detect fragments, not in how they merge them into ranges.
+ */
+public final class JpegStrategyPortfolio implements Validator {
+
+    public static final List<JpegDetectionConfig> DEFAULT_STRATEGIES = List.of(
+            JpegDetectionConfig.DEFAULT,
+            // Sensitive: a fragment starts at the first valid MCU.
+            JpegDetectionConfig.DEFAULT.withMinMcusToStartFragment(1),
+            // Recovery that looks past longer runs of noise, decoding exactly only around transitions to make up for it.
+            JpegDetectionConfig.DEFAULT.withMaxSingleErrorRecovery(128 * 1024).withCoarseToFine(true));
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+        final Thread thread = new Thread(task, "jpeg-strategy-" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final JpegValidator[] validators;
+    private final ToIntFunction<JpegValidationResult> score;
+
+    public JpegStrategyPortfolio(final List<JpegDetectionConfig> strategies, final ToIntFunction<JpegValidationResult> score) {
+        if (strategies.isEmpty()) {
+            throw new IllegalArgumentException("A portfolio needs at least one strategy.");
+        }
+        this.validators = strategies.stream().map(JpegValidator::new).toArray(JpegValidator[]::new);
+        this.score = score;
+    }
+
+    @Override
+    public JpegValidationResult validate(final ByteStream input) throws IOException {
+        final Optional<HeaderSegments> header = JpegHeaderParser.parseHeader(input);
+        if (header.isEmpty()) {
+            return validators[0].validate(input); // Fails on the header for every strategy alike.
+        }
+        final List<Future<JpegValidationResult>> others = new ArrayList<>();
+        for (int strategy = 1; strategy < validators.length; strategy++) {
+            final JpegValidator validator = validators[strategy];
+            others.add(EXECUTOR.submit(() -> validator.validate(input, header.get())));
+        }
+        final JpegValidationResult[] results = new JpegValidationResult[validators.length];
+        Throwable failure = null;
+        try {
+            results[0] = validators[0].validate(input, header.get());
+        } catch (final IOException | RuntimeException | Error e) {
+            failure = e;
+        }
+        // Wait for every strategy, also after a failure: the caller may unmap the input once this returns.
+        boolean interrupted = false;
+        for (int strategy = 1; strategy < validators.length; strategy++) {
+            while (results[strategy] == null) {
+                try {
+                    results[strategy] = others.get(strategy - 1).get();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    failure = failure != null ? failure : e.getCause();
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw (Error) failure;
+        }
+        int best = 0;
+        int bestScore = score.applyAsInt(results[0]);
+        for (int strategy = 1; strategy < results.length; strategy++) {
+            final int strategyScore = score.applyAsInt(results[strategy]);
+            if (strategyScore > bestScore) {
+                best = strategy;
+                bestScore = strategyScore;
+            }
+        }
+        return results[best];
+    }
+
+    @Override
+    public JpegValidationResult validate(final Path input) throws IOException {
+        try (MappedByteStream mapped = MappedByteStream.map(input)) {
+            return validate(mapped);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName();
+    }
+
+}
@@ -0,0 +1,106 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide cache of the Huffman tables and frame headers of the files validated so far.
+ * Files from one camera or encoder mostly define byte-identical tables, often the standard
+ * ones of ITU T.81 Annex K, so the decode tables are built once and shared by all validations.
+ * Both are immutable once built. Each cache keeps the {@link #MAX_ENTRIES} it used last.
+ */
+public final class JpegTableCache {
+
+    static final int MAX_ENTRIES = 1024;
+
+    private static final Lru<HuffmanTable> HUFFMAN_TABLES = new Lru<>();
+    private static final Lru<FrameHeader> FRAME_HEADERS = new Lru<>();
+
+    private JpegTableCache() {}
+
+    /**
+     * @param definition the table as it is defined in a DHT segment: Tc & Th, Li and Vij
+     */
+    static HuffmanTable huffmanTable(final byte[] definition, final Supplier<HuffmanTable> build) {
+        return HUFFMAN_TABLES.get(definition, build);
+    }
+
+    /**
+     * @param segment the SOF segment
+     */
+    static FrameHeader frameHeader(final byte[] segment, final Supplier<FrameHeader> build) {
+        return FRAME_HEADERS.get(segment, build);
+    }
+
+    /**
+     * @return the hits, misses and size of both caches since the process started
+     */
+    public static Map<String, Long> statistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("huffmanTableHits", HUFFMAN_TABLES.hits.get());
+        statistics.put("huffmanTableMisses", HUFFMAN_TABLES.misses.get());
+        statistics.put("huffmanTables", (long) HUFFMAN_TABLES.size());
+        statistics.put("frameHeaderHits", FRAME_HEADERS.hits.get());
+        statistics.put("frameHeaderMisses", FRAME_HEADERS.misses.get());
+        statistics.put("frameHeaders", (long) FRAME_HEADERS.size());
+        return statistics;
+    }
+
+    private static final class Lru<T> {
+        private final Map<Key, T> entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, T> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        T get(final byte[] bytes, final Supplier<T> build) {
+            final Key key = new Key(bytes);
+            synchronized (entries) {
+                final T cached = entries.get(key);
+                if (cached != null) {
+                    hits.incrementAndGet();
+                    return cached;
+                }
+            }
+            misses.incrementAndGet();
+            final T built = build.get(); // Outside the lock; if another thread built it meanwhile, its value is kept.
+            synchronized (entries) {
+                final T cached = entries.putIfAbsent(key, built);
+                return cached != null ? cached : built;
+            }
+        }
+
+        int size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+    }
+
+    private static final class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(final byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Key && hash == ((Key) other).hash && Arrays.equals(bytes, ((Key) other).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.AC;
+import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.DC;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.IDENTIFIER;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType;
+import io.parsingdata.metal.data.ByteStream;
+import io.parsingdata.metal.data.ParseState;
+import io.parsingdata.metal.data.callback.Callback;
+import io.parsingdata.metal.token.Token;
+
+/**
+ * The state of a single validation by a {@link JpegValidator}, so a validator can validate
+ * on many threads at once. A validation borrows a context from a pool with
+ * {@link #start(JpegValidator)} and returns it with {@link #finish()}: the fragment points,
+ * the tables, the progressive decoder and some of its refinable coefficients keep their
+ * storage for the next validation. A borrowed context belongs to that validation alone, so a
+ * thread that runs another validation while it waits for a parallel stage of its own, as
+ * fork-join workers do, borrows a second one.
+ */
+final class JpegValidationContext implements Callback {
+
+    private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors();
+    private static final Queue<JpegValidationContext> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger(); // Approximately the size of the pool.
+
+    JpegValidator validator;
+    long reportedOffset;
+    final OffsetList detectedFragmentPoints = new OffsetList(); // Track all detected fragments
+    final Map<CoefficientType, Map<Integer, HuffmanTable>> huffmanTables = new EnumMap<>(CoefficientType.class);
+    private JpegProgressive progressive;
+    private JpegRefinableCoefficients[] refinableCoefficients = new JpegRefinableCoefficients[0]; // Per component.
+
+    private JpegValidationContext() {
+        huffmanTables.put(DC, new HashMap<>());
+        huffmanTables.put(AC, new HashMap<>());
+    }
+
+    /**
+     * @return a context from the pool or a new one, cleared for a validation by the validator
+     */
+    static JpegValidationContext start(final JpegValidator validator) {
+        JpegValidationContext context = POOL.poll();
+        if (context == null) {
+            context = new JpegValidationContext();
+        } else {
+            POOLED.decrementAndGet();
+        }
+        context.validator = validator;
+        context.reportedOffset = 0;
+        context.detectedFragmentPoints.clear();
+        context.huffmanTables.get(DC).clear();
+        context.huffmanTables.get(AC).clear();
+        return context;
+    }
+
+    JpegProgressive progressive() {
+        if (progressive == null) {
+            progressive = new JpegProgressive();
+        }
+        return progressive;
+    }
+
+    /**
+     * Drops the references to the input of the validation, so it is not kept alive while the context is
+     * pooled, and returns the context to the pool unless the pool is full. The context must not be used after.
+     */
+    void finish() {
+        validator = null;
+        if (progressive != null) {
+            progressive.release();
+        }
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(this);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return storage for the refinable coefficients of a component, in the words of a previous validation
+     *         with this context if there are enough of them
+     */
+    JpegRefinableCoefficients refinableCoefficients(final int component, final int blockCount) throws IOException {
+        if (component >= refinableCoefficients.length) {
+            refinableCoefficients = Arrays.copyOf(refinableCoefficients, component + 1);
+        }
+        final JpegRefinableCoefficients coefficients = JpegRefinableCoefficients.allocate(blockCount, refinableCoefficients[component]);
+        refinableCoefficients[component] = null;
+        long retainedBytes = coefficients.heapBytes();
+        for (final JpegRefinableCoefficients retained : refinableCoefficients) {
+            retainedBytes += retained != null ? retained.heapBytes() : 0;
+        }
+        if (coefficients.heapBytes() > 0 && retainedBytes <= JpegRefinableCoefficients.MAX_RETAINED_BYTES) {
+            refinableCoefficients[component] = coefficients;
+        }
+        return coefficients;
+    }
+
+    Optional<HeaderSegments> parseJpegHeader(final ByteStream input) throws IOException {
+        Optional<HeaderSegments> header = JpegHeaderParser.parseHeader(input);
+        if (validator.crossCheckHeaders) {
+            header = crossCheck("header", header, JpegMetalHeaderParser.parseHeader(input));
+        }
+        header.ifPresent(this::useHeader);
+        return header;
+    }
+
+    /**
+     * Defines the tables of a parsed header for the validation.
+     *
+     * @return the header
+     */
+    HeaderSegments useHeader(final HeaderSegments header) {
+        header.defineTables(huffmanTables);
+        reportedOffset = header.reportedOffset;
+        return header;
+    }
+
+    /**
+     * Parses the segments before a scan and its SOS at the offset, and defines the tables among them.
+     *
+     * @return the segments, or empty if no scan starts at the offset
+     */
+    Optional<HeaderSegments> parseScan(final ByteStream input, final long offset) throws IOException {
+        final Optional<HeaderSegments> scan = parseScanSegments(input, offset);
+        scan.ifPresent(segments -> segments.defineTables(huffmanTables));
+        return scan;
+    }
+
+    /**
+     * @return whether a scan starts at the offset
+     */
+    boolean startsScan(final ByteStream input, final long offset) throws IOException {
+        return parseScanSegments(input, offset).isPresent();
+    }
+
+    private Optional<HeaderSegments> parseScanSegments(final ByteStream input, final long offset) throws IOException {
+        final Optional<HeaderSegments> scan = JpegHeaderParser.parseScan(input, offset);
+        if (validator.crossCheckHeaders) {
+            return crossCheck("scan at offset " + offset, scan, JpegMetalHeaderParser.parseScan(input, offset));
+        }
+        return scan;
+    }
+
+    private static Optional<HeaderSegments> crossCheck(final String segments, final Optional<HeaderSegments> parsed, final Optional<HeaderSegments> metal) {
+        if (!parsed.toString().equals(metal.toString())) {
+            System.out.println("Warning: header parsers differ on the " + segments + ":");
+            System.out.println("  bytes: " + parsed.map(HeaderSegments::toString).orElse("no match"));
+            System.out.println("  metal: " + metal.map(HeaderSegments::toString).orElse("no match"));
+        }
+        return metal;
+    }
+
+    @Override
+    public void handleSuccess(final Token token, final ParseState before, final ParseState after) {
+        if (token.name.equals(IDENTIFIER)) {
+            this.reportedOffset = after.offset.longValueExact();
+        }
+    }
+
+    @Override
+    public void handleFailure(final Token token, final ParseState before) {
+    }
+
+}
@@ -1,106 +1,133 @@
 package io.parsingdata.jpegfragments.validator.jpeg;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import io.parsingdata.jpegfragments.ValidationResult;
 import io.parsingdata.jpegfragments.Validator;
 
 public class JpegValidationResult extends ValidationResult {
 
-    public static class FragmentRange {
-        public final BigInteger start;
-        public final BigInteger end;
-
-        public FragmentRange(BigInteger start, BigInteger end) {
-            this.start = start;
-            this.end = end;
-        }
-
-        @Override
-        public String toString() {
-            return "[" + start + " - " + end + "]";
-        }
-    }
+    private static final long[] NONE = new long[0];
 
+    public final long byteOffset; // Same as offset, without the BigInteger.
     public String info;
-    public List<BigInteger> allDetectedFragments; // All detected fragment points (for backward compatibility)
-    public List<FragmentRange> detectedFragmentRanges; // Fragment ranges (start-end pairs)
+    public long[] allDetectedFragments; // All detected fragment points, sorted (for backward compatibility)
+    public long[] detectedFragmentRanges; // Fragment ranges, packed as start and end pairs
     public int totalFragmentsDetected;
-
-    private JpegValidationResult(final boolean completed, final BigInteger offset, final Validator validator) {
-        super(completed, offset, validator);
-        this.allDetectedFragments = new ArrayList<>();
-        this.detectedFragmentRanges = new ArrayList<>();
+    public final long estimatedRemainingBytes; // Entropy-coded bytes of the image not in any fragment, -1 if unknown
+
+    private JpegValidationResult(final boolean completed, final long offset, final Validator validator, final long estimatedRemainingBytes) {
+        super(completed, BigInteger.valueOf(offset), validator);
+        this.byteOffset = offset;
+        this.estimatedRemainingBytes = estimatedRemainingBytes;
+        this.allDetectedFragments = NONE;
+        this.detectedFragmentRanges = NONE;
         this.totalFragmentsDetected = 0;
     }
 
-    public JpegValidationResult(final boolean completed, final BigInteger offset, final Validator validator,
+    public JpegValidationResult(final boolean completed, final long offset, final Validator validator,
             final String info) {
-        this(completed, offset, validator);
+        this(completed, offset, validator, -1);
         this.info = info;
     }
 
-    public JpegValidationResult(final boolean completed, final BigInteger offset, final Validator validator,
-            final String info, List<BigInteger> allFragments) {
-        this(completed, offset, validator);
+    /**
+     * @param mergeGap fragments separated by less than this many bytes are merged into one range, see
+     *                 {@link JpegDetectionConfig#fragmentMergeGap}
+     */
+    public JpegValidationResult(final boolean completed, final long offset, final Validator validator,
+            final String info, OffsetList allFragments, final int mergeGap) {
+        this(completed, offset, validator, info, allFragments, mergeGap, -1);
+    }
+
+    public JpegValidationResult(final boolean completed, final long offset, final Validator validator,
+            final String info, OffsetList allFragments, final int mergeGap, final long estimatedRemainingBytes) {
+        this(completed, offset, validator, info, sorted(allFragments), mergeGap, estimatedRemainingBytes);
+    }
+
+    private JpegValidationResult(final boolean completed, final long offset, final Validator validator,
+            final String info, final long[] sortedFragments, final int mergeGap, final long estimatedRemainingBytes) {
+        this(completed, offset, validator, estimatedRemainingBytes);
         this.info = info;
+        this.allDetectedFragments = sortedFragments;
 
+        // Merge fragments that are very close together
+        this.detectedFragmentRanges = mergeCloseFragments(sortedFragments, mergeGap);
+        this.totalFragmentsDetected = rangeCount();
+    }
+
+    /**
+     * @return a copy of this result with the detected fragments merged into ranges with another gap threshold,
+     *         this result is left as it is
+     */
+    public JpegValidationResult mergeFragments(final int maxGap) {
+        return new JpegValidationResult(completed, byteOffset, validator, info, allDetectedFragments, maxGap,
+                estimatedRemainingBytes);
+    }
+
+    private static long[] sorted(final OffsetList fragments) {
         // Sort all fragments to ensure deterministic ordering
-        List<BigInteger> sortedFragments = allFragments != null ? new ArrayList<>(allFragments) : new ArrayList<>();
-        sortedFragments.sort(BigInteger::compareTo);
-        this.allDetectedFragments = sortedFragments;
+        final long[] sortedFragments = fragments != null ? fragments.toArray() : NONE;
+        Arrays.sort(sortedFragments);
+        return sortedFragments;
+    }
 
-        // Convert list of offsets to ranges (pairs of start-end)
-        List<FragmentRange> rawRanges = new ArrayList<>();
-        if (sortedFragments.size() >= 2) {
-            for (int i = 0; i < sortedFragments.size() - 1; i += 2) {
-                rawRanges.add(new FragmentRange(sortedFragments.get(i), sortedFragments.get(i + 1)));
-            }
-        }
+    public int rangeCount() {
+        return detectedFragmentRanges.length / 2;
+    }
+
+    public long rangeStart(final int index) {
+        return detectedFragmentRanges[2 * index];
+    }
 
-        // Merge fragments that are very close together (gap < 1KB)
-        this.detectedFragmentRanges = mergeCloseFragments(rawRanges, 1024); // 1KB threshold
-        this.totalFragmentsDetected = this.detectedFragmentRanges.size();
+    public long rangeEnd(final int index) {
+        return detectedFragmentRanges[2 * index + 1];
     }
 
     /**
-     * Merge fragments that are separated by less than the specified gap threshold.
-     * This consolidates closely-spaced fragments that are actually part of the same
-     * continuous region.
-     * 
-     * @param ranges List of fragment ranges to merge
+     * Pair up sorted offsets as start-end ranges and merge ranges that are separated
+     * by less than the specified gap threshold. This consolidates closely-spaced
+     * fragments that are actually part of the same continuous region.
+     *
+     * @param points Sorted fragment points, a trailing unpaired point is ignored
      * @param maxGap Maximum gap size (in bytes) to merge across
-     * @return List of merged fragment ranges
+     * @return Merged fragment ranges, packed as start and end pairs
      */
-    private List<FragmentRange> mergeCloseFragments(List<FragmentRange> ranges, int maxGap) {
-        if (ranges == null || ranges.isEmpty()) {
-            return new ArrayList<>();
+    private static long[] mergeCloseFragments(long[] points, int maxGap) {
+        final int pairs = points.length / 2;
+        if (pairs == 0) {
+            return NONE;
         }
 
-        List<FragmentRange> merged = new ArrayList<>();
-        FragmentRange current = ranges.get(0);
+        long[] merged = new long[2 * pairs];
+        int mergedLength = 0;
+        long currentStart = points[0];
+        long currentEnd = points[1];
 
-        for (int i = 1; i < ranges.size(); i++) {
-            FragmentRange next = ranges.get(i);
-            long gap = next.start.longValue() - current.end.longValue();
+        for (int i = 1; i < pairs; i++) {
+            long nextStart = points[2 * i];
+            long nextEnd = points[2 * i + 1];
+            long gap = nextStart - currentEnd;
 
             // If gap is less than threshold, merge the fragments
             if (gap < maxGap) {
                 // Extend current fragment to include next fragment
-                current = new FragmentRange(current.start, next.end);
+                currentEnd = nextEnd;
             } else {
                 // Gap is too large, finalize current and start new
-                merged.add(current);
-                current = next;
+                merged[mergedLength++] = currentStart;
+                merged[mergedLength++] = currentEnd;
+                currentStart = nextStart;
+                currentEnd = nextEnd;
             }
         }
 
         // Add the last fragment
-        merged.add(current);
+        merged[mergedLength++] = currentStart;
+        merged[mergedLength++] = currentEnd;
 
-        return merged;
+        return Arrays.copyOf(merged, mergedLength);
     }
 
     @Override
@@ -1,45 +1,63 @@
 package io.parsingdata.jpegfragments.validator.jpeg;
 
-import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.AC;
-import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.DC;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.DRI;
 import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.FOOTER;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HEADER;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.HT;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.IDENTIFIER;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SOF;
-import static io.parsingdata.jpegfragments.validator.jpeg.JpegStructure.SOF0_IDENTIFIER;
-import static io.parsingdata.metal.Shorthand.con;
-import static io.parsingdata.metal.Shorthand.eq;
-import static io.parsingdata.metal.Shorthand.last;
-import static io.parsingdata.metal.Shorthand.ref;
 
 import java.io.IOException;
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 
+import io.parsingdata.jpegfragments.MappedByteStream;
 import io.parsingdata.jpegfragments.Validator;
-import io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType;
 import io.parsingdata.metal.data.ByteStream;
 import io.parsingdata.metal.data.Environment;
 import io.parsingdata.metal.data.ImmutableList;
 import io.parsingdata.metal.data.ParseState;
-import io.parsingdata.metal.data.callback.Callback;
 import io.parsingdata.metal.data.callback.Callbacks;
 import io.parsingdata.metal.encoding.Encoding;
 import io.parsingdata.metal.expression.value.Value;
-import io.parsingdata.metal.token.Token;
 
-public class JpegValidator implements Validator, Callback {
+/**
+ * Validates JPEG files. A validator holds only its configuration: the state of a validation is
+ * kept in the {@link JpegValidationContext} of the validating thread, so a single validator can
+ * be shared by any number of threads.
+ */
+public class JpegValidator implements Validator {
 
-    BigInteger reportedOffset;
-    List<BigInteger> detectedFragmentPoints = new ArrayList<>(); // Track all detected fragments
-    final Map<CoefficientType, Map<Integer, HuffmanTable>> huffmanTables = new HashMap<>();
     static final List<String> CHANNEL_NAME = List.of("Blueness", "Redness");
+    final JpegDetectionConfig config;
+    final boolean crossCheckHeaders; // Parse headers with the metal tokens too and report where the parsers differ.
+
+    public JpegValidator() {
+        this(false);
+    }
+
+    /**
+     * @param coarseToFine whether to probe every cluster of a baseline scan without restart markers first and
+     *                     decode exactly only where decoding stops resuming, which is much less work on large files
+     *                     but misses noise that starts and ends within a run of clusters where decoding resumes
+     */
+    public JpegValidator(final boolean coarseToFine) {
+        this(coarseToFine, false);
+    }
+
+    /**
+     * @param crossCheckHeaders whether to parse the header and the segments before each scan with the metal tokens of
+     *                          {@link JpegStructure} as well, report where the result differs from the byte-level
+     *                          parser and continue with the result of the tokens
+     */
+    public JpegValidator(final boolean coarseToFine, final boolean crossCheckHeaders) {
+        this(JpegDetectionConfig.DEFAULT.withCoarseToFine(coarseToFine), crossCheckHeaders);
+    }
+
+    public JpegValidator(final JpegDetectionConfig config) {
+        this(config, false);
+    }
+
+    public JpegValidator(final JpegDetectionConfig config, final boolean crossCheckHeaders) {
+        this.config = config;
+        this.crossCheckHeaders = crossCheckHeaders;
+    }
 
     public static int[] listToIntArray(final ImmutableList<Value> list) {
         final int[] result = new int[(int) list.size];
@@ -53,75 +71,54 @@ public class JpegValidator implements Validator, Callback {
 
     @Override
     public JpegValidationResult validate(ByteStream input) throws IOException {
-        detectedFragmentPoints.clear(); // Reset for each validation
-        final Optional<ParseState> headerResult = parseJpegHeader(input);
-        if (headerResult.isEmpty()) {
-            return new JpegValidationResult(false, this.reportedOffset, this, "JpegHeader", detectedFragmentPoints);
+        final JpegValidationContext context = JpegValidationContext.start(this);
+        try {
+            return validate(context, input, context.parseJpegHeader(input));
+        } finally {
+            context.finish();
         }
-        final JpegValidationResult mcuValidationResult = isBaseline(headerResult.get())
-                ? JpegBaseline.validateBaselineScan(this, headerResult.get(), input)
-                : new JpegProgressive().validateProgressiveScans(this, headerResult.get(), input);
+    }
+
+    /**
+     * Validates with a header parsed before, so validations of the same input with different configurations
+     * parse it only once, see {@link JpegStrategyPortfolio}.
+     */
+    JpegValidationResult validate(final ByteStream input, final HeaderSegments header) throws IOException {
+        final JpegValidationContext context = JpegValidationContext.start(this);
+        try {
+            return validate(context, input, Optional.of(context.useHeader(header)));
+        } finally {
+            context.finish();
+        }
+    }
+
+    private JpegValidationResult validate(final JpegValidationContext context, final ByteStream input, final Optional<HeaderSegments> header) throws IOException {
+        if (header.isEmpty()) {
+            return new JpegValidationResult(false, context.reportedOffset, this, "JpegHeader", context.detectedFragmentPoints, config.fragmentMergeGap);
+        }
+        final JpegValidationResult mcuValidationResult = header.get().frame != null && header.get().frame.isBaseline()
+                ? JpegBaseline.validateBaselineScan(context, header.get(), input)
+                : context.progressive().validateProgressiveScans(context, header.get(), input);
         if (!mcuValidationResult.completed) {
             return mcuValidationResult;
         }
         final Optional<ParseState> footerResult = FOOTER
                 .parse(new Environment(ParseState.createFromByteStream(input, mcuValidationResult.offset),
-                        Callbacks.create().add(this), Encoding.DEFAULT_ENCODING));
+                        Callbacks.create().add(context), Encoding.DEFAULT_ENCODING));
         return footerResult
-                .map(parseState -> new JpegValidationResult(true, parseState.offset, this, "", detectedFragmentPoints))
-                .orElseGet(() -> new JpegValidationResult(false, mcuValidationResult.offset, this, "JpegFooter",
-                        detectedFragmentPoints));
-    }
-
-    private Optional<ParseState> parseJpegHeader(final ByteStream input) {
-        this.reportedOffset = BigInteger.ZERO;
-        this.detectedFragmentPoints.clear();
-        huffmanTables.put(DC, new HashMap<>());
-        huffmanTables.put(AC, new HashMap<>());
-        return HEADER.parse(
-                new Environment(ParseState.createFromByteStream(input),
-                        Callbacks.create()
-                                .add(this)
-                                .add(HT, new Callback() {
-                                    @Override
-                                    public void handleSuccess(final Token token, final ParseState before,
-                                            final ParseState after) {
-                                        final HuffmanTable table = new HuffmanTable(after);
-                                        huffmanTables.get(table.type).put(table.id, table);
-                                    }
-
-                                    @Override
-                                    public void handleFailure(final Token token, final ParseState before) {
-                                    }
-                                })
-                                .add(DRI, new Callback() {
-                                    @Override
-                                    public void handleSuccess(Token token, ParseState before, ParseState after) {
-                                    }
-
-                                    @Override
-                                    public void handleFailure(Token token, ParseState before) {
-                                    }
-                                }),
-                        Encoding.DEFAULT_ENCODING));
-    }
-
-    private boolean isBaseline(final ParseState headerState) {
-        return eq(last(ref(SOF + Token.SEPARATOR + IDENTIFIER)), con(SOF0_IDENTIFIER)).eval(headerState,
-                Encoding.DEFAULT_ENCODING);
+                .map(parseState -> new JpegValidationResult(true, parseState.offset.longValueExact(), this, "", context.detectedFragmentPoints,
+                        config.fragmentMergeGap, mcuValidationResult.estimatedRemainingBytes))
+                .orElseGet(() -> new JpegValidationResult(false, mcuValidationResult.byteOffset, this, "JpegFooter",
+                        context.detectedFragmentPoints, config.fragmentMergeGap, mcuValidationResult.estimatedRemainingBytes));
     }
 
     @Override
-    public void handleSuccess(final Token token, final ParseState before, final ParseState after) {
-        if (token.name.equals(IDENTIFIER)) {
-            this.reportedOffset = after.offset;
+    public JpegValidationResult validate(final Path input) throws IOException {
+        try (MappedByteStream mapped = MappedByteStream.map(input)) {
+            return validate(mapped);
         }
     }
 
-    @Override
-    public void handleFailure(Token token, ParseState before) {
-    }
-
     @Override
     public String toString() {
         return getClass().getSimpleName();
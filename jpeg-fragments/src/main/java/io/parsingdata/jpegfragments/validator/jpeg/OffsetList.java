@@ -0,0 +1,48 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of file offsets backed by a long[], so recording an offset does not box.
+ */
+public class OffsetList {
+
+    private long[] offsets = new long[16];
+    private int size;
+
+    public void add(final long offset) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        offsets[size++] = offset;
+    }
+
+    public long get(final int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size + ".");
+        }
+        return offsets[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(offsets, size);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+}
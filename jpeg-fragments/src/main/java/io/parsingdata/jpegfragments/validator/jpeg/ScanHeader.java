@@ -0,0 +1,49 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.util.Arrays;
+
+/**
+ * The SOS segment of a scan: its components, their tables and the part of the coefficients it codes.
+ */
+final class ScanHeader {
+
+    private final int[] componentSelectors; // Csj
+    private final int[] tableSelectors; // Tdj & Taj
+    final int startOfSpectralSelection; // Ss
+    final int endOfSpectralSelection; // Se
+    final int successiveApproximation; // Ah & Al
+
+    ScanHeader(final int[] componentSelectors, final int[] tableSelectors, final int startOfSpectralSelection, final int endOfSpectralSelection, final int successiveApproximation) {
+        this.componentSelectors = componentSelectors;
+        this.tableSelectors = tableSelectors;
+        this.startOfSpectralSelection = startOfSpectralSelection;
+        this.endOfSpectralSelection = endOfSpectralSelection;
+        this.successiveApproximation = successiveApproximation;
+    }
+
+    int componentCount() {
+        return componentSelectors.length;
+    }
+
+    int[] componentSelectors() {
+        return componentSelectors.clone();
+    }
+
+    int[] tableSelectors() {
+        return tableSelectors.clone();
+    }
+
+    int saHigh() {
+        return successiveApproximation >>> 4;
+    }
+
+    int saLow() {
+        return successiveApproximation & 0x0F;
+    }
+
+    @Override
+    public String toString() {
+        return "SOS " + Arrays.toString(componentSelectors) + " " + Arrays.toString(tableSelectors) + " " + startOfSpectralSelection + "-" + endOfSpectralSelection + " " + Integer.toHexString(successiveApproximation);
+    }
+
+}
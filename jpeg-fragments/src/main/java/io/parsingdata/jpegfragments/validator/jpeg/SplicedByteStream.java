@@ -0,0 +1,66 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import io.parsingdata.metal.data.ByteStream;
+
+/**
+ * View of a {@link ByteStream} with a range of bytes cut out: from the cut onwards, offsets
+ * read the bytes that follow the range. Recovery in progressive scans splices clusters of
+ * noise out of the input this way and decodes straight across the cut. Splicing a view
+ * again cuts out another range; {@link #sourceOffset} maps an offset back through all of them.
+ */
+final class SplicedByteStream implements ByteStream {
+
+    private final ByteStream source;
+    private final long cut; // Offset of the first byte cut out.
+    private final long gap; // Number of bytes cut out.
+
+    SplicedByteStream(final ByteStream source, final long cut, final long gap) {
+        this.source = source;
+        this.cut = cut;
+        this.gap = gap;
+    }
+
+    /**
+     * @return the offset in the input without any cuts of the byte at the offset in the given input
+     */
+    static long sourceOffset(final ByteStream input, final long offset) {
+        if (!(input instanceof SplicedByteStream)) {
+            return offset;
+        }
+        final SplicedByteStream spliced = (SplicedByteStream) input;
+        return sourceOffset(spliced.source, offset < spliced.cut ? offset : offset + spliced.gap);
+    }
+
+    @Override
+    public byte[] read(final BigInteger offset, final int length) throws IOException {
+        final long start = offset.longValueExact();
+        if (start >= cut) {
+            return source.read(BigInteger.valueOf(start + gap), length);
+        }
+        if (start + length <= cut) {
+            return source.read(offset, length);
+        }
+        final int before = (int) (cut - start);
+        final byte[] data = new byte[length];
+        System.arraycopy(source.read(offset, before), 0, data, 0, before);
+        System.arraycopy(source.read(BigInteger.valueOf(cut + gap), length - before), 0, data, before, length - before);
+        return data;
+    }
+
+    @Override
+    public boolean isAvailable(final BigInteger offset, final BigInteger length) {
+        final long start = offset.longValueExact();
+        final long end = start + length.longValueExact();
+        if (start >= cut) {
+            return source.isAvailable(BigInteger.valueOf(start + gap), length);
+        }
+        if (end <= cut) {
+            return source.isAvailable(offset, length);
+        }
+        return source.isAvailable(BigInteger.valueOf(cut + gap), BigInteger.valueOf(end - cut));
+    }
+
+}
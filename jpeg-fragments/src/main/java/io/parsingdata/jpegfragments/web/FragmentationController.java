@@ -1,16 +1,18 @@
 package io.parsingdata.jpegfragments.web;
 
+import io.parsingdata.jpegfragments.MappedByteStream;
 import io.parsingdata.jpegfragments.Validator;
+import io.parsingdata.jpegfragments.validator.jpeg.JpegDetectionConfig;
+import io.parsingdata.jpegfragments.validator.jpeg.JpegStrategyPortfolio;
+import io.parsingdata.jpegfragments.validator.jpeg.JpegTableCache;
 import io.parsingdata.jpegfragments.validator.jpeg.JpegValidationResult;
 import io.parsingdata.jpegfragments.validator.jpeg.JpegValidator;
-import io.parsingdata.metal.data.ByteStream;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -18,6 +20,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -30,6 +33,10 @@ public class FragmentationController {
     private static final String UPLOAD_DIR = "uploads";
     private static final String OUTPUT_DIR = "fragmented";
     private static final String RECONSTRUCTED_DIR = "reconstructed_images";
+    private static final JpegValidator VALIDATOR = new JpegValidator(); // Shared by all request threads.
+    private static final JpegDetectionConfig SNAPPING = JpegDetectionConfig.DEFAULT; // Snaps the ranges of every strategy.
+    private static final JpegStrategyPortfolio PORTFOLIO = new JpegStrategyPortfolio(
+            JpegStrategyPortfolio.DEFAULT_STRATEGIES, FragmentationController::validationScore);
 
     // Store last fragmentation info for re-analysis
     private Map<String, LastFragmentationInfo> lastFragmentations = new HashMap<>();
@@ -77,11 +84,11 @@ public class FragmentationController {
                         fragmentInfo = ImageFragmenter.fragmentImage(originalPath, fragmentedPath, fragmentCount,
                                 insertionSizeKB);
 
-                        ValidationAnalysisResult validationResult = processValidation(fragmentedPath, 3);
+                        ValidationAnalysisResult validationResult = processValidation(fragmentedPath);
 
                         // BOUNDARY SNAPPING: Snap detected boundaries to nearest 4KB boundary
                         long fileSize = Files.size(fragmentedPath);
-                        validationResult = snapDetectedBoundariesToKnownBoundaries(validationResult, 4096, 768,
+                        validationResult = snapDetectedBoundariesToKnownBoundaries(validationResult, SNAPPING,
                                 fileSize);
 
                         // Generate reconstructed image from detected boundaries
@@ -100,19 +107,19 @@ public class FragmentationController {
                             System.out.println("Starting reconstruction with "
                                     + validationResult.detectedFragmentRanges.size() + " detected boundaries");
 
-                            // Convert detected ranges to List<List<Integer>>
-                            List<List<Integer>> boundaries = new ArrayList<>();
+                            // Convert detected ranges to List<List<Long>>
+                            List<List<Long>> boundaries = new ArrayList<>();
                             for (Map<String, Long> range : validationResult.detectedFragmentRanges) {
-                                List<Integer> boundary = new ArrayList<>();
-                                boundary.add(range.get("start").intValue());
-                                boundary.add(range.get("end").intValue());
+                                List<Long> boundary = new ArrayList<>();
+                                boundary.add(range.get("start"));
+                                boundary.add(range.get("end"));
                                 boundaries.add(boundary);
                                 System.out
                                         .println("  Boundary: [" + range.get("start") + " - " + range.get("end") + "]");
                             }
 
                             reconstructedFileName = ImageFragmenter.reconstructImageFromDetection(
-                                    fragmentedPath.toString(),
+                                    fragmentedPath,
                                     boundaries);
                             System.out.println("Reconstruction completed: " + reconstructedFileName);
                         } else {
@@ -238,6 +245,7 @@ public class FragmentationController {
                         result.put("totalDetectedFragments", validationResult.detectedFragmentRanges.size());
                         result.put("validationCompleted", validationResult.completed);
                         result.put("validationMessage", validationResult.message);
+                        result.put("estimatedRemainingBytes", validationResult.estimatedRemainingBytes);
 
                         System.out.println(
                                 "Total fragment ranges detected: " + validationResult.detectedFragmentRanges.size());
@@ -310,6 +318,7 @@ public class FragmentationController {
                     result.put("totalDetectedFragments", validationResult.detectedFragmentRanges.size());
                     result.put("validationCompleted", validationResult.completed);
                     result.put("validationMessage", validationResult.message);
+                    result.put("estimatedRemainingBytes", validationResult.estimatedRemainingBytes);
                     result.put("isValid", validationResult.completed);
                 }
 
@@ -468,13 +477,13 @@ public class FragmentationController {
 
                     System.out.println("Re-validating: " + fragmentedPath.getFileName());
                     long startTime = System.currentTimeMillis();
-                    ValidationAnalysisResult validationResult = processValidation(fragmentedPath, 3);
+                    ValidationAnalysisResult validationResult = processValidation(fragmentedPath);
                     long endTime = System.currentTimeMillis();
                     System.out.println("Re-validation completed in " + (endTime - startTime) + "ms");
 
                     // BOUNDARY SNAPPING: Snap detected boundaries to nearest 4KB boundary
                     long fileSize = Files.size(fragmentedPath);
-                    validationResult = snapDetectedBoundariesToKnownBoundaries(validationResult, 4096, 768, fileSize);
+                    validationResult = snapDetectedBoundariesToKnownBoundaries(validationResult, SNAPPING, fileSize);
 
                     result.put("detectedFragmentPoint", validationResult.detectedOffset);
                     result.put("allDetectedFragments", validationResult.allDetectedOffsets);
@@ -482,6 +491,7 @@ public class FragmentationController {
                     result.put("totalDetectedFragments", validationResult.detectedFragmentRanges.size());
                     result.put("validationCompleted", validationResult.completed);
                     result.put("validationMessage", validationResult.message);
+                    result.put("estimatedRemainingBytes", validationResult.estimatedRemainingBytes);
 
                     // Reconstruct image from detected (snapped) boundaries
                     String reconstructedFileName = null;
@@ -490,17 +500,17 @@ public class FragmentationController {
                         System.out.println("\n=== Reconstructing from detected boundaries (reanalyze) ===");
                         System.out.println("Detected fragments: " + validationResult.detectedFragmentRanges.size());
 
-                        List<List<Integer>> boundaries = new ArrayList<>();
+                        List<List<Long>> boundaries = new ArrayList<>();
                         for (Map<String, Long> range : validationResult.detectedFragmentRanges) {
-                            List<Integer> boundary = new ArrayList<>();
-                            boundary.add(range.get("start").intValue());
-                            boundary.add(range.get("end").intValue());
+                            List<Long> boundary = new ArrayList<>();
+                            boundary.add(range.get("start"));
+                            boundary.add(range.get("end"));
                             boundaries.add(boundary);
                             System.out.println("  Boundary: [" + range.get("start") + " - " + range.get("end") + "]");
                         }
 
                         reconstructedFileName = ImageFragmenter.reconstructImageFromDetection(
-                                fragmentedPath.toString(), boundaries);
+                                fragmentedPath, boundaries);
                         System.out.println("Reconstructed file: " + reconstructedFileName);
                     } else {
                         System.out.println("No detected fragments for reconstruction in reanalyze.");
@@ -668,28 +678,106 @@ public class FragmentationController {
         Map<String, Object> response = new HashMap<>();
         response.put("status", "running");
         response.put("service", "JPEG Fragmentation Detection");
+        response.put("tableCache", JpegTableCache.statistics());
         return ResponseEntity.ok(response);
     }
 
-    private ValidationAnalysisResult processValidation(Path fragmentedPath, int threshold) throws IOException {
-        ValidationAnalysisResult result = null;
-        int metric = -1;
-
-        for (int i = 0; i < threshold; i++) {
-            ValidationAnalysisResult current = validateImage(fragmentedPath);
+    /**
+     * Sweeps a grid of detection configurations over the uploaded images, each split into the given number of
+     * fragments, see {@link ParameterSweep}. Each list parameter is comma-separated. The recommended configuration
+     * is the fastest one that finds at least minDetectionRate percent of the fragments.
+     */
+    @PostMapping(value = "/sweep", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<?> sweep(@RequestParam("files") MultipartFile[] files,
+            @RequestParam(value = "fragments", defaultValue = "3") int fragmentCount,
+            @RequestParam(value = "insertionSize", defaultValue = "4") int insertionSizeKB,
+            @RequestParam(value = "minMcus", defaultValue = "2") List<Integer> minMcus,
+            @RequestParam(value = "minLength", defaultValue = "1000") List<Integer> minLengths,
+            @RequestParam(value = "maxRecovery", defaultValue = "30720") List<Integer> maxRecoveries,
+            @RequestParam(value = "mergeGap", defaultValue = "1024") List<Integer> mergeGaps,
+            @RequestParam(value = "snapTolerance", defaultValue = "768") List<Integer> snapTolerances,
+            @RequestParam(value = "minDetectionRate", defaultValue = "90") double minDetectionRate) {
+        try {
+            Path uploadPath = Paths.get(System.getProperty("user.dir"), UPLOAD_DIR).toAbsolutePath();
+            Files.createDirectories(uploadPath);
 
-            int value = current.detectedFragmentRanges.size() * 100;
-            if (current.completed) {
-                value += 50;
+            List<Path> corpus = new ArrayList<>();
+            for (MultipartFile file : files) {
+                if (file.isEmpty())
+                    continue;
+                Path originalPath = uploadPath.resolve(file.getOriginalFilename());
+                file.transferTo(originalPath.toFile());
+                corpus.add(originalPath);
             }
 
-            if (result == null || value > metric) {
-                result = current;
-                metric = value;
+            long startTime = System.currentTimeMillis();
+            List<ParameterSweep.Row> rows = ParameterSweep.run(corpus, fragmentCount, insertionSizeKB,
+                    ParameterSweep.grid(minMcus, minLengths, maxRecoveries, mergeGaps, snapTolerances));
+            long endTime = System.currentTimeMillis();
+
+            List<Map<String, Object>> results = new ArrayList<>();
+            ParameterSweep.Row recommended = null;
+            for (ParameterSweep.Row row : rows) {
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("config", row.config.toString());
+                result.put("minMcus", row.config.minMcusToStartFragment);
+                result.put("minLength", row.config.minFragmentLengthBytes);
+                result.put("maxRecovery", row.config.maxSingleErrorRecovery);
+                result.put("mergeGap", row.config.fragmentMergeGap);
+                result.put("snapTolerance", row.config.snapToleranceBytes);
+                result.put("matchedFragments", row.matchedFragments);
+                result.put("detectionRate", formatPercent(row.detectionRate()));
+                result.put("megabytesPerSecond", row.megabytesPerSecond());
+                result.put("paretoOptimal", row.isParetoOptimal(rows));
+                results.add(result);
+                if (row.detectionRate() >= minDetectionRate
+                        && (recommended == null || row.megabytesPerSecond() > recommended.megabytesPerSecond())) {
+                    recommended = row;
+                }
             }
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("images", rows.isEmpty() ? 0 : rows.get(0).images);
+            response.put("fragments", rows.isEmpty() ? 0 : rows.get(0).fragments);
+            response.put("sweepMillis", endTime - startTime);
+            response.put("results", results);
+            response.put("recommended", recommended != null ? recommended.config.toString() : null);
+            return ResponseEntity.ok(response);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("success", false);
+            errorResponse.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
         }
+    }
 
-        return result;
+    /**
+     * Validates with every strategy of the portfolio at once, and keeps the result with the highest score.
+     */
+    private ValidationAnalysisResult processValidation(Path fragmentedPath) {
+        return validateImage(fragmentedPath, PORTFOLIO);
+    }
+
+    /**
+     * Scores a result by how much of the image its fragments leave unaccounted for, so detecting more does not score
+     * higher by itself. A completed validation scores higher than any that is not. Then every entropy-coded byte of
+     * the image estimated to be outside the fragments costs a point, all of them if the estimate is unknown. A
+     * fragment shorter than the default minimum fragment length costs a cluster, more than it can account for, and
+     * any other fragment a point, so of strategies that account for as much the one with the fewest fragments wins.
+     * Merging the fragments into ranges does not change the score.
+     */
+    private static int validationScore(JpegValidationResult result) {
+        final long maxPenalty = Integer.MAX_VALUE / 2;
+        long penalty = result.estimatedRemainingBytes < 0 ? maxPenalty : result.estimatedRemainingBytes;
+        final long[] fragments = result.allDetectedFragments;
+        for (int point = 0; point + 1 < fragments.length; point += 2) {
+            final boolean isShort = fragments[point + 1] - fragments[point] < JpegDetectionConfig.DEFAULT.minFragmentLengthBytes;
+            penalty += isShort ? JpegDetectionConfig.DEFAULT.clusterBytes : 1;
+        }
+        return (result.completed ? (int) maxPenalty : 0) - (int) Math.min(penalty, maxPenalty);
     }
 
     private static String formatPercent(double percent0to100) {
@@ -882,15 +970,19 @@ public class FragmentationController {
             file.transferTo(filePath.toFile());
 
             // Read file and parse JPEG structure
-            byte[] imageData = Files.readAllBytes(filePath);
-            int jpegHeaderStart = findJpegHeaderInData(imageData);
-
-            JpegStructuralParser.JpegEntropyRegion entropyRegion = JpegStructuralParser.findEntropyRegion(imageData);
+            long fileSize;
+            long jpegHeaderStart;
+            JpegStructuralParser.JpegEntropyRegion entropyRegion;
+            try (MappedByteStream imageData = MappedByteStream.map(filePath)) {
+                fileSize = imageData.size();
+                jpegHeaderStart = findJpegHeaderInData(imageData);
+                entropyRegion = JpegStructuralParser.findEntropyRegion(imageData);
+            }
 
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("filename", originalFilename);
-            response.put("fileSize", imageData.length);
+            response.put("fileSize", fileSize);
             response.put("jpegHeaderStart", jpegHeaderStart);
 
             if (entropyRegion.valid) {
@@ -900,8 +992,8 @@ public class FragmentationController {
 
                 // Calculate which block contains the entropy start (header end)
                 int blockSize = 4096;
-                int headerEndBlock = entropyRegion.entropyStartOffset / blockSize;
-                int headerEndBlockOffset = entropyRegion.entropyStartOffset % blockSize;
+                long headerEndBlock = entropyRegion.entropyStartOffset / blockSize;
+                long headerEndBlockOffset = entropyRegion.entropyStartOffset % blockSize;
 
                 response.put("headerEndBlock", headerEndBlock);
                 response.put("headerEndBlockOffset", headerEndBlockOffset);
@@ -965,7 +1057,7 @@ public class FragmentationController {
                     ImageFragmenter.FragmentationInfo fragmentInfo = ImageFragmenter
                             .fragmentImageWithCustomStructure(originalPath, fragmentedPath, blockStructure);
 
-                    ValidationAnalysisResult validationResult = processValidation(fragmentedPath, 1);
+                    ValidationAnalysisResult validationResult = processValidation(fragmentedPath);
 
                     // Log detection results BEFORE snapping
                     System.out.println("\n=== BEFORE SNAPPING ===");
@@ -978,7 +1070,7 @@ public class FragmentationController {
                     // Snap boundaries
                     long fileSize = Files.size(fragmentedPath);
                     System.out.println("File size: " + fileSize + " bytes");
-                    validationResult = snapDetectedBoundariesToKnownBoundaries(validationResult, 4096, 768, fileSize);
+                    validationResult = snapDetectedBoundariesToKnownBoundaries(validationResult, SNAPPING, fileSize);
 
                     System.out.println("\n=== AFTER SNAPPING ===");
                     System.out.println("Snapped fragments: " + validationResult.detectedFragmentRanges.size());
@@ -994,17 +1086,17 @@ public class FragmentationController {
                         System.out.println("\n=== Reconstructing (custom) from detected boundaries ===");
                         System.out.println("Detected fragments: " + validationResult.detectedFragmentRanges.size());
 
-                        List<List<Integer>> boundaries = new ArrayList<>();
+                        List<List<Long>> boundaries = new ArrayList<>();
                         for (Map<String, Long> range : validationResult.detectedFragmentRanges) {
-                            List<Integer> boundary = new ArrayList<>();
-                            boundary.add(range.get("start").intValue());
-                            boundary.add(range.get("end").intValue());
+                            List<Long> boundary = new ArrayList<>();
+                            boundary.add(range.get("start"));
+                            boundary.add(range.get("end"));
                             boundaries.add(boundary);
                             System.out.println("  Boundary: [" + range.get("start") + " - " + range.get("end") + "]");
                         }
 
                         reconstructedFileName = ImageFragmenter.reconstructImageFromDetection(
-                                fragmentedPath.toString(), boundaries);
+                                fragmentedPath, boundaries);
                         System.out.println("Reconstructed (custom) file: " + reconstructedFileName);
                     } else {
                         System.out.println("No detected fragments for reconstruction in custom analyze.");
@@ -1039,6 +1131,7 @@ public class FragmentationController {
                     result.put("totalDetectedFragments", validationResult.detectedFragmentRanges.size());
                     result.put("validationCompleted", validationResult.completed);
                     result.put("validationMessage", validationResult.message);
+                    result.put("estimatedRemainingBytes", validationResult.estimatedRemainingBytes);
 
                     // Fragment comparisons
                     List<Map<String, Object>> fragmentComparisons = new ArrayList<>();
@@ -1225,14 +1318,16 @@ public class FragmentationController {
      * End offsets: Snapped using midpoint rule (round to nearest boundary)
      * 
      * @param validationResult Original validation result with detected boundaries
-     * @param boundaryInterval Interval between boundaries in bytes (4096 for 4KB)
-     * @param snapTolerance    Maximum distance to snap (768 bytes)
+     * @param config           Interval between boundaries (snapBoundaryBytes, 4096 for 4KB) and maximum
+     *                         distance to snap (snapToleranceBytes, 768 bytes)
      * @param fileSize         Actual file size in bytes (snapped boundaries cannot
      *                         exceed this)
      * @return Updated validation result with snapped boundaries
      */
-    private ValidationAnalysisResult snapDetectedBoundariesToKnownBoundaries(
-            ValidationAnalysisResult validationResult, int boundaryInterval, int snapTolerance, long fileSize) {
+    static ValidationAnalysisResult snapDetectedBoundariesToKnownBoundaries(
+            ValidationAnalysisResult validationResult, JpegDetectionConfig config, long fileSize) {
+        final int boundaryInterval = config.snapBoundaryBytes;
+        final int snapTolerance = config.snapToleranceBytes;
 
         List<Map<String, Long>> snappedRanges = new ArrayList<>();
 
@@ -1328,7 +1423,8 @@ public class FragmentationController {
                 snappedOffsets,
                 mergedRanges,
                 validationResult.message,
-                validationResult.phase);
+                validationResult.phase,
+                validationResult.estimatedRemainingBytes);
     }
 
     /**
@@ -1347,7 +1443,7 @@ public class FragmentationController {
      * @param tolerance        Maximum distance to snap (768 bytes)
      * @return Snapped boundary or null if not valid (should discard)
      */
-    private Long snapStartBoundary(long detectedBoundary, long snappedEnd, int boundaryInterval, int tolerance) {
+    private static Long snapStartBoundary(long detectedBoundary, long snappedEnd, int boundaryInterval, int tolerance) {
         // Phase 1: Strict snapping - if within tolerance, snap to nearest boundary
         long nearestBoundary = Math.round((double) detectedBoundary / boundaryInterval) * boundaryInterval;
         long distance = Math.abs(detectedBoundary - nearestBoundary);
@@ -1402,7 +1498,7 @@ public class FragmentationController {
      *                         midpoint=2048)
      * @return Snapped boundary based on midpoint rule
      */
-    private long snapEndBoundaryMidpoint(long detectedBoundary, int boundaryInterval) {
+    private static long snapEndBoundaryMidpoint(long detectedBoundary, int boundaryInterval) {
         // Step 1: Compute lower 4KB boundary (floor)
         long lowerBoundary = (detectedBoundary / boundaryInterval) * boundaryInterval;
 
@@ -1420,68 +1516,20 @@ public class FragmentationController {
     }
 
     private ValidationAnalysisResult validateImage(Path imagePath) {
-        try {
-            File imageFile = imagePath.toFile();
-            byte[] imageData = Files.readAllBytes(imagePath);
+        return validateImage(imagePath, VALIDATOR);
+    }
 
+    private ValidationAnalysisResult validateImage(Path imagePath, Validator validator) {
+        try (MappedByteStream imageData = MappedByteStream.map(imagePath)) {
             // Find JPEG header (SOI marker 0xFFD8) - skip any noise at the beginning
-            int jpegStart = findJpegHeaderInData(imageData);
+            long jpegStart = findJpegHeaderInData(imageData);
             System.out.println("JPEG SOI marker found at offset: " + jpegStart);
 
-            // If noise is at the beginning, create a view starting from JPEG header
-            final int headerOffset = jpegStart;
-            final byte[] dataToValidate = imageData;
-
-            JpegValidator validator = new JpegValidator();
-            ByteStream byteStream = new ByteStream() {
-                @Override
-                public boolean isAvailable(java.math.BigInteger offset, java.math.BigInteger length) {
-                    long adjustedOffset = offset.longValue() + headerOffset;
-                    return offset.signum() >= 0 &&
-                            adjustedOffset + length.longValue() <= dataToValidate.length;
-                }
-
-                @Override
-                public byte[] read(java.math.BigInteger offset, int length) throws IOException {
-                    long adjustedOffset = offset.longValue() + headerOffset;
-                    if (!isAvailable(offset, java.math.BigInteger.valueOf(length))) {
-                        throw new IOException("Read beyond available data");
-                    }
-                    byte[] result = new byte[length];
-                    System.arraycopy(dataToValidate, (int) adjustedOffset, result, 0, length);
-                    return result;
-                }
-            };
-
-            JpegValidationResult result = (JpegValidationResult) validator.validate(byteStream);
-
-            // Convert BigInteger list to Long list (adjust offsets back to file
-            // coordinates)
-            List<Long> detectedOffsets = new ArrayList<>();
-            if (result.allDetectedFragments != null) {
-                for (java.math.BigInteger offset : result.allDetectedFragments) {
-                    detectedOffsets.add(offset.longValue() + headerOffset);
-                }
-            }
-
-            // Convert fragment ranges (adjust offsets back to file coordinates)
-            List<Map<String, Long>> fragmentRanges = new ArrayList<>();
-            if (result.detectedFragmentRanges != null) {
-                for (JpegValidationResult.FragmentRange range : result.detectedFragmentRanges) {
-                    Map<String, Long> rangeMap = new HashMap<>();
-                    rangeMap.put("start", range.start.longValue() + headerOffset);
-                    rangeMap.put("end", range.end.longValue() + headerOffset);
-                    fragmentRanges.add(rangeMap);
-                }
-            }
+            // If noise is at the beginning, validate a view starting from JPEG header
+            final long headerOffset = jpegStart;
 
-            return new ValidationAnalysisResult(
-                    result.completed,
-                    result.offset.longValue() + headerOffset,
-                    detectedOffsets,
-                    fragmentRanges,
-                    result.toString(),
-                    result.info);
+            JpegValidationResult result = (JpegValidationResult) validator.validate(imageData.from(headerOffset));
+            return toAnalysisResult(result, headerOffset);
 
         } catch (Exception e) {
             return new ValidationAnalysisResult(false, -1, new ArrayList<>(), new ArrayList<>(),
@@ -1490,12 +1538,42 @@ public class FragmentationController {
     }
 
     /**
-     * Find JPEG SOI marker (0xFFD8) in byte array
+     * Converts a validation result of a view that starts at the JPEG header to file coordinates.
+     */
+    static ValidationAnalysisResult toAnalysisResult(JpegValidationResult result, long headerOffset) {
+        // Convert detected points to a Long list (adjust offsets back to file
+        // coordinates)
+        List<Long> detectedOffsets = new ArrayList<>();
+        for (long offset : result.allDetectedFragments) {
+            detectedOffsets.add(offset + headerOffset);
+        }
+
+        // Convert fragment ranges (adjust offsets back to file coordinates)
+        List<Map<String, Long>> fragmentRanges = new ArrayList<>();
+        for (int i = 0; i < result.rangeCount(); i++) {
+            Map<String, Long> rangeMap = new HashMap<>();
+            rangeMap.put("start", result.rangeStart(i) + headerOffset);
+            rangeMap.put("end", result.rangeEnd(i) + headerOffset);
+            fragmentRanges.add(rangeMap);
+        }
+
+        return new ValidationAnalysisResult(
+                result.completed,
+                result.byteOffset + headerOffset,
+                detectedOffsets,
+                fragmentRanges,
+                result.toString(),
+                result.info,
+                result.estimatedRemainingBytes);
+    }
+
+    /**
+     * Find JPEG SOI marker (0xFFD8) in the mapped file
      * Returns the offset where JPEG header starts
      */
-    private int findJpegHeaderInData(byte[] data) {
-        for (int i = 0; i < Math.min(data.length - 1, 100000); i++) {
-            if ((data[i] & 0xFF) == 0xFF && (data[i + 1] & 0xFF) == 0xD8) {
+    static long findJpegHeaderInData(MappedByteStream data) {
+        for (long i = 0; i < Math.min(data.size() - 1, 100000); i++) {
+            if (data.get(i) == 0xFF && data.get(i + 1) == 0xD8) {
                 return i;
             }
         }
@@ -1503,22 +1581,30 @@ public class FragmentationController {
         return 0; // Default to 0 if not found
     }
 
-    private static class ValidationAnalysisResult {
+    static class ValidationAnalysisResult {
         boolean completed;
         long detectedOffset;
         List<Long> allDetectedOffsets; // All detected fragment points
         List<Map<String, Long>> detectedFragmentRanges; // Fragment ranges (start-end)
         String message;
         String phase;
+        long estimatedRemainingBytes; // Entropy-coded bytes of the image not in any fragment, -1 if unknown
 
         ValidationAnalysisResult(boolean completed, long detectedOffset, List<Long> allDetectedOffsets,
                 List<Map<String, Long>> detectedFragmentRanges, String message, String phase) {
+            this(completed, detectedOffset, allDetectedOffsets, detectedFragmentRanges, message, phase, -1);
+        }
+
+        ValidationAnalysisResult(boolean completed, long detectedOffset, List<Long> allDetectedOffsets,
+                List<Map<String, Long>> detectedFragmentRanges, String message, String phase,
+                long estimatedRemainingBytes) {
             this.completed = completed;
             this.detectedOffset = detectedOffset;
             this.allDetectedOffsets = allDetectedOffsets != null ? allDetectedOffsets : new ArrayList<>();
             this.detectedFragmentRanges = detectedFragmentRanges != null ? detectedFragmentRanges : new ArrayList<>();
             this.message = message;
             this.phase = phase;
+            this.estimatedRemainingBytes = estimatedRemainingBytes;
         }
     }
 
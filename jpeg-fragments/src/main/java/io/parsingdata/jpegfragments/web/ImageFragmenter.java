@@ -1,8 +1,11 @@
 package io.parsingdata.jpegfragments.web;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -73,8 +76,9 @@ public class ImageFragmenter {
             throw new IOException("Invalid JPEG structure: " + entropyRegion.errorMessage);
         }
 
-        int headerEnd = entropyRegion.entropyStartOffset;
-        int footerStart = entropyRegion.entropyEndOffset;
+        // The original image is held in memory, so its offsets fit in an int
+        int headerEnd = Math.toIntExact(entropyRegion.entropyStartOffset);
+        int footerStart = Math.toIntExact(entropyRegion.entropyEndOffset);
 
         System.out.println("TRUE Entropy region (structural): [" + headerEnd + " - " + footerStart + "]");
         System.out.println("Fragmentable region: " + (footerStart - headerEnd) + " bytes");
@@ -389,9 +393,9 @@ public class ImageFragmenter {
         System.out.println("✓ All segments are contiguous (no gaps, no overlaps)");
 
         // Invariant 4: Coverage - union of all segments equals [fileStart, fileEnd]
-        int totalOriginalCoverage = 0;
+        long totalOriginalCoverage = 0;
         for (FragmentDetail frag : fragments) {
-            int size = frag.originalEndOffset - frag.originalStartOffset;
+            long size = frag.originalEndOffset - frag.originalStartOffset;
             if (size < 0) {
                 throw new IllegalStateException(
                         String.format("Fragment %d has negative size: [%d-%d]",
@@ -400,7 +404,7 @@ public class ImageFragmenter {
             totalOriginalCoverage += size;
         }
 
-        int expectedCoverage = fileEnd - fileStart;
+        long expectedCoverage = fileEnd - fileStart;
         if (totalOriginalCoverage != expectedCoverage) {
             throw new IllegalStateException(
                     String.format("Coverage mismatch: fragments cover %d bytes, expected %d bytes",
@@ -409,12 +413,12 @@ public class ImageFragmenter {
         System.out.println("✓ Segments cover exactly [fileStart, fileEnd]: " + expectedCoverage + " bytes");
 
         // Invariant 5: Output mapping consistency
-        int cumulativeInserted = 0;
+        long cumulativeInserted = 0;
         for (int i = 0; i < fragments.size(); i++) {
             FragmentDetail frag = fragments.get(i);
 
             // Check output start mapping
-            int expectedOutputStart = frag.originalStartOffset + cumulativeInserted;
+            long expectedOutputStart = frag.originalStartOffset + cumulativeInserted;
             if (frag.outputStartOffset != expectedOutputStart) {
                 throw new IllegalStateException(
                         String.format("Fragment %d output start mismatch: expected %d, got %d",
@@ -422,7 +426,7 @@ public class ImageFragmenter {
             }
 
             // Check output end mapping (before insertion)
-            int expectedOutputEnd = frag.originalEndOffset + cumulativeInserted;
+            long expectedOutputEnd = frag.originalEndOffset + cumulativeInserted;
             if (frag.outputEndOffset != expectedOutputEnd) {
                 throw new IllegalStateException(
                         String.format("Fragment %d output end mismatch: expected %d, got %d",
@@ -449,17 +453,17 @@ public class ImageFragmenter {
      */
     public static class FragmentDetail {
         public final int fragmentNumber;
-        public final int originalStartOffset; // Ground truth: start in original entropy region
-        public final int originalEndOffset; // Ground truth: end in original entropy region (last = entropyEnd)
-        public final int outputStartOffset; // Start in fragmented output
-        public final int outputEndOffset; // End in fragmented output (before insertion)
-        public final int insertionOffset; // Position in fragmented output where insertion occurs
-        public final int insertionLength; // Length of random data inserted
-        public final int insertionPointInOriginal; // Where noise was inserted in original coordinates
-
-        public FragmentDetail(int fragmentNumber, int originalStartOffset, int originalEndOffset,
-                int outputStartOffset, int outputEndOffset, int insertionOffset,
-                int insertionLength, int insertionPointInOriginal) {
+        public final long originalStartOffset; // Ground truth: start in original entropy region
+        public final long originalEndOffset; // Ground truth: end in original entropy region (last = entropyEnd)
+        public final long outputStartOffset; // Start in fragmented output
+        public final long outputEndOffset; // End in fragmented output (before insertion)
+        public final long insertionOffset; // Position in fragmented output where insertion occurs
+        public final long insertionLength; // Length of random data inserted
+        public final long insertionPointInOriginal; // Where noise was inserted in original coordinates
+
+        public FragmentDetail(int fragmentNumber, long originalStartOffset, long originalEndOffset,
+                long outputStartOffset, long outputEndOffset, long insertionOffset,
+                long insertionLength, long insertionPointInOriginal) {
             this.fragmentNumber = fragmentNumber;
             this.originalStartOffset = originalStartOffset;
             this.originalEndOffset = originalEndOffset;
@@ -485,17 +489,17 @@ public class ImageFragmenter {
     public static class FragmentationInfo {
         public final byte[] fragmentedData;
         public final List<FragmentDetail> fragments;
-        public final int headerEnd; // Original entropy start (ground truth)
-        public final int footerStart; // Original entropy end (ground truth)
-        public final int totalInsertedBytes;
-        public final int originalSize; // Total original JPEG size
-        public final int outputSize; // Total fragmented JPEG size
-        public final int originalEntropyStart; // Ground truth: entropy start in original
-        public final int originalEntropyEnd; // Ground truth: entropy end in original
+        public final long headerEnd; // Original entropy start (ground truth)
+        public final long footerStart; // Original entropy end (ground truth)
+        public final long totalInsertedBytes;
+        public final long originalSize; // Total original JPEG size
+        public final long outputSize; // Total fragmented JPEG size
+        public final long originalEntropyStart; // Ground truth: entropy start in original
+        public final long originalEntropyEnd; // Ground truth: entropy end in original
 
         public FragmentationInfo(byte[] fragmentedData, List<FragmentDetail> fragments,
-                int headerEnd, int footerStart, int totalInsertedBytes,
-                int originalSize, int outputSize) {
+                long headerEnd, long footerStart, long totalInsertedBytes,
+                long originalSize, long outputSize) {
             this.fragmentedData = fragmentedData;
             this.fragments = fragments;
             this.headerEnd = headerEnd;
@@ -511,8 +515,8 @@ public class ImageFragmenter {
             return fragments.isEmpty() ? headerEnd : fragments.get(0).originalEndOffset;
         }
 
-        public List<Integer> getAllFragmentPoints() {
-            List<Integer> points = new ArrayList<>();
+        public List<Long> getAllFragmentPoints() {
+            List<Long> points = new ArrayList<>();
             for (FragmentDetail fragment : fragments) {
                 points.add(fragment.originalEndOffset);
             }
@@ -570,8 +574,9 @@ public class ImageFragmenter {
             throw new IOException("Invalid JPEG structure: " + entropyRegion.errorMessage);
         }
 
-        int headerEnd = entropyRegion.entropyStartOffset;
-        int footerStart = entropyRegion.entropyEndOffset;
+        // The original image is held in memory, so its offsets fit in an int
+        int headerEnd = Math.toIntExact(entropyRegion.entropyStartOffset);
+        int footerStart = Math.toIntExact(entropyRegion.entropyEndOffset);
 
         System.out.println("Entropy region: [" + headerEnd + " - " + footerStart + "]");
         System.out.println("Entropy length: " + (footerStart - headerEnd) + " bytes");
@@ -748,7 +753,16 @@ public class ImageFragmenter {
      * Reconstruct image from detected boundaries by extracting detected fragments
      */
     public static String reconstructImageFromDetection(String fragmentedFilePath,
-            List<List<Integer>> detectedBoundaries) {
+            List<List<Long>> detectedBoundaries) {
+        return reconstructImageFromDetection(Paths.get(fragmentedFilePath), detectedBoundaries);
+    }
+
+    /**
+     * Reconstruct image from detected boundaries. Fragments are copied channel to
+     * channel, so the fragmented file is never read into memory.
+     */
+    public static String reconstructImageFromDetection(Path fragmentedFilePath,
+            List<List<Long>> detectedBoundaries) {
         try {
             System.out.println("\n=== Reconstructing Image from Detected Boundaries ===");
 
@@ -759,32 +773,37 @@ public class ImageFragmenter {
                 System.out.println("Created reconstructed directory: " + reconstructedDir.getAbsolutePath());
             }
 
-            File fragmentedFile = new File(fragmentedFilePath);
-            if (!fragmentedFile.exists()) {
+            if (!Files.exists(fragmentedFilePath)) {
                 System.err.println("Fragmented file not found: " + fragmentedFilePath);
                 return null;
             }
 
-            byte[] fragmentedData = Files.readAllBytes(fragmentedFile.toPath());
-            System.out.println("Fragmented file size: " + fragmentedData.length + " bytes");
-            System.out.println("Number of detected fragments: " + detectedBoundaries.size());
-
             // Create output file in reconstructed directory
-            String reconstructedFileName = "reconstructed_" + fragmentedFile.getName();
+            String reconstructedFileName = "reconstructed_" + fragmentedFilePath.getFileName();
             File reconstructedFile = new File(reconstructedDir, reconstructedFileName);
 
-            try (FileOutputStream fos = new FileOutputStream(reconstructedFile)) {
+            try (FileChannel fragmentedChannel = FileChannel.open(fragmentedFilePath, StandardOpenOption.READ);
+                    FileChannel reconstructedChannel = FileChannel.open(reconstructedFile.toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                long fragmentedSize = fragmentedChannel.size();
+                System.out.println("Fragmented file size: " + fragmentedSize + " bytes");
+                System.out.println("Number of detected fragments: " + detectedBoundaries.size());
+
                 // Extract and concatenate all detected fragments
                 for (int i = 0; i < detectedBoundaries.size(); i++) {
-                    List<Integer> boundary = detectedBoundaries.get(i);
-                    int start = boundary.get(0);
-                    int end = boundary.get(1);
-                    int length = end - start;
+                    List<Long> boundary = detectedBoundaries.get(i);
+                    long start = boundary.get(0);
+                    long end = boundary.get(1);
+                    long length = end - start;
 
                     System.out.println("Fragment " + (i + 1) + ": [" + start + "-" + end + "] = " + length + " bytes");
 
-                    if (start >= 0 && end <= fragmentedData.length && start < end) {
-                        fos.write(fragmentedData, start, length);
+                    if (start >= 0 && end <= fragmentedSize && start < end) {
+                        for (long copied = 0; copied < length;) {
+                            copied += fragmentedChannel.transferTo(start + copied, length - copied,
+                                    reconstructedChannel);
+                        }
                     } else {
                         System.err.println("Invalid boundary: [" + start + "-" + end + "]");
                     }
@@ -2,6 +2,8 @@ package io.parsingdata.jpegfragments.web;
 
 import java.io.IOException;
 
+import io.parsingdata.jpegfragments.MappedByteStream;
+
 /**
  * Deterministic JPEG structural parser that finds the true entropy-coded region
  * based purely on JPEG marker analysis, independent of decoding or
@@ -13,12 +15,12 @@ public class JpegStructuralParser {
      * Result containing the entropy-coded region boundaries
      */
     public static class JpegEntropyRegion {
-        public final int entropyStartOffset;
-        public final int entropyEndOffset;
+        public final long entropyStartOffset;
+        public final long entropyEndOffset;
         public final boolean valid;
         public final String errorMessage;
 
-        public JpegEntropyRegion(int entropyStartOffset, int entropyEndOffset, boolean valid, String errorMessage) {
+        public JpegEntropyRegion(long entropyStartOffset, long entropyEndOffset, boolean valid, String errorMessage) {
             this.entropyStartOffset = entropyStartOffset;
             this.entropyEndOffset = entropyEndOffset;
             this.valid = valid;
@@ -44,32 +46,53 @@ public class JpegStructuralParser {
      * @return JpegEntropyRegion containing the start and end offsets
      */
     public static JpegEntropyRegion findEntropyRegion(byte[] jpegData) {
+        if (jpegData == null) {
+            return new JpegEntropyRegion(0, 0, false, "File too small to be a valid JPEG");
+        }
+        return findEntropyRegion(MappedByteStream.wrap(jpegData));
+    }
+
+    /**
+     * Find the entropy-coded region of a JPEG file without reading it into memory.
+     */
+    public static JpegEntropyRegion findEntropyRegion(java.nio.file.Path jpegPath) throws IOException {
+        try (MappedByteStream mapped = MappedByteStream.map(jpegPath)) {
+            return findEntropyRegion(mapped);
+        }
+    }
+
+    /**
+     * Find the entropy-coded region of a JPEG by structural marker analysis.
+     *
+     * @param jpegData The complete JPEG file data
+     * @return JpegEntropyRegion containing the start and end offsets
+     */
+    public static JpegEntropyRegion findEntropyRegion(MappedByteStream jpegData) {
         try {
             // Validate minimum size
-            if (jpegData == null || jpegData.length < 4) {
+            if (jpegData.size() < 4) {
                 return new JpegEntropyRegion(0, 0, false, "File too small to be a valid JPEG");
             }
 
             // Validate SOI marker (0xFF 0xD8)
-            if ((jpegData[0] & 0xFF) != 0xFF || (jpegData[1] & 0xFF) != 0xD8) {
+            if (jpegData.get(0) != 0xFF || jpegData.get(1) != 0xD8) {
                 return new JpegEntropyRegion(0, 0, false, "Missing SOI marker (0xFF 0xD8)");
             }
 
-            int offset = 2; // Start after SOI
-            int firstEntropyStart = -1;
-            int lastEntropyEnd = -1;
+            long offset = 2; // Start after SOI
+            long firstEntropyStart = -1;
+            long lastEntropyEnd = -1;
 
             // Parse JPEG markers sequentially
-            while (offset < jpegData.length - 1) {
+            while (offset < jpegData.size() - 1) {
                 // Look for marker prefix (0xFF)
-                if ((jpegData[offset] & 0xFF) != 0xFF) {
+                if (jpegData.get(offset) != 0xFF) {
                     return new JpegEntropyRegion(0, 0, false,
                             String.format("Expected marker at offset %d, found 0x%02X", offset,
-                                    jpegData[offset] & 0xFF));
+                                    jpegData.get(offset)));
                 }
 
-                byte markerType = jpegData[offset + 1];
-                int markerCode = markerType & 0xFF;
+                int markerCode = jpegData.get(offset + 1);
 
                 // Check for EOI marker (0xFF 0xD9) - end of image
                 if (markerCode == 0xD9) {
@@ -88,19 +111,19 @@ public class JpegStructuralParser {
                 // Check for SOS marker (0xFF 0xDA) - Start of Scan
                 if (markerCode == 0xDA) {
                     // Read SOS segment length
-                    if (offset + 3 >= jpegData.length) {
+                    if (offset + 3 >= jpegData.size()) {
                         return new JpegEntropyRegion(0, 0, false, "Truncated SOS marker");
                     }
 
-                    int sosLength = ((jpegData[offset + 2] & 0xFF) << 8) | (jpegData[offset + 3] & 0xFF);
-                    int sosHeaderEnd = offset + 2 + sosLength;
+                    int sosLength = (jpegData.get(offset + 2) << 8) | jpegData.get(offset + 3);
+                    long sosHeaderEnd = offset + 2 + sosLength;
 
-                    if (sosHeaderEnd > jpegData.length) {
+                    if (sosHeaderEnd > jpegData.size()) {
                         return new JpegEntropyRegion(0, 0, false, "SOS segment extends beyond file");
                     }
 
                     // Entropy data starts immediately after SOS header
-                    int entropyStart = sosHeaderEnd;
+                    long entropyStart = sosHeaderEnd;
 
                     if (firstEntropyStart == -1) {
                         firstEntropyStart = entropyStart;
@@ -112,10 +135,9 @@ public class JpegStructuralParser {
                     offset = sosHeaderEnd;
 
                     // Skip through entropy-coded data
-                    while (offset < jpegData.length - 1) {
-                        if ((jpegData[offset] & 0xFF) == 0xFF) {
-                            byte nextByte = jpegData[offset + 1];
-                            int nextCode = nextByte & 0xFF;
+                    while (offset < jpegData.size() - 1) {
+                        if (jpegData.get(offset) == 0xFF) {
+                            int nextCode = jpegData.get(offset + 1);
 
                             // 0xFF 0x00 is byte stuffing - continue
                             if (nextCode == 0x00) {
@@ -139,8 +161,8 @@ public class JpegStructuralParser {
                     }
 
                     // If we reached end of file without finding a marker
-                    if (offset >= jpegData.length - 1) {
-                        lastEntropyEnd = jpegData.length;
+                    if (offset >= jpegData.size() - 1) {
+                        lastEntropyEnd = jpegData.size();
                         System.out.println("[Structural Parser] Entropy scan reached end of file");
                         break;
                     }
@@ -149,12 +171,12 @@ public class JpegStructuralParser {
                 }
 
                 // All other markers with length field
-                if (offset + 3 >= jpegData.length) {
+                if (offset + 3 >= jpegData.size()) {
                     return new JpegEntropyRegion(0, 0, false,
                             String.format("Truncated marker 0xFF 0x%02X at offset %d", markerCode, offset));
                 }
 
-                int segmentLength = ((jpegData[offset + 2] & 0xFF) << 8) | (jpegData[offset + 3] & 0xFF);
+                int segmentLength = (jpegData.get(offset + 2) << 8) | jpegData.get(offset + 3);
 
                 // Validate segment length
                 if (segmentLength < 2) {
@@ -191,12 +213,4 @@ public class JpegStructuralParser {
             return new JpegEntropyRegion(0, 0, false, "Parser error: " + e.getMessage());
         }
     }
-
-    /**
-     * Convenience method to validate and get entropy region from a file path
-     */
-    public static JpegEntropyRegion findEntropyRegion(java.nio.file.Path jpegPath) throws IOException {
-        byte[] jpegData = java.nio.file.Files.readAllBytes(jpegPath);
-        return findEntropyRegion(jpegData);
-    }
 }
@@ -0,0 +1,261 @@
+package io.parsingdata.jpegfragments.web;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import io.parsingdata.jpegfragments.MappedByteStream;
+import io.parsingdata.jpegfragments.validator.jpeg.JpegDetectionConfig;
+import io.parsingdata.jpegfragments.validator.jpeg.JpegValidationResult;
+import io.parsingdata.jpegfragments.validator.jpeg.JpegValidator;
+import io.parsingdata.metal.data.ByteStream;
+
+/**
+ * Tunes the detection configuration: fragments every image of a corpus once, validates each
+ * fragmented image with a grid of configurations, and reports per configuration how many of
+ * the fragments it found against how fast it validated.
+ *
+ * Each detection runs once per image. The merge gap and snapping are applied to its result for
+ * every configuration that differs only in those, see {@link JpegDetectionConfig#detection()}.
+ * The images are validated in parallel on all cores, one image per task, and each validation
+ * is timed by the CPU time of the thread that ran it, so its throughput does not depend on
+ * how the others were scheduled. The parallel stages of a validation run in the same pool;
+ * with every core busy on an image of its own they are rarely taken over by another thread.
+ */
+final class ParameterSweep {
+
+    static final long MATCH_TOLERANCE_BYTES = 500; // The start and end of a found fragment, as in /analyze.
+    private static final int BLOCK_BYTES = 4096; // Of the image blocks of ImageFragmenter#fragmentImageWithCustomStructure.
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    static final class Row {
+        final JpegDetectionConfig config;
+        final int images;
+        final long fragments;
+        final long matchedFragments;
+        final long bytes;
+        final long nanos;
+
+        Row(final JpegDetectionConfig config, final int images, final long fragments, final long matchedFragments, final long bytes, final long nanos) {
+            this.config = config;
+            this.images = images;
+            this.fragments = fragments;
+            this.matchedFragments = matchedFragments;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        double detectionRate() {
+            return fragments > 0 ? matchedFragments * 100.0 / fragments : 0.0;
+        }
+
+        double megabytesPerSecond() {
+            return nanos > 0 ? (bytes / (1024.0 * 1024.0)) / (nanos / 1e9) : 0.0;
+        }
+
+        /**
+         * @return whether no other row is at least as good in both detection rate and throughput, and better in one
+         */
+        boolean isParetoOptimal(final List<Row> rows) {
+            for (final Row other : rows) {
+                if (other.detectionRate() >= detectionRate() && other.megabytesPerSecond() >= megabytesPerSecond()
+                        && (other.detectionRate() > detectionRate() || other.megabytesPerSecond() > megabytesPerSecond())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private ParameterSweep() {}
+
+    /**
+     * @return every combination of the values, with the other values of {@link JpegDetectionConfig#DEFAULT}
+     */
+    static List<JpegDetectionConfig> grid(final List<Integer> minMcus, final List<Integer> minLengths, final List<Integer> maxRecoveries,
+            final List<Integer> mergeGaps, final List<Integer> snapTolerances) {
+        final List<JpegDetectionConfig> grid = new ArrayList<>();
+        for (final int mcus : minMcus) {
+            for (final int length : minLengths) {
+                for (final int recovery : maxRecoveries) {
+                    for (final int gap : mergeGaps) {
+                        for (final int tolerance : snapTolerances) {
+                            grid.add(JpegDetectionConfig.DEFAULT.withMinMcusToStartFragment(mcus).withMinFragmentLengthBytes(length)
+                                    .withMaxSingleErrorRecovery(recovery).withFragmentMergeGap(gap).withSnapToleranceBytes(tolerance));
+                        }
+                    }
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Fragments every image of the corpus in a temporary directory, which is removed afterwards, and validates
+     * the fragmented images with every configuration of the grid.
+     *
+     * @param fragmentCount the fragments each image is split into, with noise of the insertion size between them
+     * @return a row for every configuration of the grid, in order
+     */
+    static List<Row> run(final List<Path> corpus, final int fragmentCount, final int insertionSizeKB, final List<JpegDetectionConfig> grid) throws IOException {
+        if (fragmentCount < 1) {
+            throw new IllegalArgumentException("An image must be split into at least one fragment.");
+        }
+        final Path workDir = Files.createTempDirectory("jpeg-sweep-");
+        try {
+            return run(corpus, workDir, fragmentCount, insertionSizeKB, grid);
+        } finally {
+            try (Stream<Path> files = Files.list(workDir)) {
+                for (final Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(workDir);
+        }
+    }
+
+    private static List<Row> run(final List<Path> corpus, final Path workDir, final int fragmentCount, final int insertionSizeKB,
+            final List<JpegDetectionConfig> grid) throws IOException {
+        final List<Path> fragmentedPaths = new ArrayList<>();
+        final List<ImageFragmenter.FragmentationInfo> groundTruth = new ArrayList<>();
+        for (final Path image : corpus) {
+            final Path fragmentedPath = workDir.resolve(fragmentedPaths.size() + "_" + image.getFileName());
+            try {
+                final long headerStart;
+                final long imageBytes;
+                try (MappedByteStream data = MappedByteStream.map(image)) {
+                    headerStart = FragmentationController.findJpegHeaderInData(data);
+                    imageBytes = data.size() - headerStart;
+                }
+                groundTruth.add(ImageFragmenter.fragmentImageWithCustomStructure(image, fragmentedPath,
+                        blockStructure(imageBytes, fragmentCount, insertionSizeKB)));
+                fragmentedPaths.add(fragmentedPath);
+            } catch (final IOException e) {
+                System.out.println("Sweep: skipping " + image + ": " + e.getMessage());
+            }
+        }
+
+        final Map<JpegDetectionConfig, List<Integer>> detections = new LinkedHashMap<>();
+        for (int config = 0; config < grid.size(); config++) {
+            detections.computeIfAbsent(grid.get(config).detection(), detection -> new ArrayList<>()).add(config);
+        }
+        System.out.println("Sweep: " + grid.size() + " configurations, " + detections.size() + " detections, "
+                + fragmentedPaths.size() + " images of " + fragmentCount + " fragments");
+
+        final int images = fragmentedPaths.size();
+        final long[][] imageMatched = new long[images][grid.size()];
+        final long[][] imageNanos = new long[images][grid.size()];
+        IntStream.range(0, images).parallel().forEach(image -> {
+            try (MappedByteStream data = MappedByteStream.map(fragmentedPaths.get(image))) {
+                final long headerOffset = FragmentationController.findJpegHeaderInData(data);
+                final ByteStream input = data.from(headerOffset);
+                new JpegValidator().validate(input); // Warm up, so the first detection is not timed while it is compiled.
+                for (final Map.Entry<JpegDetectionConfig, List<Integer>> detection : detections.entrySet()) {
+                    final JpegValidator validator = new JpegValidator(detection.getKey());
+                    final long start = threadNanos();
+                    final JpegValidationResult result = validator.validate(input);
+                    final long elapsed = threadNanos() - start;
+                    for (final int config : detection.getValue()) {
+                        final JpegDetectionConfig configuration = grid.get(config);
+                        final FragmentationController.ValidationAnalysisResult snapped = FragmentationController.snapDetectedBoundariesToKnownBoundaries(
+                                FragmentationController.toAnalysisResult(result.mergeFragments(configuration.fragmentMergeGap), headerOffset),
+                                configuration, data.size());
+                        imageMatched[image][config] = matchedFragments(groundTruth.get(image).fragments, snapped.detectedFragmentRanges);
+                        imageNanos[image][config] = elapsed;
+                    }
+                }
+            } catch (final IOException e) {
+                System.out.println("Sweep: validation of " + fragmentedPaths.get(image) + " failed: " + e.getMessage());
+            }
+        });
+
+        final long[] matched = new long[grid.size()];
+        final long[] nanos = new long[grid.size()];
+        for (int image = 0; image < images; image++) {
+            for (int config = 0; config < grid.size(); config++) {
+                matched[config] += imageMatched[image][config];
+                nanos[config] += imageNanos[image][config];
+            }
+        }
+        long fragments = 0;
+        long bytes = 0;
+        for (int image = 0; image < images; image++) {
+            fragments += groundTruth.get(image).fragments.size();
+            bytes += Files.size(fragmentedPaths.get(image));
+        }
+        final List<Row> rows = new ArrayList<>();
+        for (int config = 0; config < grid.size(); config++) {
+            rows.add(new Row(grid.get(config), images, fragments, matched[config], bytes, nanos[config]));
+        }
+        return rows;
+    }
+
+    /**
+     * @return the CPU time of the current thread, or the wall-clock time if the JVM does not measure it
+     */
+    private static long threadNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Splits an image into fragments of whole blocks of about equal size, with a noise block between each two,
+     * in the block structure {@link ImageFragmenter#fragmentImageWithCustomStructure} takes.
+     *
+     * @param imageBytes the size of the image from its JPEG header on
+     */
+    static List<Map<String, Object>> blockStructure(final long imageBytes, final int fragmentCount, final int insertionSizeKB) {
+        final int blocks = (int) ((imageBytes + BLOCK_BYTES - 1) / BLOCK_BYTES);
+        final List<Map<String, Object>> structure = new ArrayList<>();
+        int fragment = 1;
+        for (int block = 0; block < blocks; block++) {
+            if (block > 0 && fragment < fragmentCount && block >= (long) fragment * blocks / fragmentCount) {
+                structure.add(Map.of("type", "noise", "size", insertionSizeKB * 1024));
+                fragment++;
+            }
+            structure.add(Map.of("type", "jpeg", "blockIndex", block));
+        }
+        return structure;
+    }
+
+    /**
+     * Matches every actual fragment to the closest detected range not matched yet, as /analyze does.
+     *
+     * @return the actual fragments whose start and end are both within {@link #MATCH_TOLERANCE_BYTES} of their match
+     */
+    static int matchedFragments(final List<ImageFragmenter.FragmentDetail> actualFragments, final List<Map<String, Long>> detectedRanges) {
+        final boolean[] used = new boolean[detectedRanges.size()];
+        int matchedFragments = 0;
+        for (final ImageFragmenter.FragmentDetail actual : actualFragments) {
+            int optimalIndex = -1;
+            long optimalDelta = Long.MAX_VALUE;
+            for (int j = 0; j < detectedRanges.size(); j++) {
+                if (used[j]) {
+                    continue;
+                }
+                final long delta = Math.abs(actual.outputStartOffset - detectedRanges.get(j).get("start"))
+                        + Math.abs(actual.outputEndOffset - detectedRanges.get(j).get("end"));
+                if (delta < optimalDelta) {
+                    optimalDelta = delta;
+                    optimalIndex = j;
+                }
+            }
+            if (optimalIndex >= 0) {
+                used[optimalIndex] = true;
+                if (Math.abs(actual.outputStartOffset - detectedRanges.get(optimalIndex).get("start")) < MATCH_TOLERANCE_BYTES
+                        && Math.abs(actual.outputEndOffset - detectedRanges.get(optimalIndex).get("end")) < MATCH_TOLERANCE_BYTES) {
+                    matchedFragments++;
+                }
+            }
+        }
+        return matchedFragments;
+    }
+
+}
@@ -0,0 +1,99 @@
+package io.parsingdata.jpegfragments;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedByteStreamTest {
+
+    private static final long STRIDE = 1L << 20; // Windows of 2 MB that start every 1 MB.
+
+    @TempDir
+    Path directory;
+
+    private byte[] data;
+
+    private MappedByteStream map(final int size) throws IOException {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        final Path file = directory.resolve("data.bin");
+        Files.write(file, data);
+        return MappedByteStream.map(file, STRIDE);
+    }
+
+    private byte[] bytes(final ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    @Test
+    public void sliceWithinWindowIsView() throws IOException {
+        try (MappedByteStream stream = map(3 << 20)) {
+            final ByteBuffer slice = stream.slice(1500000, 100000);
+            assertTrue(slice.isDirect());
+            assertArrayEquals(Arrays.copyOfRange(data, 1500000, 1600000), bytes(slice));
+        }
+    }
+
+    @Test
+    public void sliceAcrossWindowsIsCopy() throws IOException {
+        try (MappedByteStream stream = map(3 << 20)) {
+            final ByteBuffer slice = stream.slice(500000, 2500000);
+            assertFalse(slice.isDirect());
+            assertArrayEquals(Arrays.copyOfRange(data, 500000, 3000000), bytes(slice));
+        }
+    }
+
+    @Test
+    public void viewReadsFromOffset() throws IOException {
+        try (MappedByteStream stream = map(3 << 20)) {
+            final MappedByteStream view = stream.from(2200000);
+            assertEquals(data.length - 2200000, view.size());
+            assertEquals(data[2200010] & 0xFF, view.get(10));
+            assertArrayEquals(Arrays.copyOfRange(data, 2200000, data.length), bytes(view.slice(0, (int) view.size())));
+        }
+    }
+
+    @Test
+    public void closeTwiceAndCloseWrapped() throws IOException {
+        final MappedByteStream stream = map(1000);
+        stream.close();
+        stream.close();
+        MappedByteStream.wrap(new byte[] { 1, 2, 3 }).close();
+    }
+
+    @Test
+    public void closeViewKeepsStreamMapped() throws IOException {
+        try (MappedByteStream stream = map(1000)) {
+            stream.from(100).close();
+            assertFalse(stream.isClosed());
+            assertEquals(data[10] & 0xFF, stream.get(10));
+        }
+    }
+
+    @Test
+    public void readAfterCloseThrows() throws IOException {
+        final MappedByteStream stream = map(1000);
+        final MappedByteStream view = stream.from(100);
+        stream.close();
+        assertTrue(view.isClosed());
+        assertThrows(IllegalStateException.class, () -> view.get(0));
+        assertThrows(IllegalStateException.class, () -> stream.slice(0, 10));
+        assertThrows(IOException.class, () -> view.read(BigInteger.ZERO, 10));
+    }
+
+}
@@ -0,0 +1,93 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the lookup decoder and the DC prefilter against a trial decode that walks the
+ * canonical codes of ITU T.81 Annex C one bit at a time.
+ */
+public class HuffmanTableTest {
+
+    // ITU T.81 Annex K.3: the typical luminance tables.
+    private static final int[] DC_LENGTHS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int[] DC_SYMBOLS = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] AC_LENGTHS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7D };
+    private static final int[] AC_SYMBOLS = {
+        0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+        0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xA1, 0x08, 0x23, 0x42, 0xB1, 0xC1, 0x15, 0x52, 0xD1, 0xF0,
+        0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0A, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x25, 0x26, 0x27, 0x28,
+        0x29, 0x2A, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+        0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+        0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7A, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+        0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7,
+        0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3, 0xC4, 0xC5,
+        0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA, 0xE1, 0xE2,
+        0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA, 0xF1, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+        0xF9, 0xFA };
+
+    @Test
+    public void decodeMatchesTrialDecode() {
+        assertDecodes(new HuffmanTable(0x00, DC_LENGTHS, DC_SYMBOLS), DC_LENGTHS, DC_SYMBOLS);
+        assertDecodes(new HuffmanTable(0x10, AC_LENGTHS, AC_SYMBOLS), AC_LENGTHS, AC_SYMBOLS); // Codes of up to 16 bits.
+    }
+
+    @Test
+    public void mayStartDifferenceMatchesTrialDecode() {
+        assertPrefilters(new HuffmanTable(0x00, DC_LENGTHS, DC_SYMBOLS), DC_LENGTHS, DC_SYMBOLS);
+    }
+
+    @Test
+    public void mayStartDifferenceRejectsInvalidPrefixes() {
+        // Two of the codes name magnitude categories above 15, and the all-ones prefix is not a code.
+        final int[] lengths = { 0, 2, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+        final int[] symbols = { 3, 16, 7, 0xA5 };
+        final HuffmanTable table = new HuffmanTable(0x01, lengths, symbols);
+        assertEquals(3, table.maxCodeLength);
+        assertPrefilters(table, lengths, symbols);
+        assertTrue(table.mayStartDifference(0b000));
+        assertFalse(table.mayStartDifference(0b010)); // Category 16.
+        assertTrue(table.mayStartDifference(0b100));
+        assertFalse(table.mayStartDifference(0b101)); // Category 0xA5.
+        assertFalse(table.mayStartDifference(0b110)); // No code.
+        assertFalse(table.mayStartDifference(0b111));
+    }
+
+    private static void assertDecodes(final HuffmanTable table, final int[] lengths, final int[] symbols) {
+        for (int bits = 0; bits < 1 << table.maxCodeLength; bits++) {
+            assertEquals(trialDecode(lengths, symbols, bits, table.maxCodeLength), table.decode(bits), "bits " + Integer.toBinaryString(bits));
+        }
+    }
+
+    private static void assertPrefilters(final HuffmanTable table, final int[] lengths, final int[] symbols) {
+        for (int bits = 0; bits < 1 << table.maxCodeLength; bits++) {
+            final int match = trialDecode(lengths, symbols, bits, table.maxCodeLength);
+            assertEquals(match != HuffmanTable.NO_MATCH && HuffmanTable.matchSymbol(match) <= 15, table.mayStartDifference(bits),
+                    "bits " + Integer.toBinaryString(bits));
+        }
+    }
+
+    /**
+     * Reads one bit at a time until the bits read so far are a code, generating the codes as in Annex C.
+     *
+     * @return the match packed as by {@link HuffmanTable#decode(int)}, or {@link HuffmanTable#NO_MATCH}
+     */
+    private static int trialDecode(final int[] lengths, final int[] symbols, final int bits, final int maxCodeLength) {
+        int code = 0;
+        int symbolIndex = 0;
+        for (int codeLength = 1; codeLength <= maxCodeLength; codeLength++) {
+            final int read = bits >>> (maxCodeLength - codeLength);
+            for (int i = 0; i < lengths[codeLength - 1]; i++, code++, symbolIndex++) {
+                if (read == code) {
+                    return (codeLength << 8) | symbols[symbolIndex];
+                }
+            }
+            code <<= 1;
+        }
+        return HuffmanTable.NO_MATCH;
+    }
+
+}
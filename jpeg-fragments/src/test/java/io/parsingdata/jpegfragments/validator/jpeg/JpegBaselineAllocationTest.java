@@ -0,0 +1,94 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.AC;
+import static io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType.DC;
+import static io.parsingdata.jpegfragments.validator.jpeg.JpegDecodeError.OK;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.parsingdata.jpegfragments.MappedByteStream;
+import io.parsingdata.jpegfragments.validator.jpeg.HuffmanTable.CoefficientType;
+
+/**
+ * Validating an MCU must not allocate: the kernel returns primitive error codes and the bit
+ * reader works on a primitive window. The input is unstuffed before the measured runs, so
+ * reading it does not allocate either.
+ */
+public class JpegBaselineAllocationTest {
+
+    private static final int WARM_UP_RUNS = 20;
+    private static final int SIZE = 2048; // 16384 MCUs.
+
+    @Test
+    public void warmMcusDoNotAllocate() throws IOException {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final MappedByteStream input = MappedByteStream.wrap(TestJpegs.encode(SIZE, SIZE, false, 9));
+        final HeaderSegments header = JpegHeaderParser.parseHeader(input).orElseThrow();
+        final HeaderSegments scan = JpegHeaderParser.parseScan(input, header.offset).orElseThrow();
+        final Map<CoefficientType, Map<Integer, HuffmanTable>> tables = new EnumMap<>(CoefficientType.class);
+        tables.put(DC, new HashMap<>());
+        tables.put(AC, new HashMap<>());
+        header.defineTables(tables);
+        scan.defineTables(tables);
+        final int[] selectors = scan.scan.tableSelectors();
+        final HuffmanTable[] dcTables = new HuffmanTable[selectors.length];
+        final HuffmanTable[] acTables = new HuffmanTable[selectors.length];
+        for (int channel = 0; channel < selectors.length; channel++) {
+            dcTables[channel] = tables.get(DC).get(selectors[channel] >>> 4);
+            acTables[channel] = tables.get(AC).get(selectors[channel] & 0x0F);
+        }
+        final int mcuWidth = 8 * (header.frame.samplingFactors(0) >> 4);
+        final int mcuHeight = 8 * (header.frame.samplingFactors(0) & 0x0F);
+        final int luminanceCountPerMcu = mcuWidth * mcuHeight / 64;
+        final int mcuCount = ((SIZE + mcuWidth - 1) / mcuWidth) * ((SIZE + mcuHeight - 1) / mcuHeight);
+
+        // Forks do not release, so every run reads the bytes the first unstuffed without reading the input again.
+        final JpegByteStream unstuffed = new JpegByteStream(input, scan.offset);
+        final JpegEntropyCodedBitStream start = new JpegEntropyCodedBitStream(unstuffed, scan.offset, 0);
+        unstuffed.read(Long.MAX_VALUE);
+        for (int run = 0; run < WARM_UP_RUNS; run++) {
+            assertEquals(mcuCount, validateMcus(start.fork(), dcTables, acTables, luminanceCountPerMcu, mcuCount));
+        }
+        final long halfAllocated = allocated(threads, start.fork(), dcTables, acTables, luminanceCountPerMcu, mcuCount / 2);
+        final long allAllocated = allocated(threads, start.fork(), dcTables, acTables, luminanceCountPerMcu, mcuCount);
+
+        assertEquals(0, allAllocated - halfAllocated, "Validating " + (mcuCount - mcuCount / 2) + " more MCUs allocated "
+                + (allAllocated - halfAllocated) + " more bytes");
+    }
+
+    /**
+     * @return the bytes this thread allocated to validate the MCUs
+     */
+    private static long allocated(final com.sun.management.ThreadMXBean threads, final JpegEntropyCodedBitStream bitStream,
+            final HuffmanTable[] dcTables, final HuffmanTable[] acTables, final int luminanceCountPerMcu, final int mcuCount) throws IOException {
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        final int valid = validateMcus(bitStream, dcTables, acTables, luminanceCountPerMcu, mcuCount);
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertEquals(mcuCount, valid);
+        return allocated;
+    }
+
+    private static int validateMcus(final JpegEntropyCodedBitStream bitStream, final HuffmanTable[] dcTables, final HuffmanTable[] acTables,
+            final int luminanceCountPerMcu, final int mcuCount) throws IOException {
+        int mcuIndex = 0;
+        while (mcuIndex < mcuCount && JpegBaseline.validateMcu(bitStream, dcTables, acTables, luminanceCountPerMcu, mcuIndex, 0) == OK) {
+            mcuIndex++;
+        }
+        return mcuIndex;
+    }
+
+}
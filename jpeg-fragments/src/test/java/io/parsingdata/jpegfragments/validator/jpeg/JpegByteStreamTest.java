@@ -0,0 +1,87 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.parsingdata.jpegfragments.MappedByteStream;
+
+/**
+ * Checks the unstuffed data, the index of dropped bytes and the index of markers against
+ * unstuffing the whole input at once, across chunks and while data is released.
+ */
+public class JpegByteStreamTest {
+
+    private static final int START = 100;
+
+    private byte[] input;
+    private byte[] unstuffed;
+    private long[] fileOffsets; // Of every unstuffed byte.
+    private boolean[] markers; // Whether a marker starts at the unstuffed byte.
+    private int length;
+
+    /**
+     * Random data in which one byte in 64 is a 0xFF, followed by byte stuffing, a marker or data alike.
+     */
+    private void generate(final int size, final long seed) {
+        final Random random = new Random(seed);
+        input = new byte[size];
+        for (int i = 0; i < size; i++) {
+            input[i] = (byte) (random.nextInt(64) == 0 ? 0xFF : random.nextInt(4) == 0 ? random.nextInt(3) == 0 ? 0xFF : 0x00 : random.nextInt(256));
+        }
+        unstuffed = new byte[size];
+        fileOffsets = new long[size];
+        markers = new boolean[size];
+        length = 0;
+        int previous = input[START - 1] & 0xFF;
+        for (int offset = START; offset < size; offset++) {
+            final int value = input[offset] & 0xFF;
+            if (previous == 0xFF && value != 0x00 && value != 0xFF && length > 0) {
+                markers[length - 1] = true;
+            }
+            if (previous != 0xFF || (value != 0x00 && value != 0xFF)) {
+                unstuffed[length] = (byte) value;
+                fileOffsets[length++] = offset;
+            }
+            previous = value;
+        }
+    }
+
+    @Test
+    public void readAndMapOffsets() throws IOException {
+        generate(5 * JpegByteStream.CHUNK_SIZE + 1234, 1);
+        final JpegByteStream stream = new JpegByteStream(MappedByteStream.wrap(input), START);
+        for (int index = 0; index < length; index++) {
+            assertEquals(unstuffed[index] & 0xFF, stream.read(index), "index " + index);
+            assertEquals(fileOffsets[index], stream.toFileOffset(index), "index " + index);
+            assertEquals(index, stream.toIndex(fileOffsets[index]), "index " + index);
+        }
+        assertEquals(-1, stream.read(length));
+    }
+
+    @Test
+    public void findMarkersWhileReleasing() throws IOException {
+        generate(7 * JpegByteStream.CHUNK_SIZE + 77, 2);
+        final JpegByteStream stream = new JpegByteStream(MappedByteStream.wrap(input), START);
+        final int step = 997;
+        for (int index = 0; index + step < length; index += step) {
+            stream.release(index);
+            assertEquals(reference(index, index + step), stream.nextMarker(index, index + step), "index " + index);
+            assertEquals(unstuffed[index + step] & 0xFF, stream.read(index + step));
+            assertEquals(fileOffsets[index + step], stream.toFileOffset(index + step));
+        }
+    }
+
+    private long reference(final int index, final int limit) {
+        for (int i = index; i <= limit; i++) {
+            if (markers[i]) {
+                return i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,79 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+import io.parsingdata.jpegfragments.MappedByteStream;
+
+/**
+ * Checks the header and scan segments parsed from the bytes against those parsed with the
+ * metal tokens of {@link JpegStructure}, which the parser replaced.
+ */
+public class JpegHeaderParserTest {
+
+    @Test
+    public void parsesBaselineHeader() throws IOException {
+        final MappedByteStream input = MappedByteStream.wrap(TestJpegs.encode(320, 200, false, 1));
+        final HeaderSegments header = assertSameHeader(input);
+        assertTrue(header.frame.isBaseline());
+        assertEquals(320, header.frame.width);
+        assertEquals(200, header.frame.height);
+        assertEquals(3, header.frame.componentCount());
+        assertEquals(0x22, header.frame.samplingFactors(0));
+        final HeaderSegments scan = assertSameScan(input, header.offset).orElseThrow();
+        assertEquals(3, scan.scan.componentCount());
+    }
+
+    @Test
+    public void parsesEveryProgressiveScan() throws IOException {
+        final byte[] data = TestJpegs.encode(320, 200, true, 2);
+        final MappedByteStream input = MappedByteStream.wrap(data);
+        final HeaderSegments header = assertSameHeader(input);
+        assertFalse(header.frame.isBaseline());
+        int scans = 0;
+        for (int offset = 2; offset + 1 < data.length; offset++) {
+            // A scan can start at every marker that is not byte stuffing.
+            if ((data[offset] & 0xFF) == 0xFF && (data[offset + 1] & 0xFF) != 0x00 && (data[offset + 1] & 0xFF) != 0xFF
+                    && assertSameScan(input, offset).isPresent()) {
+                scans++;
+            }
+        }
+        assertTrue(scans >= 6, "scans " + scans); // ImageIO writes 10 scans for a colour image.
+    }
+
+    @Test
+    public void rejectsMissingAndTruncatedHeaders() throws IOException {
+        final byte[] data = TestJpegs.encode(64, 64, false, 3);
+        assertEquals(Optional.empty(), assertSame(MappedByteStream.wrap(Arrays.copyOfRange(data, 1, data.length))));
+        final HeaderSegments header = JpegHeaderParser.parseHeader(MappedByteStream.wrap(data)).orElseThrow();
+        for (final int length : new int[] { 2, 3, 20, (int) header.offset - 1 }) {
+            final MappedByteStream truncated = MappedByteStream.wrap(Arrays.copyOf(data, length));
+            assertSame(truncated);
+            assertEquals(Optional.empty(), assertSameScan(truncated, header.offset));
+        }
+    }
+
+    private static HeaderSegments assertSameHeader(final MappedByteStream input) throws IOException {
+        return assertSame(input).orElseThrow();
+    }
+
+    private static Optional<HeaderSegments> assertSame(final MappedByteStream input) throws IOException {
+        final Optional<HeaderSegments> header = JpegHeaderParser.parseHeader(input);
+        assertEquals(JpegMetalHeaderParser.parseHeader(input).toString(), header.toString());
+        return header;
+    }
+
+    private static Optional<HeaderSegments> assertSameScan(final MappedByteStream input, final long offset) throws IOException {
+        final Optional<HeaderSegments> scan = JpegHeaderParser.parseScan(input, offset);
+        assertEquals(JpegMetalHeaderParser.parseScan(input, offset).toString(), scan.toString(), "scan at offset " + offset);
+        return scan;
+    }
+
+}
@@ -0,0 +1,89 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static io.parsingdata.jpegfragments.validator.jpeg.TestJpegs.CLUSTER;
+import static io.parsingdata.jpegfragments.validator.jpeg.TestJpegs.assertRanges;
+import static io.parsingdata.jpegfragments.validator.jpeg.TestJpegs.insertNoise;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import io.parsingdata.jpegfragments.MappedByteStream;
+
+/**
+ * Fragment detection in progressive scans: a scan that breaks in noise is spliced at a
+ * checkpoint before the break onto the first cluster after the noise where decoding holds.
+ */
+public class JpegProgressiveTest {
+
+    private static byte[] image;
+
+    @BeforeAll
+    public static void encode() throws IOException {
+        image = TestJpegs.encode(1024, 768, true, 3);
+    }
+
+    private static JpegValidationResult validate(final byte[] data) throws IOException {
+        return new JpegValidator().validate(MappedByteStream.wrap(data));
+    }
+
+    @Test
+    public void intactImageIsOneFragment() throws IOException {
+        final JpegValidationResult result = validate(image);
+        assertTrue(result.completed);
+        assertEquals(image.length, result.byteOffset);
+        assertEquals(0, result.estimatedRemainingBytes);
+        assertRanges(result, 0, image.length);
+    }
+
+    @Test
+    public void splicesOverEveryInsertion() throws IOException {
+        final byte[] data = insertNoise(insertNoise(image, 30 * CLUSTER, CLUSTER, 2), 12 * CLUSTER, 3 * CLUSTER, 5);
+        final JpegValidationResult result = validate(data);
+        assertTrue(result.completed);
+        assertEquals(data.length, result.byteOffset);
+        assertEquals(0, result.estimatedRemainingBytes); // Every scan is spliced, none loses data.
+        assertRanges(result, 0, 12 * CLUSTER, 15 * CLUSTER, 33 * CLUSTER, 34 * CLUSTER, data.length);
+        for (int range = 0; range < result.rangeCount(); range++) {
+            assertEquals(0, result.rangeStart(range) % CLUSTER); // Splices resume at the start of a cluster.
+        }
+    }
+
+    @Test
+    public void scanWithUndefinedSelectorIsSkipped() throws IOException {
+        final int scan = scanHeaderOffset(image, 2); // An AC scan of one component.
+        for (final int[] change : new int[][] { { 5, 9 }, { 6, 0x33 } }) { // Its component selector, its table selectors.
+            final byte[] data = image.clone();
+            data[scan + change[0]] = (byte) change[1];
+            final JpegValidationResult result = validate(data);
+            assertTrue(result.completed);
+            assertTrue(result.rangeEnd(0) <= scan && result.rangeStart(1) > scan, () -> Arrays.toString(result.detectedFragmentRanges));
+            assertEquals(-1, result.estimatedRemainingBytes); // The scan is lost as a whole.
+        }
+    }
+
+    /**
+     * @return the offset of the SOS marker of the scan, counted from 0
+     */
+    private static int scanHeaderOffset(final byte[] data, final int scan) {
+        int found = -1;
+        for (int offset = 0; offset + 1 < data.length; offset++) {
+            if ((data[offset] & 0xFF) == 0xFF && (data[offset + 1] & 0xFF) == 0xDA && ++found == scan) {
+                return offset;
+            }
+        }
+        throw new IllegalArgumentException("No scan " + scan);
+    }
+
+    @Test
+    public void errorsInComponentScansNameTheComponent() {
+        assertEquals("QASize; " + JpegValidator.CHANNEL_NAME.get(1),
+                JpegDecodeError.describe(JpegDecodeError.QUANTIZATION_ARRAY_SIZE.code(2)));
+        assertEquals("Huffman-AC-F; Luminance", JpegDecodeError.describe(JpegDecodeError.HUFFMAN_AC_FIRST.code(0)));
+    }
+
+}
@@ -0,0 +1,76 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static io.parsingdata.jpegfragments.validator.jpeg.TestJpegs.CLUSTER;
+import static io.parsingdata.jpegfragments.validator.jpeg.TestJpegs.assertRanges;
+import static io.parsingdata.jpegfragments.validator.jpeg.TestJpegs.insertNoise;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import io.parsingdata.jpegfragments.MappedByteStream;
+
+/**
+ * Recovery in baseline scans: after noise is inserted at a cluster boundary, decoding must
+ * break where the noise starts and resume at the first cluster after it, exactly and with
+ * coarse-to-fine detection alike.
+ */
+public class JpegRecoveryTest {
+
+    private static byte[] image;
+
+    @BeforeAll
+    public static void encode() throws IOException {
+        image = TestJpegs.encode(1024, 768, false, 3);
+    }
+
+    private static JpegValidationResult validate(final byte[] data, final boolean coarseToFine) throws IOException {
+        return new JpegValidator(coarseToFine).validate(MappedByteStream.wrap(data));
+    }
+
+    @Test
+    public void intactImageIsOneFragment() throws IOException {
+        final JpegValidationResult result = validate(image, false);
+        assertTrue(result.completed);
+        assertEquals(image.length, result.byteOffset);
+        assertEquals(0, result.estimatedRemainingBytes);
+        assertRanges(result, 0, image.length);
+        assertRanges(validate(image, true), 0, image.length);
+    }
+
+    @Test
+    public void resumesAfterNoise() throws IOException {
+        final byte[] data = insertNoise(image, 16 * CLUSTER, 8 * CLUSTER, 1);
+        for (final boolean coarseToFine : new boolean[] { false, true }) {
+            final JpegValidationResult result = validate(data, coarseToFine);
+            assertRanges(result, 0, 16 * CLUSTER, 24 * CLUSTER, data.length);
+            assertEquals(24 * CLUSTER, result.rangeStart(1)); // Recovery resumes at the start of the cluster.
+        }
+        // MCUs decoded in the noise are not counted, the MCU cut off by it may be counted once or not at all.
+        final long estimate = validate(data, false).estimatedRemainingBytes;
+        assertTrue(estimate >= 0 && estimate < 2 * image.length / 3072, "estimated " + estimate + " bytes");
+        // The MCUs jumped over in coarse-to-fine detection are estimated from the size of the ones probed.
+        final long coarseEstimate = validate(data, true).estimatedRemainingBytes;
+        assertTrue(coarseEstimate >= 0 && coarseEstimate < image.length / 20, "estimated " + coarseEstimate + " bytes");
+    }
+
+    @Test
+    public void mergingWithAnotherGapLeavesTheResult() throws IOException {
+        final byte[] data = insertNoise(image, 16 * CLUSTER, 8 * CLUSTER, 1);
+        final JpegValidationResult result = validate(data, false);
+        assertRanges(result.mergeFragments(9 * CLUSTER), 0, data.length);
+        assertRanges(result, 0, 16 * CLUSTER, 24 * CLUSTER, data.length);
+    }
+
+    @Test
+    public void resumesAfterEveryInsertion() throws IOException {
+        final byte[] data = insertNoise(insertNoise(image, 30 * CLUSTER, CLUSTER, 2), 12 * CLUSTER, 3 * CLUSTER, 5);
+        for (final boolean coarseToFine : new boolean[] { false, true }) {
+            assertRanges(validate(data, coarseToFine), 0, 12 * CLUSTER, 15 * CLUSTER, 33 * CLUSTER, 34 * CLUSTER, data.length);
+        }
+    }
+
+}
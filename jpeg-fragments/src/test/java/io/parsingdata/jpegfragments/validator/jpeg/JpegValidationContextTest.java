@@ -0,0 +1,66 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static io.parsingdata.jpegfragments.validator.jpeg.TestJpegs.CLUSTER;
+import static io.parsingdata.jpegfragments.validator.jpeg.TestJpegs.insertNoise;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import io.parsingdata.jpegfragments.MappedByteStream;
+
+public class JpegValidationContextTest {
+
+    @Test
+    public void nestedValidationsBorrowTheirOwnContext() {
+        final JpegValidator validator = new JpegValidator();
+        final JpegValidationContext outer = JpegValidationContext.start(validator);
+        outer.detectedFragmentPoints.add(42);
+        final JpegValidationContext inner = JpegValidationContext.start(validator);
+        assertNotSame(outer, inner);
+        assertEquals(0, inner.detectedFragmentPoints.size());
+        inner.finish();
+        assertEquals(1, outer.detectedFragmentPoints.size());
+        outer.finish();
+    }
+
+    /**
+     * Fork-join workers that wait for a parallel stage of one validation run stages of others in the
+     * meantime, so validations in parallel streams must give the results of validations one at a time.
+     */
+    @Test
+    public void parallelValidationsMatchSerialOnes() throws IOException {
+        final List<byte[]> inputs = new ArrayList<>();
+        for (int seed = 0; seed < 4; seed++) {
+            final byte[] image = TestJpegs.encode(640, 480, seed % 2 == 1, seed);
+            inputs.add(image);
+            inputs.add(insertNoise(image, 5 * CLUSTER, 2 * CLUSTER, seed));
+        }
+        final JpegStrategyPortfolio portfolio = new JpegStrategyPortfolio(JpegStrategyPortfolio.DEFAULT_STRATEGIES, JpegValidationResult::rangeCount);
+        final List<JpegValidationResult> serial = new ArrayList<>();
+        for (final byte[] input : inputs) {
+            serial.add(portfolio.validate(MappedByteStream.wrap(input)));
+        }
+        for (int run = 0; run < 3; run++) {
+            final JpegValidationResult[] parallel = IntStream.range(0, inputs.size()).parallel().mapToObj(input -> {
+                try {
+                    return portfolio.validate(MappedByteStream.wrap(inputs.get(input)));
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).toArray(JpegValidationResult[]::new);
+            for (int input = 0; input < inputs.size(); input++) {
+                assertEquals(serial.get(input).byteOffset, parallel[input].byteOffset, "input " + input);
+                assertArrayEquals(serial.get(input).detectedFragmentRanges, parallel[input].detectedFragmentRanges, "input " + input);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package io.parsingdata.jpegfragments.validator.jpeg;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes JPEGs for the tests, so they do not depend on sample files.
+ */
+final class TestJpegs {
+
+    static final int CLUSTER = 4096;
+    private static final long TOLERANCE_BYTES = 500;
+
+    private TestJpegs() {}
+
+    /**
+     * @return a colour JPEG of a gradient with noise, with 2x2 chroma subsampling as ImageIO writes it
+     */
+    static byte[] encode(final int width, final int height, final boolean progressive, final long seed) throws IOException {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int red = (x * 255 / width + random.nextInt(32)) & 0xFF;
+                final int green = (y * 255 / height + random.nextInt(32)) & 0xFF;
+                final int blue = ((x + y) * 127 / (width + height) + random.nextInt(64)) & 0xFF;
+                image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @return the image with random bytes inserted at the offset, as the fragmenter inserts them
+     */
+    static byte[] insertNoise(final byte[] image, final int offset, final int length, final long seed) {
+        final byte[] noise = new byte[length];
+        new Random(seed).nextBytes(noise);
+        final byte[] result = new byte[image.length + length];
+        System.arraycopy(image, 0, result, 0, offset);
+        System.arraycopy(noise, 0, result, offset, length);
+        System.arraycopy(image, offset, result, offset + length, image.length - offset);
+        return result;
+    }
+
+    /**
+     * Asserts the ranges of a result, each start and end within the tolerance of /analyze.
+     *
+     * @param expected starts and ends of the ranges
+     */
+    static void assertRanges(final JpegValidationResult result, final long... expected) {
+        assertEquals(expected.length / 2, result.rangeCount(), () -> "ranges " + Arrays.toString(result.detectedFragmentRanges));
+        for (int i = 0; i < expected.length; i++) {
+            final long actual = result.detectedFragmentRanges[i];
+            final long wanted = expected[i];
+            assertTrue(Math.abs(actual - wanted) < TOLERANCE_BYTES, () -> "ranges " + Arrays.toString(result.detectedFragmentRanges)
+                    + ", expected " + Arrays.toString(expected));
+        }
+    }
+
+}